@@ -0,0 +1,158 @@
+package ch.zhaw.pm2.multichat.benchmarks;
+
+import ch.zhaw.pm2.multichat.protocol.DataFrame;
+import ch.zhaw.pm2.multichat.protocol.NetworkHandler;
+import ch.zhaw.pm2.multichat.protocol.SharedFrame;
+import ch.zhaw.pm2.multichat.server.AdmissionController;
+import ch.zhaw.pm2.multichat.server.ConnectionRegistry;
+import ch.zhaw.pm2.multichat.server.HistoryStore;
+import ch.zhaw.pm2.multichat.server.RoomRegistry;
+import ch.zhaw.pm2.multichat.server.ServerConfig;
+import ch.zhaw.pm2.multichat.server.ServerConnectionHandler;
+import ch.zhaw.pm2.multichat.server.ServerContext;
+import ch.zhaw.pm2.multichat.server.ServerMetrics;
+import ch.zhaw.pm2.multichat.server.SessionRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static ch.zhaw.pm2.multichat.protocol.ConnectionHandler.DataType.*;
+import static ch.zhaw.pm2.multichat.protocol.ConnectionHandler.USER_ALL;
+import static ch.zhaw.pm2.multichat.protocol.ConnectionHandler.USER_NONE;
+
+/**
+ * Handling of a broadcast message by the {@link ServerConnectionHandler} of the sender, with the given number of
+ * users connected to the server.
+ * <p>The handlers are connected to connections which only count the frames passed to them, like a non-blocking
+ * connection of the NIO server, so the benchmark measures the server logic: looking up the recipients, creating the
+ * shared frame, storing it in the history and passing it to every recipient. Encoding the frame is covered by
+ * {@link FrameCodecBenchmark}, writing it by {@link LoopbackBenchmark}.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({"10", "100", "1000"})
+    public int recipients;
+
+    private ExecutorService writerService;
+    private ServerMetrics metrics;
+    private HistoryStore history;
+    private ServerConnectionHandler sender;
+    private DataFrame message;
+
+    @Setup
+    public void setUp() throws IOException {
+        writerService = Executors.newSingleThreadExecutor();
+        metrics = new ServerMetrics();
+        history = new HistoryStore(100, null);
+        // measure the fan-out, not the rate limits
+        Properties properties = new Properties();
+        properties.setProperty("multichat.rate.messages", "0");
+        properties.setProperty("multichat.rate.global", "0");
+        ServerConfig config = new ServerConfig(properties);
+        ServerContext context = new ServerContext(config, new ConnectionRegistry(), new RoomRegistry(), history,
+            new SessionRegistry(Duration.ZERO), null, new AdmissionController(config), metrics, writerService,
+            true);
+        for (int i = 0; i < recipients; i++) {
+            ServerConnectionHandler handler = new ServerConnectionHandler(new CountingConnection(i), context);
+            handler.frameReceived(new DataFrame("user-" + i, USER_NONE, CONNECT, null));
+            if (i == 0) sender = handler;
+        }
+        message = new DataFrame("user-0", USER_ALL, MESSAGE, "x".repeat(64));
+    }
+
+    @TearDown
+    public void tearDown() {
+        history.close();
+        metrics.close();
+        writerService.shutdownNow();
+    }
+
+    @Benchmark
+    public ServerConnectionHandler broadcast() {
+        sender.frameReceived(message);
+        return sender;
+    }
+
+    /**
+     * Connection which never blocks and only counts the frames sent through it.
+     */
+    private static class CountingConnection implements NetworkHandler.Connection<DataFrame> {
+        private final int remotePort;
+        private long framesSent;
+
+        CountingConnection(int remotePort) {
+            this.remotePort = remotePort;
+        }
+
+        @Override
+        public void send(DataFrame data) {
+            framesSent++;
+        }
+
+        @Override
+        public void sendShared(SharedFrame<DataFrame> frame) {
+            framesSent++;
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+
+        @Override
+        public int getRemotePort() {
+            return remotePort;
+        }
+
+        @Override
+        public String getRemoteHost() {
+            return "benchmark";
+        }
+
+        @Override
+        public int getFormatId() {
+            return 0;
+        }
+
+        @Override
+        public long getBytesReceived() {
+            return 0;
+        }
+
+        @Override
+        public long getBytesSent() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+            // nothing to release
+        }
+    }
+}
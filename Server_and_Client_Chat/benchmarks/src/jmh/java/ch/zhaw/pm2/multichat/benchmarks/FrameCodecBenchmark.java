@@ -0,0 +1,136 @@
+package ch.zhaw.pm2.multichat.benchmarks;
+
+import ch.zhaw.pm2.multichat.protocol.BinaryFrameCodec;
+import ch.zhaw.pm2.multichat.protocol.DataFrame;
+import ch.zhaw.pm2.multichat.protocol.FrameCodec;
+import ch.zhaw.pm2.multichat.protocol.SerializedFrameCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import static ch.zhaw.pm2.multichat.protocol.ConnectionHandler.DataType.MESSAGE;
+
+/**
+ * Encoding and decoding of a {@link DataFrame} with the binary, the compressing binary and the Java serialization
+ * codec. Payloads below the compression threshold are not compressed, so the compressing codec should match the
+ * binary codec for them.
+ * <p>The codecs are used like on a connection: one codec instance writes or reads a long stream of frames, so the
+ * serialization codec only writes its stream header and class descriptors once per reset interval. Every frame is
+ * a new object with its own strings, so serialization can not replace them by back-references.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrameCodecBenchmark {
+    // frames in the stream decoded by a decode benchmark, before the stream is started again
+    private static final int FRAMES_PER_STREAM = 1024;
+
+    @Param({"16", "256", "4096"})
+    public int payloadSize;
+
+    private String payload;
+    private DataOutputStream discardingOutput;
+    private FrameCodec<DataFrame> serializedWriter;
+    private final FrameCodec<DataFrame> binaryReader = new BinaryFrameCodec();
+    private final FrameCodec<DataFrame> compressingCodec = BinaryFrameCodec.deflateWithDictionary();
+    private byte[] binaryStream;
+    private byte[] compressedStream;
+    private DataInputStream compressedInput;
+    private int compressedRemaining;
+    private byte[] serializedStream;
+    private DataInputStream binaryInput;
+    private DataInputStream serializedInput;
+    private FrameCodec<DataFrame> serializedReader;
+    private int binaryRemaining;
+    private int serializedRemaining;
+
+    @Setup
+    public void setUp() throws IOException {
+        payload = "x".repeat(payloadSize);
+        discardingOutput = new DataOutputStream(OutputStream.nullOutputStream());
+        serializedWriter = SerializedFrameCodec.forDataFrames();
+        binaryStream = encodeStream(new BinaryFrameCodec());
+        compressedStream = encodeStream(compressingCodec);
+        serializedStream = encodeStream(SerializedFrameCodec.forDataFrames());
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return BinaryFrameCodec.encode(newFrame());
+    }
+
+    @Benchmark
+    public byte[] encodeCompressed() {
+        return compressingCodec.toBytes(newFrame());
+    }
+
+    @Benchmark
+    public DataOutputStream encodeSerialized() throws IOException {
+        serializedWriter.write(newFrame(), discardingOutput);
+        return discardingOutput;
+    }
+
+    @Benchmark
+    public DataFrame decodeBinary() throws IOException, ClassNotFoundException {
+        if (binaryRemaining == 0) {
+            binaryInput = new DataInputStream(new ByteArrayInputStream(binaryStream));
+            binaryRemaining = FRAMES_PER_STREAM;
+        }
+        binaryRemaining--;
+        return binaryReader.read(binaryInput);
+    }
+
+    @Benchmark
+    public DataFrame decodeCompressed() throws IOException, ClassNotFoundException {
+        if (compressedRemaining == 0) {
+            compressedInput = new DataInputStream(new ByteArrayInputStream(compressedStream));
+            compressedRemaining = FRAMES_PER_STREAM;
+        }
+        compressedRemaining--;
+        return compressingCodec.read(compressedInput);
+    }
+
+    @Benchmark
+    public DataFrame decodeSerialized() throws IOException, ClassNotFoundException {
+        if (serializedRemaining == 0) {
+            serializedInput = new DataInputStream(new ByteArrayInputStream(serializedStream));
+            serializedReader = SerializedFrameCodec.forDataFrames();
+            serializedRemaining = FRAMES_PER_STREAM;
+        }
+        serializedRemaining--;
+        return serializedReader.read(serializedInput);
+    }
+
+    private DataFrame newFrame() {
+        return new DataFrame(new String("alice"), new String("bob"), MESSAGE, new String(payload));
+    }
+
+    private byte[] encodeStream(FrameCodec<DataFrame> codec) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; i < FRAMES_PER_STREAM; i++) {
+            codec.write(newFrame(), out);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,86 @@
+package ch.zhaw.pm2.multichat.benchmarks;
+
+import ch.zhaw.pm2.multichat.protocol.CodecRegistry;
+import ch.zhaw.pm2.multichat.protocol.DataFrame;
+import ch.zhaw.pm2.multichat.protocol.FrameCodec;
+import ch.zhaw.pm2.multichat.protocol.NetworkHandler;
+import ch.zhaw.pm2.multichat.protocol.SerializedFrameCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static ch.zhaw.pm2.multichat.protocol.ConnectionHandler.DataType.MESSAGE;
+
+/**
+ * Sending a frame with {@link NetworkHandler.NetworkConnection#send} and receiving it on the other end of a
+ * loopback connection, with the wire format negotiated by the client.
+ * <p>Both ends are used by the benchmark thread: the frame is sent and then received, so every operation includes
+ * encoding, a flush to the socket, the loopback transfer and decoding.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+    @Param({"binary", "serialized"})
+    public String format;
+
+    @Param({"16", "4096"})
+    public int payloadSize;
+
+    private NetworkHandler.NetworkServer<DataFrame> server;
+    private NetworkHandler.NetworkConnection<DataFrame> client;
+    private NetworkHandler.NetworkConnection<DataFrame> peer;
+    private DataFrame frame;
+
+    @Setup
+    public void setUp() throws Exception {
+        frame = new DataFrame("alice", "bob", MESSAGE, "x".repeat(payloadSize));
+        // the chat server does not accept Java serialization, it is only enabled here for the comparison
+        CodecRegistry<DataFrame> serialized = new CodecRegistry<DataFrame>()
+            .register(FrameCodec.FORMAT_SERIALIZED, SerializedFrameCodec::forDataFrames);
+        server = NetworkHandler.createServer(0, CodecRegistry.forDataFrames()
+            .register(FrameCodec.FORMAT_SERIALIZED, SerializedFrameCodec::forDataFrames));
+        CodecRegistry<DataFrame> formats = format.equals("binary") ? CodecRegistry.forDataFrames() : serialized;
+        client = NetworkHandler.openConnection(NetworkHandler.DEFAULT_ADDRESS, server.getHostPort(), formats);
+        peer = server.waitForConnection();
+        // the handshake blocks until both ends took part, so the first frame is received on another thread
+        Thread receiver = new Thread(() -> {
+            try {
+                peer.receive();
+            } catch (IOException | ClassNotFoundException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        receiver.start();
+        client.send(frame);
+        receiver.join();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+        peer.close();
+        server.close();
+    }
+
+    @Benchmark
+    public DataFrame sendReceive() throws IOException, ClassNotFoundException {
+        client.send(frame);
+        return peer.receive();
+    }
+}
@@ -1,15 +1,18 @@
 package ch.zhaw.pm2.multichat.client;
 
 import ch.zhaw.pm2.multichat.protocol.NetworkHandler;
+import javafx.animation.PauseTransition;
 import javafx.application.Platform;
-import javafx.beans.property.BooleanProperty;
+import javafx.collections.ListChangeListener;
 import javafx.event.EventHandler;
 import javafx.fxml.FXML;
 import javafx.scene.control.Button;
-import javafx.scene.control.TextArea;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
 import javafx.scene.control.TextField;
 import javafx.scene.layout.Pane;
 import javafx.stage.WindowEvent;
+import javafx.util.Duration;
 
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -20,18 +23,24 @@ import java.util.regex.Pattern;
  * clicking on buttons.
  */
 public class ChatWindowController {
+    /**
+     * Time without typing in the filter field after which the filter is applied.
+     */
+    private static final Duration FILTER_DELAY = Duration.millis(150);
+
     private final Pattern messagePattern = Pattern.compile( "^(?:@(\\S*))?\\s*(.*)$" );
+    private final Pattern roomCommandPattern = Pattern.compile( "^/(join|leave)\\s+(\\S+)$" );
 
     private final WindowCloseHandler windowCloseHandler = new WindowCloseHandler();
+    private final PauseTransition filterDelay = new PauseTransition(FILTER_DELAY);
     private Messenger messenger;
-    private BooleanProperty connectedProperty;
 
     @FXML private Pane rootPane;
     @FXML private TextField serverAddressField;
     @FXML private TextField serverPortField;
     @FXML private TextField userNameField;
     @FXML private TextField messageField;
-    @FXML private TextArea messageArea;
+    @FXML private ListView<Message> messageView;
     @FXML private Button connectButton;
     @FXML private Button sendButton;
     @FXML private TextField filterValue;
@@ -46,8 +55,17 @@ public class ChatWindowController {
         serverPortField.setText(String.valueOf(NetworkHandler.DEFAULT_PORT));
 
         messenger = new Messenger();
-        messageArea.textProperty().bind(messenger.getMessageBound());
+        messageView.setItems(messenger.getShownMessages());
+        messageView.setCellFactory(view -> new MessageCell());
+        // follow new messages
+        messenger.getShownMessages().addListener((ListChangeListener<Message>) change ->
+            messageView.scrollTo(change.getList().size() - 1));
         sendButton.setDisable(true);
+        bindConnectedProperty();
+
+        // filter while typing, but only once the user pauses
+        filterDelay.setOnFinished(event -> applyFilter());
+        filterValue.textProperty().addListener((observable, oldValue, newValue) -> filterDelay.playFromStart());
     }
 
     /**
@@ -80,15 +98,22 @@ public class ChatWindowController {
         String fixedUserName = userNameField.getText().strip().replaceAll(" ", "-");
         userNameField.setText(fixedUserName);
         messenger.toggleConnection(fixedUserName, serverAddressField.getText().strip(), serverPortField.getText().strip());
-        if(null == connectedProperty) {bindConnectedProperty();}
     }
 
     /**
      * Makes the connection handler sending the message, entered in the "send" field.
+     * "@user text" sends a private message, "@#room text" a message to a room,
+     * "/join room" and "/leave room" join or leave a room.
      */
     @FXML
     private void message() {
         String messageText = messageField.getText().strip();
+        Matcher roomCommand = roomCommandPattern.matcher(messageText);
+        if (roomCommand.matches()) {
+            messenger.changeRoom(roomCommand.group(2), "join".equals(roomCommand.group(1)));
+            messageField.setText("");
+            return;
+        }
         Matcher matcher = messagePattern.matcher(messageText);
 
         if (matcher.find() && !messageText.isEmpty()) {
@@ -104,9 +129,21 @@ public class ChatWindowController {
 
     @FXML
     private void applyFilter( ) {
+        filterDelay.stop();
         messenger.setFilter(filterValue.getText().strip());
     }
 
+    /**
+     * Row of the message view, displaying one message as a line of text.
+     */
+    private static class MessageCell extends ListCell<Message> {
+        @Override
+        protected void updateItem(Message message, boolean empty) {
+            super.updateItem(message, empty);
+            setText(empty || message == null ? null : ClientMessageList.render(message));
+        }
+    }
+
     /**
      * If a Client is closed without disconnecting, it will call up the applicationClose method.
      */
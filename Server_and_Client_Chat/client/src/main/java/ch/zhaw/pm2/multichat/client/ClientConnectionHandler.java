@@ -1,13 +1,19 @@
 package ch.zhaw.pm2.multichat.client;
 
+import ch.zhaw.pm2.multichat.protocol.AsyncLogger;
 import ch.zhaw.pm2.multichat.protocol.ChatProtocolException;
+import ch.zhaw.pm2.multichat.protocol.CodecRegistry;
 import ch.zhaw.pm2.multichat.protocol.ConnectionHandler;
+import ch.zhaw.pm2.multichat.protocol.DataFrame;
+import ch.zhaw.pm2.multichat.protocol.Histogram;
 import ch.zhaw.pm2.multichat.protocol.NetworkHandler;
-import javafx.beans.property.BooleanProperty;
-import javafx.beans.property.SimpleBooleanProperty;
-
 
 import java.io.IOException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 import static ch.zhaw.pm2.multichat.protocol.ConnectionHandler.State.*;
 import static ch.zhaw.pm2.multichat.protocol.ConnectionHandler.DataType.*;
@@ -17,20 +23,50 @@ import static ch.zhaw.pm2.multichat.protocol.ConnectionHandler.DataType.*;
  * It's registering itself to the server and listens for incoming data which is then processed.
  */
 public class ClientConnectionHandler extends ConnectionHandler {
-    private Messenger messenger;
-    private BooleanProperty connectedProperty = new SimpleBooleanProperty(false);
+    private static final AsyncLogger logger = AsyncLogger.getLogger(ClientConnectionHandler.class);
+
+    /**
+     * Number of history messages requested at once.
+     */
+    private static final int HISTORY_PAGE_SIZE = 100;
+
+    /**
+     * Number of received message ids remembered to drop duplicates.
+     */
+    private static final int RECENT_IDS = 10_000;
+
+    private final Messenger messenger;
+    private final ClientSession session;
+    // ids of the recently received messages: a message delivered while the history is fetched may be contained in
+    // the history as well
+    private final Set<Long> recentIds = Collections.newSetFromMap(new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > RECENT_IDS;
+        }
+    });
+    // id and room of the message being processed, set by the receiving thread
+    private long currentId;
+    private String currentRoom;
+    // time in milliseconds to back off, sent as id of an ERROR frame if the server rate limited a request
+    private long currentRetryAfter;
+    private volatile boolean confirmed = false;
+    // true if the session ended on purpose, so the connection must not be resumed
+    private volatile boolean sessionEnded = false;
 
     /**
      * Constructor
      * @param serverAddress Address of the server
      * @param serverPort the Port on which the server runs
-     * @param userName of the user
+     * @param session of the user, to be started or resumed
      * @param messenger for the ui
      * @throws IOException Signals that an I/O exception of some sort has occurred
      */
-    public ClientConnectionHandler(String serverAddress, int serverPort, String userName, Messenger messenger) throws IOException {
-        super(NetworkHandler.openConnection(serverAddress, serverPort));
+    public ClientConnectionHandler(String serverAddress, int serverPort, ClientSession session, Messenger messenger) throws IOException {
+        super(NetworkHandler.openConnection(serverAddress, serverPort, CodecRegistry.forDataFrames()));
+        String userName = session.getUserName();
         this.userName = (userName == null || userName.isBlank())? USER_NONE : userName;
+        this.session = session;
         this.messenger = messenger;
     }
 
@@ -38,10 +74,6 @@ public class ClientConnectionHandler extends ConnectionHandler {
         return this.state;
     }
 
-    public BooleanProperty getConnectedProperty() {
-        return connectedProperty;
-    }
-
     /**
      * Registers the user at the server and sets the state to CONFIRM_CONNECT
      *
@@ -53,6 +85,19 @@ public class ClientConnectionHandler extends ConnectionHandler {
         this.setState(CONFIRM_CONNECT);
     }
 
+    /**
+     * Resumes the session of the user at the server and sets the state to CONFIRM_CONNECT
+     *
+     * @throws ChatProtocolException if connectionState is not NEW or the session has no resume token
+     */
+    public void resume() throws ChatProtocolException {
+        if (state != NEW) throw new ChatProtocolException("Illegal state for resume: " + state);
+        String token = session.getResumeToken();
+        if (token == null) throw new ChatProtocolException("Session can not be resumed");
+        this.setState(CONFIRM_CONNECT);
+        this.sendData(userName, USER_NONE, RESUME, token);
+    }
+
     /**
      * Unregisters the user from the server and sets the state to CONFIRM_DISCONNECT
      *
@@ -60,21 +105,40 @@ public class ClientConnectionHandler extends ConnectionHandler {
      */
     public void disconnect() throws ChatProtocolException {
         if (state != NEW && state != CONNECTED) throw new ChatProtocolException("Illegal state for disconnect: " + state);
+        sessionEnded = true;
         this.sendData(userName, USER_NONE, DISCONNECT,null);
         this.setState(CONFIRM_DISCONNECT);
     }
 
     /**
-     * This method is called when the thread dies resets the connected state and informs the user
+     * This method is called when the thread dies resets the connected state and informs the user.
+     * If the connection was lost unexpectedly, the messenger tries to resume the session.
      */
     @Override
     protected void threadDies() {
-        connectedProperty.set(false);
-        messenger.writeInfo("Disconnected");
+        messenger.setConnected(false);
+        if (confirmed && !sessionEnded && session.getResumeToken() != null) {
+            messenger.connectionLost(this);
+        } else {
+            messenger.writeInfo("Disconnected");
+        }
+    }
+
+    /**
+     * Remembers the id and room of a received message, to detect duplicates and to record the last received id,
+     * and the back off time sent with an error.
+     *
+     * @param data the received frame
+     */
+    @Override
+    protected void dataReceived(DataFrame data) {
+        currentId = data.getType() == MESSAGE ? data.getId() : 0;
+        currentRoom = data.getRoom();
+        currentRetryAfter = data.getType() == ERROR ? data.getId() : 0;
     }
 
     /**
-     * Prints a confirmation message and changes the state accordingly
+     * Logs a confirmation message and changes the state accordingly
      *
      * @param payload the received message
      */
@@ -82,17 +146,23 @@ public class ClientConnectionHandler extends ConnectionHandler {
     protected void getConfirmMessage(String payload) {
         if (state == CONFIRM_CONNECT) {
             messenger.writeInfo(payload);
-            System.out.println("CONFIRM: " + payload);
+            logger.debug("CONFIRM: {}", payload);
             this.setState(CONNECTED);
-            connectedProperty.set(true);
+            confirmed = true;
+            messenger.setConnected(true);
+            resendPendingMessages();
+            requestHistoryPage(null, session.getLastMessageId(null));
         } else if (state == CONFIRM_DISCONNECT) {
-            System.out.println("CONFIRM: " + payload);
+            logger.debug("CONFIRM: {}", payload);
+            Histogram roundTrips = session.getRoundTrips();
+            logger.info("Round trip of {} messages in us: p50={} p99={}", roundTrips.getCount(),
+                roundTrips.getPercentile(50), roundTrips.getPercentile(99));
             messenger.writeInfo(payload);
             this.setState(DISCONNECTED);
-            connectedProperty.set(false);
+            messenger.setConnected(false);
             this.stopReceiving();
         } else {
-            System.out.println("Got unexpected confirm message: " + payload);
+            logger.warn("Got unexpected confirm message: {}", payload);
         }
     }
 
@@ -107,43 +177,155 @@ public class ClientConnectionHandler extends ConnectionHandler {
     @Override
     protected void getMessage(String sender, String receiver, DataType type, String payload) {
         if (state != CONNECTED) {
-            System.out.println("MESSAGE: Illegal state " + state + " for message: " + payload);
+            logger.warn("MESSAGE: Illegal state {} for message: {}", state, payload);
             return;
         }
+        if (currentId > 0) {
+            if (!recentIds.add(currentId)) {
+                logger.debug("MESSAGE: Dropping duplicate {}", currentId);
+                return;
+            }
+            session.messageReceived(currentRoom, currentId);
+        }
         messenger.receiveMessage(new Message(Message.MessageType.MESSAGE, sender, receiver, payload));
-        System.out.println("MESSAGE: From " + sender + " to " + receiver + ": " + payload);
+        logger.debug("MESSAGE: From {} to {}: {}", sender, receiver, payload);
+    }
+
+    /**
+     * Sends a message with its request id, so the server acknowledges it.
+     *
+     * @param message to send
+     * @throws ChatProtocolException if the state is not CONNECTED
+     */
+    public void sendMessage(ClientSession.PendingMessage message) throws ChatProtocolException {
+        message(message.receiver(), message.payload(), message.requestId());
+    }
+
+    /**
+     * Sends the messages not acknowledged yet again, e.g. after resuming the session. The server drops messages
+     * it delivered already, it only acknowledges them again.
+     */
+    public void resendPendingMessages() {
+        for (ClientSession.PendingMessage message : session.getPendingMessages()) {
+            ClientSession.PendingMessage resent = session.resend(message);
+            if (resent == null) continue;
+            try {
+                sendMessage(resent);
+            } catch (ChatProtocolException e) {
+                // the connection has been lost, the messages are sent after resuming
+                return;
+            }
+        }
     }
 
     /**
-     * Writes Disconnect into the UI and sets the state to DISCONNECTED
+     * Removes the acknowledged message from the pending messages. If the message has not been delivered, the user
+     * is informed.
+     *
+     * @param requestId of the acknowledged message
+     * @param error null if the message has been delivered, otherwise the reason it has not
+     */
+    @Override
+    protected void getAckMessage(long requestId, String error) {
+        ClientSession.PendingMessage message = session.acknowledged(requestId);
+        if (message == null) {
+            logger.debug("ACK: Dropping duplicate {}", requestId);
+            return;
+        }
+        if (error != null) {
+            messenger.writeError(error);
+            logger.warn("ACK: Message {} failed: {}", requestId, error);
+        } else {
+            logger.debug("ACK: Message {} delivered", requestId);
+        }
+    }
+
+    /**
+     * Informs the user that someone joined a room the user is member of
+     *
+     * @param sender the user who joined
+     * @param room the joined room
+     */
+    @Override
+    protected void getJoinMessage(String sender, String room) {
+        messenger.writeInfo(sender + " joined " + ROOM_PREFIX + room);
+        logger.debug("JOIN: {} joined {}", sender, room);
+        if (userName.equals(sender)) requestHistoryPage(room, session.getLastMessageId(room));
+    }
+
+    /**
+     * Informs the user that someone left a room the user is member of
+     *
+     * @param sender the user who left
+     * @param room the left room
+     */
+    @Override
+    protected void getLeaveMessage(String sender, String room) {
+        messenger.writeInfo(sender + " left " + ROOM_PREFIX + room);
+        logger.debug("LEAVE: {} left {}", sender, room);
+    }
+
+    /**
+     * Requests the next page of the history, if the received page was not the last one
+     *
+     * @param room of the history, null for the history of the user
+     * @param id of the last received message
+     * @param payload {@link #HISTORY_MORE} if there are more messages
+     */
+    @Override
+    protected void getHistoryMessage(String room, long id, String payload) {
+        if (HISTORY_MORE.equals(payload)) requestHistoryPage(room, id);
+    }
+
+    /**
+     * Requests a page of the history of the room or the user
+     *
+     * @param room of the history, null for the history of the user
+     * @param sinceId id of the last message already received
+     */
+    private void requestHistoryPage(String room, long sinceId) {
+        try {
+            requestHistory(room, sinceId, HISTORY_PAGE_SIZE);
+        } catch (ChatProtocolException e) {
+            logger.warn("HISTORY: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Writes Disconnect into the UI and sets the state to DISCONNECTED. The user is warned about messages not
+     * acknowledged by the server, as they may not have been delivered.
      *
      * @param payload the message
      */
     @Override
     protected void getDisconnectMessage(String payload){
         if (state == DISCONNECTED) {
-            System.out.println("DISCONNECT: Already in disconnected: " + payload);
+            logger.debug("DISCONNECT: Already in disconnected: {}", payload);
             return;
         }
         messenger.writeInfo(payload);
-        System.out.println("DISCONNECT: " + payload);
+        logger.debug("DISCONNECT: {}", payload);
+        int pending = session.getPendingCount();
+        if (pending > 0) messenger.writeError(pending + " message(s) may not have been delivered");
+        sessionEnded = true;
         this.setState(DISCONNECTED);
-        connectedProperty.set(false);
+        messenger.setConnected(false);
     }
 
     /**
      * On client side no connection requests are expected.
-     * It prints the error message
+     * It logs the error message
      *
      * @param message received error
      */
     @Override
     protected void getConnectMessage(String message){
-        System.out.println("Illegal connect request from server");
+        logger.warn("Illegal connect request from server");
     }
 
     /**
-     * Prints the error message received from sender
+     * Logs the error message received from sender. If the server rate limited a request,
+     * the client stops sending for the time requested by the server.
      *
      * @param sender from whom the message comes
      * @param payload the received message
@@ -151,17 +333,35 @@ public class ClientConnectionHandler extends ConnectionHandler {
     @Override
     protected void getErrorMessage(String sender, String payload){
         messenger.writeError(payload);
-        System.out.println("ERROR: " + payload);
+        logger.warn("ERROR: {}", payload);
+        if (currentRetryAfter > 0) messenger.backOff(Duration.ofMillis(currentRetryAfter));
+        if (state == CONFIRM_CONNECT) {
+            // the connect or resume request has been rejected
+            sessionEnded = true;
+            this.stopReceiving();
+        }
+    }
+
+    /**
+     * Stores the resume token issued by the server
+     *
+     * @param sender unused
+     * @param token to resume the session with
+     */
+    @Override
+    protected void getResumeMessage(String sender, String token) {
+        session.setResumeToken(token);
+        logger.debug("RESUME: Received resume token");
     }
 
     /**
-     * Prints unknown data type error
+     * Logs unknown data type error
      *
      * @param type the data type
      * @throws ChatProtocolException
      */
     @Override
     protected void getDefaultMessage(DataType type) throws ChatProtocolException {
-        System.out.println("Unknown data type received: " + type);
+        logger.warn("Unknown data type received: {}", type);
     }
 }
@@ -1,49 +1,40 @@
 package ch.zhaw.pm2.multichat.client;
 
-import javafx.beans.property.SimpleStringProperty;
-import javafx.beans.property.StringProperty;
-import javafx.collections.FXCollections;
-import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
+import javafx.collections.ObservableListBase;
 
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
+import java.util.stream.IntStream;
 
 /**
  * Holds a list of the messages and allows for adding both chat and
- * information messages. Provides bound to allow a GUI to listen to changes.
+ * information messages. Provides an observable list of the shown messages to allow a GUI to display them.
  * Filters also can be applied in order to
  * display only messages containing a certain keyword.
+ * <p>The messages are kept in a {@link MessageStore}, which holds only the most recent ones in memory. The list of
+ * shown messages only holds the positions of the messages in the store and reads a message when it is accessed,
+ * so a virtualized view like a {@code ListView} only materializes the visible rows. A new message is appended to
+ * the shown messages, they are replaced only if the filter changes.</p>
+ * <p>The messages to show for a filter are looked up in a {@link MessageIndex}. If the filter is extended, e.g. while
+ * it is typed, only the messages shown for the previous filter are checked.</p>
+ * <p>The list must be used by the JavaFX application thread only.</p>
  */
 public class ClientMessageList {
-    private ObservableList<Message> messages = FXCollections.observableArrayList();
-    private StringProperty messageBound = new SimpleStringProperty();
+    private final MessageStore store = new MessageStore();
+    private final MessageIndex index = new MessageIndex(store);
+    private final ShownMessages shownMessages = new ShownMessages();
+    private String filter = "";
 
     /**
-     * Returns a StringProperty which contains the messages in a string format
+     * Returns the messages passing the filter, to be displayed by the GUI.
      *
-     * @return a simple string property
+     * @return the observable list of the shown messages
      */
-    public StringProperty getToBeShownMessages() {
-        return messageBound;
-    }
-
-    /**
-     * Constructor
-     */
-    ClientMessageList() {
-        messages.addListener(new ListChangeListener<Message>() {
-            @Override
-            public void onChanged(Change<? extends Message> c) {
-                rewriteMessageBound();
-            }
-        });
-    }
-
-    /**
-     * Rewrites the string format of the messages
-     */
-    private void rewriteMessageBound() {
-        writeFilteredMessages("");
+    public ObservableList<Message> getShownMessages() {
+        return shownMessages;
     }
 
     /**
@@ -52,66 +43,81 @@ public class ClientMessageList {
      * @param message the message itself
      */
     public void addMessage(Message message) {
-        messages.add(message);
+        addMessages(List.of(message));
     }
 
     /**
-     * Filters the message list to show only specific messages based on the filter choice
+     * Adds several chat messages at once. The shown messages are changed once for all of them.
      *
-     * @param filter the filter to use
+     * @param messages the messages to add
      */
-	public void writeFilteredMessages(String filter) {
-		boolean showAll = filter == null || filter.isBlank();
-		messageBound.set("");
+    public void addMessages(List<Message> messages) {
+        int[] shown = new int[messages.size()];
+        int count = 0;
         for (Message message : messages) {
-            String sender = Objects.requireNonNullElse(message.getSender(), "");
-            String receiver = Objects.requireNonNullElse(message.getReceiver(), "");
-            String messageBody = Objects.requireNonNull(message.getMessage(), "");
-            if (showAll ||
-                sender.contains(filter) ||
-                receiver.contains(filter) ||
-                messageBody.contains(filter)) {
-                switch (message.getType()) {
-                    case MESSAGE -> writeMessage(sender, receiver, messageBody);
-                    case ERROR -> writeError(messageBody);
-                    case INFO -> writeInfo(messageBody);
-                    default -> writeError("Unexpected message type: " + message.getType());
-                }
-            }
+            int position = store.append(message);
+            index.add(position, message);
+            if (matches(message, filter)) shown[count++] = position;
         }
-	}
+        if (count > 0) shownMessages.append(shown, count);
+    }
 
-    private void appendTextMessage(String message) {
-        messageBound.set(messageBound.get() + message);
+    /**
+     * Filters the message list to show only specific messages based on the filter choice
+     *
+     * @param filter the filter to use
+     */
+    public void writeFilteredMessages(String filter) {
+        filter = Objects.requireNonNullElse(filter, "");
+        shownMessages.replace(findMessages(filter));
+        this.filter = filter;
     }
 
     /**
-     * Prints [ERROR] + message to a newline in the messageArea of the UI
+     * Finds the messages passing the filter. If the filter extends the current one, only the messages currently
+     * shown can pass it, otherwise the index is used.
      *
-     * @param message the error message
+     * @param newFilter the filter to apply
+     * @return the positions of the messages passing the filter, in ascending order
      */
-    private void writeError(String message) {
-        appendTextMessage(String.format("[ERROR] %s\n", message));
+    private int[] findMessages(String newFilter) {
+        if (newFilter.isBlank()) {
+            return IntStream.range(0, store.size()).toArray();
+        } else if (!filter.isBlank() && newFilter.contains(filter)) {
+            return shownMessages.positions()
+                .filter(position -> matches(store.get(position), newFilter))
+                .toArray();
+        } else {
+            return index.find(newFilter).stream().toArray();
+        }
     }
 
     /**
-     * Prints [INFO] + message to a newline in the messageArea of the UI
+     * Indicates if the message contains the filter in its sender, receiver or text.
      *
-     * @param message the info message
+     * @param message to check
+     * @param filter to search for, blank to accept all messages
+     * @return true if the message is to be shown
      */
-    private void writeInfo(String message) {
-        appendTextMessage(String.format("[INFO] %s\n", message));
+    private static boolean matches(Message message, String filter) {
+        return filter.isBlank() || MessageIndex.matches(message, filter);
     }
 
     /**
-     * Prints [sender -> receiver] + message to a newline in the messageArea of the UI
+     * Renders the line of a message to display, depending on its type.
      *
-     * @param sender that sent the message
-     * @param receiver that will receive the message
-     * @param message the message
+     * @param message to render
+     * @return the text of the message
      */
-    private void writeMessage(String sender, String receiver, String message) {
-        appendTextMessage(String.format("[%s -> %s] %s\n", sender, receiver, message));
+    static String render(Message message) {
+        String sender = Objects.requireNonNullElse(message.getSender(), "");
+        String receiver = Objects.requireNonNullElse(message.getReceiver(), "");
+        String messageBody = Objects.requireNonNullElse(message.getMessage(), "");
+        return switch (message.getType()) {
+            case MESSAGE -> "[" + sender + " -> " + receiver + "] " + messageBody;
+            case ERROR -> "[ERROR] " + messageBody;
+            case INFO -> "[INFO] " + messageBody;
+        };
     }
 
     /**
@@ -120,7 +126,7 @@ public class ClientMessageList {
      * @param message the info message to display
      */
     public void addInfo(String message) {
-        messages.add(new Message(Message.MessageType.INFO, null, null, message));
+        addMessage(new Message(Message.MessageType.INFO, null, null, message));
     }
 
     /**
@@ -129,6 +135,62 @@ public class ClientMessageList {
      * @param message the error message to display
      */
     public void addError(String message) {
-        messages.add(new Message(Message.MessageType.ERROR, null, null, message));
+        addMessage(new Message(Message.MessageType.ERROR, null, null, message));
+    }
+
+    /**
+     * Observable list of the shown messages, holding only their positions in the store.
+     */
+    private class ShownMessages extends ObservableListBase<Message> {
+        private int[] positions = new int[1024];
+        private int size;
+
+        @Override
+        public Message get(int index) {
+            Objects.checkIndex(index, size);
+            return store.get(positions[index]);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        IntStream positions() {
+            return Arrays.stream(positions, 0, size);
+        }
+
+        void append(int[] newPositions, int count) {
+            if (size + count > positions.length) {
+                positions = Arrays.copyOf(positions, Math.max(Math.max(size * 2, size + count), 1024));
+            }
+            System.arraycopy(newPositions, 0, positions, size, count);
+            beginChange();
+            nextAdd(size, size + count);
+            size += count;
+            endChange();
+        }
+
+        void replace(int[] newPositions) {
+            int[] oldPositions = positions;
+            int oldSize = size;
+            beginChange();
+            // the removed messages are only read if a listener asks for them
+            nextRemove(0, new AbstractList<Message>() {
+                @Override
+                public Message get(int index) {
+                    return store.get(oldPositions[index]);
+                }
+
+                @Override
+                public int size() {
+                    return oldSize;
+                }
+            });
+            positions = newPositions;
+            size = newPositions.length;
+            nextAdd(0, size);
+            endChange();
+        }
     }
 }
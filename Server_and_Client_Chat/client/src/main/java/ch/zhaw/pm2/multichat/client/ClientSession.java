@@ -0,0 +1,150 @@
+package ch.zhaw.pm2.multichat.client;
+
+import ch.zhaw.pm2.multichat.protocol.Histogram;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * State of a chat session which outlives a single connection, so the session can be resumed after the connection
+ * was lost: the user name, the resume token issued by the server and the id of the last message received per
+ * conversation, to request only the missed messages from the history.
+ * <p>Every message sent gets a request id, and is pending until the server acknowledged it. Many messages may be
+ * pending at the same time, after resuming the session only the pending ones are sent again. The time from sending a
+ * message until its acknowledgement is recorded as its round trip time.</p>
+ */
+public class ClientSession {
+    // key of the conversation of the broadcasts and private messages of the user
+    private static final String USER_CONVERSATION = "";
+
+    private final String userName;
+    private final Map<String, Long> lastMessageIds = new ConcurrentHashMap<>();
+    private volatile String resumeToken;
+    private final AtomicLong requestIds = new AtomicLong();
+    // messages not acknowledged yet by request id, i.e. in the order they have been sent
+    private final ConcurrentSkipListMap<Long, PendingMessage> pendingMessages = new ConcurrentSkipListMap<>();
+    private final Histogram roundTrips = new Histogram();
+
+    /**
+     * A message waiting for its acknowledgement.
+     *
+     * @param requestId of the message
+     * @param receiver of the message, a user name, {@code *} or a room prefixed with {@code #}
+     * @param payload of the message
+     * @param sentNanos time the message has been sent last, as returned by {@link System#nanoTime()}
+     * @param resent true if the message has been sent more than once
+     */
+    public record PendingMessage(long requestId, String receiver, String payload, long sentNanos, boolean resent) {}
+
+    /**
+     * Constructor
+     *
+     * @param userName of the user
+     */
+    public ClientSession(String userName) {
+        this.userName = userName;
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+
+    /**
+     * Returns the token to resume the session with.
+     *
+     * @return the token, null if the server did not issue one
+     */
+    public String getResumeToken() {
+        return resumeToken;
+    }
+
+    public void setResumeToken(String resumeToken) {
+        this.resumeToken = resumeToken;
+    }
+
+    /**
+     * Records the id of a received message.
+     *
+     * @param room of the message, null for broadcasts and private messages
+     * @param id of the message
+     */
+    public void messageReceived(String room, long id) {
+        lastMessageIds.merge(room == null ? USER_CONVERSATION : room, id, Math::max);
+    }
+
+    /**
+     * Returns the id of the last message received in the conversation.
+     *
+     * @param room of the conversation, null for broadcasts and private messages
+     * @return the id, 0 if no message has been received
+     */
+    public long getLastMessageId(String room) {
+        return lastMessageIds.getOrDefault(room == null ? USER_CONVERSATION : room, 0L);
+    }
+
+    /**
+     * Creates a pending message with a new request id, to be sent now.
+     *
+     * @param receiver of the message
+     * @param payload of the message
+     * @return the pending message
+     */
+    public PendingMessage newMessage(String receiver, String payload) {
+        PendingMessage message =
+            new PendingMessage(requestIds.incrementAndGet(), receiver, payload, System.nanoTime(), false);
+        pendingMessages.put(message.requestId(), message);
+        return message;
+    }
+
+    /**
+     * Marks the pending message as sent once more, to be sent now.
+     *
+     * @param message to send again
+     * @return the updated message, null if it has been acknowledged meanwhile
+     */
+    public PendingMessage resend(PendingMessage message) {
+        return pendingMessages.computeIfPresent(message.requestId(), (id, pending) ->
+            new PendingMessage(id, pending.receiver(), pending.payload(), System.nanoTime(), true));
+    }
+
+    /**
+     * Removes an acknowledged message from the pending messages and records its round trip time. The round trip of
+     * a message sent more than once is not recorded, as it is not known which sending has been acknowledged.
+     *
+     * @param requestId of the acknowledged message
+     * @return the message, null if it is not pending, e.g. if it has been acknowledged already
+     */
+    public PendingMessage acknowledged(long requestId) {
+        PendingMessage message = pendingMessages.remove(requestId);
+        if (message != null && !message.resent()) {
+            roundTrips.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - message.sentNanos()));
+        }
+        return message;
+    }
+
+    /**
+     * Returns the messages not acknowledged yet, in the order they have been sent.
+     *
+     * @return a live view of the pending messages
+     */
+    public Collection<PendingMessage> getPendingMessages() {
+        return pendingMessages.values();
+    }
+
+    public int getPendingCount() {
+        return pendingMessages.size();
+    }
+
+    /**
+     * Returns the round trip times of the acknowledged messages.
+     *
+     * @return the round trip times in microseconds
+     */
+    public Histogram getRoundTrips() {
+        return roundTrips;
+    }
+}
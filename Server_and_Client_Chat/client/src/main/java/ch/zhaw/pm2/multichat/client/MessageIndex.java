@@ -0,0 +1,246 @@
+package ch.zhaw.pm2.multichat.client;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Inverted index of the messages of the client, to find the messages containing a filter string without scanning
+ * all of them. Messages are identified by their position in the {@link MessageStore}.
+ * <p>The sender, receiver and text of a message are indexed by all their substrings of up to three characters
+ * (grams). A filter of up to three characters is a gram itself, so its list holds exactly the matching messages.
+ * A message can only contain a longer filter if it contains all trigrams of the filter, so only the messages in the
+ * shortest list of these trigrams have to be checked.</p>
+ * <p>The messages are indexed in blocks of {@value #BLOCK_SIZE}. Only the lists of the current block are kept on the
+ * heap; a completed block is written to the spill file of the store as a sorted table of its grams and lists, which
+ * is searched in the memory mapping. So the heap used by the index does not grow with the messages received.</p>
+ */
+class MessageIndex {
+    /**
+     * Number of messages per block, the positions within a block are stored as unsigned 16 bit offsets.
+     */
+    static final int BLOCK_SIZE = 4096;
+    private static final int MAX_GRAM_LENGTH = 3;
+    private static final int[] NO_POSITIONS = new int[0];
+
+    private final MessageStore store;
+    // location of each completed block in the spill file, NOT_SPILLED if it could not be written
+    private long[] blocks = new long[64];
+    private int blockCount;
+    // gram -> offsets of the messages in the current block
+    private final Map<Long, PositionList> current = new HashMap<>();
+
+    /**
+     * Constructor
+     *
+     * @param store holding the indexed messages, its spill file also receives the completed blocks
+     */
+    MessageIndex(MessageStore store) {
+        this.store = Objects.requireNonNull(store, "Store must not be null");
+    }
+
+    /**
+     * Adds a message to the index. Messages must be added in the order of their positions, without gaps.
+     *
+     * @param position of the message in the store
+     * @param message to index
+     */
+    void add(int position, Message message) {
+        int offset = position - blockCount * BLOCK_SIZE;
+        addGrams(message.getSender(), offset);
+        addGrams(message.getReceiver(), offset);
+        addGrams(message.getMessage(), offset);
+        if (offset == BLOCK_SIZE - 1) completeBlock();
+    }
+
+    private void addGrams(String value, int offset) {
+        if (value == null) return;
+        for (int i = 0; i < value.length(); i++) {
+            for (int length = 1; length <= Math.min(MAX_GRAM_LENGTH, value.length() - i); length++) {
+                current.computeIfAbsent(gram(value, i, length), gram -> new PositionList()).add(offset);
+            }
+        }
+    }
+
+    /**
+     * Writes the current block to the spill file: the number of grams, the sorted grams, the start of the list of
+     * each gram and the end of the last list, followed by the lists.
+     */
+    private void completeBlock() {
+        long[] grams = current.keySet().stream().mapToLong(Long::longValue).sorted().toArray();
+        int entries = current.values().stream().mapToInt(PositionList::size).sum();
+        ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + grams.length * (Long.BYTES + Integer.BYTES)
+            + Integer.BYTES + entries * Character.BYTES);
+        record.putInt(grams.length);
+        for (long gram : grams) {
+            record.putLong(gram);
+        }
+        int start = 0;
+        for (long gram : grams) {
+            record.putInt(start);
+            start += current.get(gram).size();
+        }
+        record.putInt(start);
+        for (long gram : grams) {
+            current.get(gram).writeTo(record);
+        }
+        if (blockCount == blocks.length) blocks = Arrays.copyOf(blocks, blockCount * 2);
+        blocks[blockCount++] = store.spill(record.flip());
+        current.clear();
+    }
+
+    /**
+     * Finds the messages whose sender, receiver or text contains the filter.
+     *
+     * @param filter to search for, must not be empty
+     * @return the positions of the matching messages
+     */
+    BitSet find(String filter) {
+        BitSet result = new BitSet(store.size());
+        boolean exact = filter.length() <= MAX_GRAM_LENGTH;
+        long[] grams = exact ? new long[] {gram(filter, 0, filter.length())} : trigrams(filter);
+        for (int block = 0; block <= blockCount; block++) {
+            int base = block * BLOCK_SIZE;
+            if (block < blockCount && blocks[block] == MessageStore.NOT_SPILLED) {
+                // the spill file failed, most of these messages are not available anymore anyway
+                for (int position = base; position < base + BLOCK_SIZE; position++) {
+                    if (matches(store.get(position), filter)) result.set(position);
+                }
+                continue;
+            }
+            for (int offset : candidates(block, grams)) {
+                if (exact || matches(store.get(base + offset), filter)) result.set(base + offset);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the shortest list of the grams in the block, as a message must contain all of them.
+     */
+    private int[] candidates(int block, long[] grams) {
+        int[] candidates = null;
+        StoredBlock stored = block < blockCount ? new StoredBlock(store.readSpilled(blocks[block])) : null;
+        for (long gram : grams) {
+            int[] positions;
+            if (stored != null) {
+                positions = stored.get(gram);
+            } else {
+                PositionList list = current.get(gram);
+                positions = list == null ? null : list.toArray();
+            }
+            if (positions == null) return NO_POSITIONS;
+            if (candidates == null || positions.length < candidates.length) candidates = positions;
+        }
+        return candidates;
+    }
+
+    /**
+     * Indicates if the sender, receiver or text of the message contains the filter.
+     *
+     * @param message to check
+     * @param filter to search for
+     * @return true if the message contains the filter
+     */
+    static boolean matches(Message message, String filter) {
+        return Objects.requireNonNullElse(message.getSender(), "").contains(filter)
+            || Objects.requireNonNullElse(message.getReceiver(), "").contains(filter)
+            || Objects.requireNonNullElse(message.getMessage(), "").contains(filter);
+    }
+
+    private static long[] trigrams(String filter) {
+        long[] grams = new long[filter.length() - MAX_GRAM_LENGTH + 1];
+        for (int i = 0; i < grams.length; i++) {
+            grams[i] = gram(filter, i, MAX_GRAM_LENGTH);
+        }
+        return grams;
+    }
+
+    /**
+     * Packs a gram into a long: its length followed by its characters, 16 bits each.
+     */
+    private static long gram(String value, int start, int length) {
+        long gram = length;
+        for (int i = start; i < start + length; i++) {
+            gram = gram << Character.SIZE | value.charAt(i);
+        }
+        return gram;
+    }
+
+    /**
+     * Completed block read from the spill file, see {@link #completeBlock()}.
+     */
+    private static class StoredBlock {
+        private final ByteBuffer buffer;
+        private final int gramCount;
+        private final int startsAt;
+        private final int listsAt;
+
+        StoredBlock(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.gramCount = buffer.getInt(0);
+            this.startsAt = Integer.BYTES + gramCount * Long.BYTES;
+            this.listsAt = startsAt + (gramCount + 1) * Integer.BYTES;
+        }
+
+        /**
+         * Looks up the list of a gram by binary search.
+         *
+         * @param gram to look up
+         * @return the offsets of the messages, null if no message contains the gram
+         */
+        int[] get(long gram) {
+            int low = 0;
+            int high = gramCount - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                long value = buffer.getLong(Integer.BYTES + middle * Long.BYTES);
+                if (value < gram) {
+                    low = middle + 1;
+                } else if (value > gram) {
+                    high = middle - 1;
+                } else {
+                    int start = buffer.getInt(startsAt + middle * Integer.BYTES);
+                    int end = buffer.getInt(startsAt + (middle + 1) * Integer.BYTES);
+                    int[] positions = new int[end - start];
+                    for (int i = 0; i < positions.length; i++) {
+                        positions[i] = buffer.getChar(listsAt + (start + i) * Character.BYTES);
+                    }
+                    return positions;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Growable list of ascending message offsets within a block, without duplicates.
+     */
+    private static class PositionList {
+        private int[] positions = new int[4];
+        private int size;
+
+        void add(int position) {
+            if (size > 0 && positions[size - 1] == position) return;
+            if (size == positions.length) positions = Arrays.copyOf(positions, size * 2);
+            positions[size++] = position;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(positions, size);
+        }
+
+        void writeTo(ByteBuffer buffer) {
+            for (int i = 0; i < size; i++) {
+                buffer.putChar((char) positions[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package ch.zhaw.pm2.multichat.client;
+
+import ch.zhaw.pm2.multichat.protocol.AsyncLogger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * All messages of a client session, keeping only the most recent ones in memory.
+ * <p>Every message is written to a temporary spill file as it is appended, so messages dropping out of the in-memory
+ * window need no further work. The spill file is memory-mapped in segments; reading an older message decodes it from
+ * the mapping, letting the operating system decide which pages to keep in memory. Per message only its location in
+ * the file is kept on the heap. The {@link MessageIndex} writes its completed blocks to the same file.</p>
+ * <p>The window size is configured by the system property {@code multichat.client.window}. If the spill file can not
+ * be written, e.g. because the disk is full, messages dropping out of the window are replaced by a placeholder.</p>
+ * <p>The store is not thread-safe, it is used by the JavaFX application thread only.</p>
+ */
+class MessageStore {
+    private static final AsyncLogger logger = AsyncLogger.getLogger(MessageStore.class);
+    private static final int WINDOW_SIZE = Math.max(Integer.getInteger("multichat.client.window", 10_000), 1);
+    private static final int SEGMENT_BYTES = 16 * 1024 * 1024;
+    private static final Message.MessageType[] TYPES = Message.MessageType.values();
+    private static final Message UNAVAILABLE =
+        new Message(Message.MessageType.ERROR, null, null, "Message not available anymore");
+    /**
+     * Location of a message or record which could not be spilled.
+     */
+    static final long NOT_SPILLED = -1;
+
+    private final Message[] window = new Message[WINDOW_SIZE];
+    // location of each message in the spill file: segment number in the upper, offset in the lower 32 bits
+    private long[] locations = new long[1024];
+    private int size;
+    private FileChannel spillChannel;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private long spillFileSize;
+
+    /**
+     * Constructor. Creates the spill file, which is deleted when the client exits.
+     */
+    MessageStore() {
+        try {
+            Path spillFile = Files.createTempFile("multichat-", ".spill");
+            spillFile.toFile().deleteOnExit();
+            spillChannel = FileChannel.open(spillFile, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+        } catch (IOException e) {
+            logger.warn("Could not create the spill file, older messages will not be available: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Appends a message.
+     *
+     * @param message to append
+     * @return the position of the message
+     */
+    int append(Message message) {
+        if (size == locations.length) locations = Arrays.copyOf(locations, size * 2);
+        locations[size] = spill(message);
+        window[size % WINDOW_SIZE] = message;
+        return size++;
+    }
+
+    /**
+     * Returns the message at the position, reading it from the spill file if it is not in memory anymore.
+     *
+     * @param position of the message
+     * @return the message
+     */
+    Message get(int position) {
+        if (position < 0 || position >= size) throw new IndexOutOfBoundsException(position);
+        if (position >= size - WINDOW_SIZE) return window[position % WINDOW_SIZE];
+        long location = locations[position];
+        if (location == NOT_SPILLED) return UNAVAILABLE;
+        ByteBuffer record = segments.get((int) (location >>> 32)).duplicate();
+        record.position((int) location);
+        Message.MessageType type = TYPES[record.get()];
+        String sender = readString(record);
+        String receiver = readString(record);
+        return new Message(type, sender, receiver, readString(record));
+    }
+
+    /**
+     * Returns the number of messages.
+     *
+     * @return number of messages appended so far
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Writes a record of another structure to the spill file, e.g. a part of the {@link MessageIndex}.
+     *
+     * @param record the bytes between its position and limit are written
+     * @return location of the record, or {@link #NOT_SPILLED} if the spill file is not available
+     */
+    long spill(ByteBuffer record) {
+        if (spillChannel == null) return NOT_SPILLED;
+        try {
+            MappedByteBuffer segment = segmentFor(record.remaining());
+            long location = ((long) (segments.size() - 1) << 32) | segment.position();
+            segment.put(record);
+            return location;
+        } catch (IOException e) {
+            logger.error("Could not write the spill file, older messages will not be available", e);
+            closeSpillFile();
+            return NOT_SPILLED;
+        }
+    }
+
+    /**
+     * Returns a record written by {@link #spill(ByteBuffer)}.
+     *
+     * @param location of the record
+     * @return read-only buffer starting with the record, the caller knows its length
+     */
+    ByteBuffer readSpilled(long location) {
+        ByteBuffer record = segments.get((int) (location >>> 32)).asReadOnlyBuffer();
+        record.position((int) location);
+        return record.slice();
+    }
+
+    /**
+     * Writes the message to the current segment of the spill file.
+     *
+     * @param message to write
+     * @return location of the message, or {@link #NOT_SPILLED} if the spill file is not available
+     */
+    private long spill(Message message) {
+        if (spillChannel == null) return NOT_SPILLED;
+        byte[] sender = encode(message.getSender());
+        byte[] receiver = encode(message.getReceiver());
+        byte[] text = encode(message.getMessage());
+        int length = 1 + 3 * Integer.BYTES + length(sender) + length(receiver) + length(text);
+        try {
+            MappedByteBuffer segment = segmentFor(length);
+            long location = ((long) (segments.size() - 1) << 32) | segment.position();
+            segment.put((byte) message.getType().ordinal());
+            writeString(segment, sender);
+            writeString(segment, receiver);
+            writeString(segment, text);
+            return location;
+        } catch (IOException e) {
+            logger.error("Could not write the spill file, older messages will not be available", e);
+            closeSpillFile();
+            return NOT_SPILLED;
+        }
+    }
+
+    /**
+     * Returns the current segment of the spill file, starting a new segment if the record does not fit.
+     *
+     * @param length of the record to write
+     * @return the segment, positioned where the record is to be written
+     * @throws IOException if the spill file can not be extended
+     */
+    private MappedByteBuffer segmentFor(int length) throws IOException {
+        MappedByteBuffer segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || segment.remaining() < length) {
+            int segmentBytes = Math.max(SEGMENT_BYTES, length);
+            segment = spillChannel.map(FileChannel.MapMode.READ_WRITE, spillFileSize, segmentBytes);
+            spillFileSize += segmentBytes;
+            segments.add(segment);
+        }
+        return segment;
+    }
+
+    private void closeSpillFile() {
+        try {
+            spillChannel.close();
+        } catch (IOException e) {
+            logger.warn("Could not close the spill file: {}", e.getMessage());
+        }
+        spillChannel = null;
+    }
+
+    private static byte[] encode(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    // a null string is written with length -1
+    private static void writeString(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length).put(bytes);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
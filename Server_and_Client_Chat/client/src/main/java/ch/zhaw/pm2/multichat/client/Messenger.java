@@ -2,27 +2,90 @@ package ch.zhaw.pm2.multichat.client;
 
 import ch.zhaw.pm2.multichat.protocol.ChatProtocolException;
 import ch.zhaw.pm2.multichat.protocol.ConnectionHandler;
+import javafx.application.Platform;
 import javafx.beans.property.BooleanProperty;
-import javafx.beans.property.StringProperty;
+import javafx.beans.property.SimpleBooleanProperty;
+import javafx.collections.ObservableList;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static ch.zhaw.pm2.multichat.protocol.ConnectionHandler.State.CONNECTED;
 
 /**
  * Class processes the messages for the client. It represents the model of the client
+ * <p>Messages written by other threads, e.g. received by the connection handler, are queued and added to the message
+ * list in batches on the JavaFX application thread: at most one drain task is scheduled at a time, so a burst of
+ * messages results in one update of the UI per batch instead of one per message, and the writing thread never
+ * waits for the UI.</p>
  */
 public class Messenger {
-    private ClientConnectionHandler connectionHandler;
+    /**
+     * Maximum number of messages added to the message list by one task on the JavaFX application thread,
+     * so the UI stays responsive during a long burst.
+     */
+    private static final int MAX_BATCH_SIZE = 5000;
+    /**
+     * Delay before the first attempt to resume a lost session, doubled for every further attempt.
+     */
+    private static final Duration FIRST_RECONNECT_DELAY = Duration.ofSeconds(1);
+    private static final Duration MAX_RECONNECT_DELAY = Duration.ofSeconds(30);
+    private static final int MAX_RECONNECT_ATTEMPTS = 8;
+    /**
+     * Maximum number of sent messages waiting for their acknowledgement.
+     */
+    private static final int MAX_PENDING_ACKS = 1000;
+
+    private volatile ClientConnectionHandler connectionHandler;
     private ClientMessageList messageList = new ClientMessageList();
     private String userName;
+    private ClientSession session;
+    private String serverAddress;
+    private int serverPort;
+    private final BooleanProperty connectedProperty = new SimpleBooleanProperty(false);
+    private final ScheduledExecutorService reconnectTimer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "reconnect");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ScheduledFuture<?> reconnectTask;
+    private int reconnectAttempts;
+    private final Queue<Message> pendingMessages = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    // until then the server asked not to send any requests, as System.nanoTime()
+    private volatile long backoffUntil = System.nanoTime();
 
-    public StringProperty getMessageBound() {
-        return messageList.getToBeShownMessages();
+    /**
+     * Returns the messages to display, i.e. the messages passing the filter.
+     *
+     * @return the observable list of the shown messages, changed by the JavaFX application thread only
+     */
+    public ObservableList<Message> getShownMessages() {
+        return messageList.getShownMessages();
     }
 
     public BooleanProperty getConnectedProperty() {
-        return connectionHandler.getConnectedProperty();}
+        return connectedProperty;
+    }
+
+    /**
+     * Sets the connected property on the JavaFX application thread, as listeners of it update the UI.
+     *
+     * @param connected true if the user is connected
+     */
+    void setConnected(boolean connected) {
+        Platform.runLater(() -> connectedProperty.set(connected));
+    }
 
     /**
      * Either connects or disconnects, based on the current connection state
@@ -40,15 +103,20 @@ public class Messenger {
     }
 
     /**
-     * Connects the client to a Server
+     * Connects the client to a Server, starting a new session
      *
      * @param userName the username of the sender
      * @param serverAddress the server address
      * @param serverPort the port that the server uses
      */
-    private void connect(String userName, String serverAddress, String serverPort) {
+    private synchronized void connect(String userName, String serverAddress, String serverPort) {
+        cancelReconnect();
         try {
-            startConnectionHandler(userName, serverAddress, Integer.parseInt(serverPort));
+            this.userName = userName;
+            this.session = new ClientSession(userName);
+            this.serverAddress = serverAddress;
+            this.serverPort = Integer.parseInt(serverPort);
+            startConnectionHandler();
             connectionHandler.connect();
         } catch(Exception e) {
             messageList.addError(e.getMessage());
@@ -56,9 +124,14 @@ public class Messenger {
     }
 
     /**
-     * Disconnects client from server if there is a connection, otherwise adds Error to MessageList
+     * Disconnects client from server if there is a connection, otherwise adds Error to MessageList.
+     * Stops trying to resume a lost session.
      */
-    public void disconnect() {
+    public synchronized void disconnect() {
+        if (cancelReconnect()) {
+            writeInfo("Stopped resuming the session");
+            return;
+        }
         if (connectionHandler == null) {
             messageList.addError("No connection handler");
             return;
@@ -71,50 +144,188 @@ public class Messenger {
     }
 
     /**
-     * Starts the connectionHandler based on the parameters.
+     * Starts a connectionHandler for the session and the server of the last connect.
      *
-     * @param userName the username of the sender
-     * @param serverAddress the server address
-     * @param serverPort the port that the server uses
      * @throws IOException if an error occurred opening the connection, e.g. server is not responding.
      */
-    private void startConnectionHandler(String userName, String serverAddress, int serverPort) throws IOException {
-        this.userName = userName;
-        connectionHandler = new ClientConnectionHandler(serverAddress, serverPort, this.userName, this);
+    private void startConnectionHandler() throws IOException {
+        connectionHandler = new ClientConnectionHandler(serverAddress, serverPort, session, this);
         new Thread(connectionHandler).start();
     }
 
     /**
-     * Adds a info message to the messageList
+     * Called by the connection handler if its connection was lost unexpectedly. Tries to resume the session.
+     *
+     * @param handler whose connection was lost
+     */
+    synchronized void connectionLost(ClientConnectionHandler handler) {
+        if (handler != connectionHandler) return;
+        writeInfo("Connection lost, trying to resume the session");
+        reconnectAttempts = 0;
+        scheduleReconnect();
+    }
+
+    /**
+     * Schedules the next attempt to resume the session. The delay doubles with every attempt up to a maximum,
+     * and a random part of it is left out, so clients losing their connection at the same time do not all
+     * reconnect at the same time.
+     */
+    private void scheduleReconnect() {
+        if (reconnectAttempts >= MAX_RECONNECT_ATTEMPTS) {
+            writeError("Could not resume the session, please connect again");
+            return;
+        }
+        long delayMillis = Math.min(FIRST_RECONNECT_DELAY.toMillis() << reconnectAttempts,
+            MAX_RECONNECT_DELAY.toMillis());
+        delayMillis -= ThreadLocalRandom.current().nextLong(delayMillis / 2 + 1);
+        reconnectAttempts++;
+        reconnectTask = reconnectTimer.schedule(this::reconnect, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens a new connection and resumes the session. Runs on the reconnect timer.
+     */
+    private synchronized void reconnect() {
+        if (reconnectTask == null) return;
+        reconnectTask = null;
+        try {
+            startConnectionHandler();
+            connectionHandler.resume();
+        } catch (IOException | ChatProtocolException e) {
+            scheduleReconnect();
+        }
+    }
+
+    /**
+     * Cancels the scheduled attempt to resume the session.
+     *
+     * @return true if an attempt was scheduled
+     */
+    private boolean cancelReconnect() {
+        if (reconnectTask == null) return false;
+        reconnectTask.cancel(false);
+        reconnectTask = null;
+        return true;
+    }
+
+    /**
+     * Adds a info message to the messageList. May be called by any thread.
      *
      * @param text the info message
      */
     public void writeInfo(String text) {
-        messageList.addInfo(text);
+        post(new Message(Message.MessageType.INFO, null, null, text));
     }
 
     /**
-     * Adds a error message to the messageList
+     * Adds a error message to the messageList. May be called by any thread.
      *
      * @param text the erro message
      */
     public void writeError(String text) {
-        messageList.addError(text);
+        post(new Message(Message.MessageType.ERROR, null, null, text));
+    }
+
+    /**
+     * Stops sending messages and room changes for the given time, because the server rate limited a request.
+     * Afterwards the messages dropped by the server, i.e. not acknowledged, are sent again. May be called by any
+     * thread.
+     *
+     * @param delay requested by the server
+     */
+    public void backOff(Duration delay) {
+        backoffUntil = System.nanoTime() + delay.toNanos();
+        reconnectTimer.schedule(this::resendPendingMessages, delay.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sends the messages not acknowledged yet again, if connected. Runs on the reconnect timer.
+     */
+    private void resendPendingMessages() {
+        ClientConnectionHandler handler = connectionHandler;
+        if (handler != null && handler.getState() == CONNECTED) handler.resendPendingMessages();
+    }
+
+    /**
+     * Indicates if the session is being resumed, so messages can be sent after it has been resumed.
+     *
+     * @return true if an attempt to resume the session is scheduled
+     */
+    private synchronized boolean isResuming() {
+        return reconnectTask != null;
+    }
+
+    /**
+     * Checks if the server asked to back off, and tells the user how long to wait.
+     *
+     * @return true if nothing may be sent yet
+     */
+    private boolean isBackingOff() {
+        long remainingNanos = backoffUntil - System.nanoTime();
+        if (remainingNanos <= 0) return false;
+        long seconds = Math.max(TimeUnit.NANOSECONDS.toSeconds(remainingNanos + 999_999_999L), 1);
+        messageList.addError("Sending too fast, please wait " + seconds + " s");
+        return true;
     }
 
     /**
-     * Sends the message via connectionHandler
+     * Sends the message via connectionHandler. The message stays pending until the server acknowledged it, and is
+     * sent again if the session is resumed before. While the session is being resumed, the message is only sent
+     * after resuming.
      *
      * @param messageType the type of the message
-     * @param receiver that will receive the message
+     * @param receiver that will receive the message, a room if it starts with "#"
      * @param messageBody the message itself
      */
     public void sendMessage(Message.MessageType messageType, String receiver, String messageBody) {
+        ClientConnectionHandler handler = connectionHandler;
+        if (handler == null) {
+            messageList.addError("No connection handler");
+            return;
+        }
+        if (isBackingOff()) return;
+        boolean connected = handler.getState() == CONNECTED;
+        if (!connected && !isResuming()) {
+            messageList.addError("Not connected");
+            return;
+        }
+        if (session.getPendingCount() >= MAX_PENDING_ACKS) {
+            messageList.addError("Too many messages waiting for the server, please wait");
+            return;
+        }
+        ClientSession.PendingMessage message = session.newMessage(receiver, messageBody);
+        if (!connected) return;
+        try {
+            handler.sendMessage(message);
+        } catch (ChatProtocolException e) {
+            // the connection has been lost meanwhile, the message is sent after resuming
+        }
+    }
+
+    /**
+     * Joins or leaves a room via connectionHandler
+     *
+     * @param room the name of the room, with or without leading "#"
+     * @param join true to join, false to leave the room
+     */
+    public void changeRoom(String room, boolean join) {
         if (connectionHandler == null) {
             messageList.addError("No connection handler");
             return;
         }
-        connectionHandler.sendData(userName, receiver, ConnectionHandler.DataType.MESSAGE, messageBody);
+        if (isBackingOff()) return;
+        if (room.startsWith(ConnectionHandler.ROOM_PREFIX)) {
+            room = room.substring(ConnectionHandler.ROOM_PREFIX.length());
+        }
+        try {
+            if (join) {
+                connectionHandler.joinRoom(room);
+            } else {
+                connectionHandler.leaveRoom(room);
+            }
+        } catch (ChatProtocolException e) {
+            messageList.addError(e.getMessage());
+        }
     }
 
     /**
@@ -127,11 +338,40 @@ public class Messenger {
     }
 
     /**
-     * Processes received messages
+     * Processes received messages. May be called by any thread.
      *
      * @param message the message itself
      */
     public void receiveMessage(Message message) {
-        messageList.addMessage(message);
+        post(message);
+    }
+
+    /**
+     * Queues a message to be added to the message list and schedules the drain task if not scheduled yet.
+     *
+     * @param message to add
+     */
+    private void post(Message message) {
+        pendingMessages.add(message);
+        if (drainScheduled.compareAndSet(false, true)) {
+            Platform.runLater(this::drainPendingMessages);
+        }
+    }
+
+    /**
+     * Adds the queued messages to the message list. Runs on the JavaFX application thread.
+     */
+    private void drainPendingMessages() {
+        // cleared first, so a message queued while draining schedules the next task
+        drainScheduled.set(false);
+        List<Message> batch = new ArrayList<>();
+        Message message;
+        while (batch.size() < MAX_BATCH_SIZE && (message = pendingMessages.poll()) != null) {
+            batch.add(message);
+        }
+        if (!batch.isEmpty()) messageList.addMessages(batch);
+        if (!pendingMessages.isEmpty() && drainScheduled.compareAndSet(false, true)) {
+            Platform.runLater(this::drainPendingMessages);
+        }
     }
 }
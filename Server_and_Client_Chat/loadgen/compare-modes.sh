@@ -0,0 +1,52 @@
+#!/usr/bin/env sh
+#
+# Compares the connection modes of the server under load: for each number of users and each mode, a server is
+# started, the load generator runs against it and the platform threads, the heap and the latencies are reported.
+#
+# Usage (from the project root): loadgen/compare-modes.sh
+# Settings (environment variables):
+#   USERS     numbers of users to test            (default "1000 5000 10000")
+#   MODES     connection modes of the server      (default "THREADS VIRTUAL_THREADS")
+#   RATE      messages per second of each user    (default 1)
+#   RAMPUP    seconds over which the users connect (default 20)
+#   DURATION  seconds the users chat after the ramp-up (default 60)
+#   PORT      port of the server                  (default 22243)
+#   HEAP      maximum heap of the server          (default 2g)
+# Each user holds one connection, so the open file limit (ulimit -n) must exceed the number of users on both sides.
+
+set -e
+
+USERS=${USERS:-"1000 5000 10000"}
+MODES=${MODES:-"THREADS VIRTUAL_THREADS"}
+RATE=${RATE:-1}
+RAMPUP=${RAMPUP:-20}
+DURATION=${DURATION:-60}
+PORT=${PORT:-22243}
+HEAP=${HEAP:-2g}
+
+cd "$(dirname "$0")/.."
+./gradlew --no-daemon -q server:installDist loadgen:installDist
+RESULTS=loadgen/build/compare-modes
+mkdir -p "$RESULTS"
+
+for users in $USERS; do
+    for mode in $MODES; do
+        log="$RESULTS/$mode-$users"
+        SERVER_OPTS="-Xmx$HEAP -Dmultichat.metrics.interval=1 -Dmultichat.rate.messages=0" \
+            server/build/install/server/bin/server "$PORT" "$mode" > "$log-server.log" 2>&1 &
+        server=$!
+        sleep 3
+        LOADGEN_OPTS="-Dloadgen.users=$users -Dloadgen.rate=$RATE -Dloadgen.rampup=$RAMPUP -Dloadgen.duration=$DURATION" \
+            loadgen/build/install/loadgen/bin/loadgen localhost "$PORT" > "$log-load.log" 2>&1 || true
+        kill "$server"
+        wait "$server" || true
+
+        echo "== $mode, $users users"
+        # highest values of the metrics dumps of the server during the test
+        grep -o 'jvm: threads=[0-9]* peak=[0-9]* heap=[0-9]*MiB' "$log-server.log" \
+            | awk -F'[= ]' '{ if ($5 > peak) peak = $5; sub("MiB", "", $7); if ($7 > heap) heap = $7 }
+                END { printf "  server:     %d platform threads (peak), %d MiB heap used (max)\n", peak, heap }'
+        sed -n '/^Summary/,$p' "$log-load.log" | tail -n +2
+    done
+done
+echo "Logs of the server and the load generator: $RESULTS"
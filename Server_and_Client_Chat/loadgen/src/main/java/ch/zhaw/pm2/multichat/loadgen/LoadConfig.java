@@ -0,0 +1,119 @@
+package ch.zhaw.pm2.multichat.loadgen;
+
+import java.util.Properties;
+
+/**
+ * Settings of a load test. The defaults can be overridden using system properties,
+ * e.g. {@code -Dloadgen.users=5000}.
+ */
+public class LoadConfig {
+    private static final String PREFIX = "loadgen.";
+
+    private final int users;
+    private final double rate;
+    private final double privateRatio;
+    private final int messageSize;
+    private final int rampUpSeconds;
+    private final int durationSeconds;
+    private final String userPrefix;
+
+    /**
+     * Creates the configuration from the given properties, using the defaults for properties not set.
+     * <ul>
+     *     <li>{@code loadgen.users}: number of simulated users (default 100)</li>
+     *     <li>{@code loadgen.rate}: messages sent per second by each user (default 1.0)</li>
+     *     <li>{@code loadgen.private}: share of private messages, the others are broadcasts (default 0.9)</li>
+     *     <li>{@code loadgen.size}: payload size of a message in characters (default 64)</li>
+     *     <li>{@code loadgen.rampup}: seconds over which the users connect (default 10)</li>
+     *     <li>{@code loadgen.duration}: seconds the users chat after the ramp-up (default 60)</li>
+     *     <li>{@code loadgen.prefix}: prefix of the user names, to run several generators against one server
+     *     (default "load")</li>
+     * </ul>
+     *
+     * @param properties to read the configuration from
+     * @throws IllegalArgumentException if a property has an illegal value
+     */
+    public LoadConfig(Properties properties) {
+        this.users = integer(properties, "users", 100);
+        if (users < 1) throw new IllegalArgumentException(PREFIX + "users must be positive: " + users);
+        this.rate = decimal(properties, "rate", 1.0);
+        if (rate <= 0) throw new IllegalArgumentException(PREFIX + "rate must be positive: " + rate);
+        this.privateRatio = decimal(properties, "private", 0.9);
+        if (privateRatio < 0 || privateRatio > 1) {
+            throw new IllegalArgumentException(PREFIX + "private must be between 0 and 1: " + privateRatio);
+        }
+        this.messageSize = integer(properties, "size", 64);
+        if (messageSize < 0) throw new IllegalArgumentException("Negative message size: " + messageSize);
+        this.rampUpSeconds = integer(properties, "rampup", 10);
+        if (rampUpSeconds < 0) throw new IllegalArgumentException("Negative ramp-up: " + rampUpSeconds);
+        this.durationSeconds = integer(properties, "duration", 60);
+        if (durationSeconds < 1) {
+            throw new IllegalArgumentException(PREFIX + "duration must be positive: " + durationSeconds);
+        }
+        this.userPrefix = properties.getProperty(PREFIX + "prefix", "load").strip();
+    }
+
+    /**
+     * Creates the configuration from the system properties.
+     *
+     * @return the configuration
+     * @see #LoadConfig(Properties)
+     */
+    public static LoadConfig fromSystemProperties() {
+        return new LoadConfig(System.getProperties());
+    }
+
+    private static int integer(Properties properties, String name, int defaultValue) {
+        String value = properties.getProperty(PREFIX + name);
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value.strip());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Illegal value for " + PREFIX + name + ": " + value);
+        }
+    }
+
+    private static double decimal(Properties properties, String name, double defaultValue) {
+        String value = properties.getProperty(PREFIX + name);
+        if (value == null) return defaultValue;
+        try {
+            return Double.parseDouble(value.strip());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Illegal value for " + PREFIX + name + ": " + value);
+        }
+    }
+
+    public int getUsers() {
+        return users;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public double getPrivateRatio() {
+        return privateRatio;
+    }
+
+    public int getMessageSize() {
+        return messageSize;
+    }
+
+    public int getRampUpSeconds() {
+        return rampUpSeconds;
+    }
+
+    public int getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    /**
+     * Returns the name of a simulated user.
+     *
+     * @param index of the user, from 0 to the number of users - 1
+     * @return the user name
+     */
+    public String userName(int index) {
+        return userPrefix + "-" + index;
+    }
+}
@@ -0,0 +1,180 @@
+package ch.zhaw.pm2.multichat.loadgen;
+
+import ch.zhaw.pm2.multichat.protocol.Histogram;
+import ch.zhaw.pm2.multichat.protocol.NetworkHandler;
+import ch.zhaw.pm2.multichat.protocol.VirtualThreads;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless load generator for the multichat server.
+ * <p>Simulates many users, each connecting to the server, sending messages at a fixed rate to random other users
+ * or to all users, and receiving the messages of the others. Every user is served by two threads, one sending and
+ * one receiving, which are virtual threads if the JVM supports them, so thousands of users are cheap.
+ * Every second the throughput and the latencies of that second are reported, at the end the totals.</p>
+ * <p>The load is configured using system properties, see {@link LoadConfig}.</p>
+ */
+public class LoadGenerator {
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    // time for messages in flight to arrive before the users disconnect
+    private static final Duration DRAIN_TIME = Duration.ofSeconds(2);
+
+    private final String host;
+    private final int port;
+    private final LoadConfig config;
+    private final LoadStatistics statistics = new LoadStatistics();
+    private final String padding;
+    private final ExecutorService userService;
+
+    public static void main(String[] args) {
+        String host = NetworkHandler.DEFAULT_ADDRESS.getHostAddress();
+        int port = NetworkHandler.DEFAULT_PORT;
+        switch (args.length) {
+            case 0 -> { }
+            case 1 -> host = args[0];
+            case 2 -> {
+                host = args[0];
+                port = Integer.parseInt(args[1]);
+            }
+            default -> {
+                System.out.println("Illegal number of arguments:  [<ServerHost> [<ServerPort>]]");
+                return;
+            }
+        }
+        LoadConfig config;
+        try {
+            config = LoadConfig.fromSystemProperties();
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        try {
+            new LoadGenerator(host, port, config).run();
+        } catch (InterruptedException e) {
+            System.out.println("Load test interrupted");
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param host of the server
+     * @param port of the server
+     * @param config of the load test
+     */
+    public LoadGenerator(String host, int port, LoadConfig config) {
+        this.host = host;
+        this.port = port;
+        this.config = config;
+        // the timestamp takes about 15 characters of the payload
+        this.padding = "x".repeat(Math.max(config.getMessageSize() - 16, 0));
+        this.userService = VirtualThreads.isSupported()
+            ? VirtualThreads.newPerTaskExecutor()
+            : Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Runs the load test and prints the results. Blocks until the test is finished.
+     *
+     * @return the statistics of the test
+     * @throws InterruptedException if interrupted while waiting for the test to finish
+     */
+    public LoadStatistics run() throws InterruptedException {
+        System.out.printf("Load test against %s:%d: %d users, %.2f messages/s each, %.0f%% private, %d s ramp-up, "
+                + "%d s duration (%s threads)%n", host, port, config.getUsers(), config.getRate(),
+            config.getPrivateRatio() * 100, config.getRampUpSeconds(), config.getDurationSeconds(),
+            VirtualThreads.isSupported() ? "virtual" : "platform");
+        long startNanos = System.nanoTime();
+        long rampUpNanos = TimeUnit.SECONDS.toNanos(config.getRampUpSeconds());
+        long endNanos = startNanos + rampUpNanos + TimeUnit.SECONDS.toNanos(config.getDurationSeconds());
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        long[] lastCounts = new long[2];
+        reporter.scheduleAtFixedRate(() -> report(startNanos, lastCounts), 1, 1, TimeUnit.SECONDS);
+        CountDownLatch finished = new CountDownLatch(config.getUsers());
+        for (int i = 0; i < config.getUsers(); i++) {
+            int index = i;
+            long connectNanos = startNanos + rampUpNanos * i / config.getUsers();
+            userService.execute(() -> {
+                try {
+                    simulate(index, connectNanos, endNanos);
+                } finally {
+                    finished.countDown();
+                }
+            });
+        }
+        long waitNanos = endNanos - System.nanoTime() + DRAIN_TIME.toNanos() + CONNECT_TIMEOUT.toNanos();
+        if (!finished.await(waitNanos, TimeUnit.NANOSECONDS)) {
+            System.out.println("Some users did not finish in time");
+        }
+        reporter.shutdownNow();
+        userService.shutdownNow();
+        printSummary(TimeUnit.NANOSECONDS.toSeconds(endNanos - startNanos));
+        return statistics;
+    }
+
+    /**
+     * Connects a user, lets it chat until the end of the test and disconnects it.
+     */
+    private void simulate(int index, long connectNanos, long endNanos) {
+        SimulatedUser user;
+        try {
+            TimeUnit.NANOSECONDS.sleep(connectNanos - System.nanoTime());
+            user = new SimulatedUser(host, port, config.userName(index), statistics);
+        } catch (IOException e) {
+            statistics.connectFailed();
+            return;
+        } catch (InterruptedException e) {
+            return;
+        }
+        userService.execute(user::startReceiving);
+        try {
+            if (!user.connect(CONNECT_TIMEOUT)) {
+                statistics.connectFailed();
+                user.stopReceiving();
+                return;
+            }
+            user.chat(config, index, padding, endNanos);
+            TimeUnit.NANOSECONDS.sleep(endNanos + DRAIN_TIME.toNanos() - System.nanoTime());
+            user.disconnect();
+        } catch (InterruptedException e) {
+            user.stopReceiving();
+        }
+    }
+
+    private void report(long startNanos, long[] lastCounts) {
+        long sent = statistics.getSent();
+        long delivered = statistics.getDelivered();
+        Histogram latency = statistics.nextInterval();
+        System.out.printf("[%4ds] users %d/%d  sent %d/s  delivered %d/s  errors %d  latency ms: %s%n",
+            TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos), statistics.getConnected(),
+            config.getUsers(), sent - lastCounts[0], delivered - lastCounts[1], statistics.getErrors(),
+            format(latency));
+        lastCounts[0] = sent;
+        lastCounts[1] = delivered;
+    }
+
+    private void printSummary(long seconds) {
+        System.out.println("Summary");
+        System.out.printf("  users:      %d connected, %d failed to connect%n",
+            config.getUsers() - statistics.getConnectFailures(), statistics.getConnectFailures());
+        System.out.printf("  messages:   %d sent (%.1f/s), %d delivered (%.1f/s), %d errors%n",
+            statistics.getSent(), (double) statistics.getSent() / seconds,
+            statistics.getDelivered(), (double) statistics.getDelivered() / seconds, statistics.getErrors());
+        System.out.printf("  latency ms: %s%n", format(statistics.getLatency()));
+        System.out.printf("  round trip ms (%d acknowledged): %s%n", statistics.getAcknowledged(),
+            format(statistics.getRoundTrip()));
+    }
+
+    private static String format(Histogram latency) {
+        return String.format("p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f",
+            latency.getPercentile(50) / 1000.0, latency.getPercentile(90) / 1000.0,
+            latency.getPercentile(99) / 1000.0, latency.getPercentile(99.9) / 1000.0, latency.getMax() / 1000.0);
+    }
+}
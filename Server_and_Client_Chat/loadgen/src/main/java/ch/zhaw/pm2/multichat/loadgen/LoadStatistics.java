@@ -0,0 +1,116 @@
+package ch.zhaw.pm2.multichat.loadgen;
+
+import ch.zhaw.pm2.multichat.protocol.Histogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latencies of a load test, updated concurrently by all simulated users.
+ * Latencies are in microseconds.
+ */
+public class LoadStatistics {
+    private final LongAdder connected = new LongAdder();
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder acknowledged = new LongAdder();
+    private final Histogram latency = new Histogram();
+    private final Histogram roundTrip = new Histogram();
+    // latencies since the last report, replaced by each report
+    private volatile Histogram intervalLatency = new Histogram();
+
+    void userConnected() {
+        connected.increment();
+    }
+
+    void userDisconnected() {
+        connected.decrement();
+    }
+
+    void connectFailed() {
+        connectFailures.increment();
+    }
+
+    void messageSent() {
+        sent.increment();
+    }
+
+    void errorReceived() {
+        errors.increment();
+    }
+
+    /**
+     * Records a delivered message.
+     *
+     * @param latencyMicros time from the intended send time until the message has been received
+     */
+    void messageDelivered(long latencyMicros) {
+        delivered.increment();
+        latency.record(latencyMicros);
+        intervalLatency.record(latencyMicros);
+    }
+
+    /**
+     * Records a message acknowledged by the server.
+     *
+     * @param roundTripMicros time from the intended send time until the acknowledgement has been received
+     */
+    void messageAcknowledged(long roundTripMicros) {
+        acknowledged.increment();
+        roundTrip.record(roundTripMicros);
+    }
+
+    /**
+     * Starts a new reporting interval.
+     *
+     * @return the latencies recorded since the last call
+     */
+    Histogram nextInterval() {
+        Histogram previous = intervalLatency;
+        intervalLatency = new Histogram();
+        return previous;
+    }
+
+    public long getConnected() {
+        return connected.sum();
+    }
+
+    public long getConnectFailures() {
+        return connectFailures.sum();
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public long getAcknowledged() {
+        return acknowledged.sum();
+    }
+
+    /**
+     * Returns the latencies of all delivered messages.
+     *
+     * @return the latencies in microseconds
+     */
+    public Histogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Returns the round trip times of all acknowledged messages.
+     *
+     * @return the round trip times in microseconds
+     */
+    public Histogram getRoundTrip() {
+        return roundTrip;
+    }
+}
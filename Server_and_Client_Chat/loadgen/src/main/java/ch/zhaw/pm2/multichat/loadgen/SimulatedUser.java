@@ -0,0 +1,178 @@
+package ch.zhaw.pm2.multichat.loadgen;
+
+import ch.zhaw.pm2.multichat.protocol.ChatProtocolException;
+import ch.zhaw.pm2.multichat.protocol.CodecRegistry;
+import ch.zhaw.pm2.multichat.protocol.ConnectionHandler;
+import ch.zhaw.pm2.multichat.protocol.NetworkHandler;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static ch.zhaw.pm2.multichat.protocol.ConnectionHandler.DataType.*;
+import static ch.zhaw.pm2.multichat.protocol.ConnectionHandler.State.*;
+
+/**
+ * A headless chat user sending messages at a fixed rate and measuring the latency of the messages it receives.
+ * <p>Each message carries the time it was scheduled to be sent. As all simulated users run in the same JVM,
+ * the receiver computes the end-to-end latency using the same clock. Using the scheduled instead of the actual send
+ * time includes the time a message waited because the sender was blocked by a slow server, so the latencies are not
+ * hiding a stalled server (coordinated omission).</p>
+ * <p>Every message also carries a request id, so the sender measures the round trip until the server acknowledged
+ * the message as well.</p>
+ */
+public class SimulatedUser extends ConnectionHandler {
+    private static final char TIMESTAMP_SEPARATOR = ':';
+
+    private final LoadStatistics statistics;
+    private final CountDownLatch confirmation = new CountDownLatch(1);
+    // scheduled send time of the messages not acknowledged yet, by request id
+    private final Map<Long, Long> pendingAcks = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor. Opens the connection to the server.
+     *
+     * @param host of the server
+     * @param port of the server
+     * @param userName of the user
+     * @param statistics to record the messages in
+     * @throws IOException if the connection could not be opened
+     */
+    public SimulatedUser(String host, int port, String userName, LoadStatistics statistics) throws IOException {
+        super(NetworkHandler.openConnection(host, port, CodecRegistry.forDataFrames()));
+        this.userName = userName;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Registers the user at the server and waits for the confirmation. The handler must be receiving already.
+     *
+     * @param timeout to wait for the confirmation
+     * @return true if the user is connected
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean connect(Duration timeout) throws InterruptedException {
+        setState(CONFIRM_CONNECT);
+        sendData(userName, USER_NONE, CONNECT, null);
+        return confirmation.await(timeout.toNanos(), TimeUnit.NANOSECONDS) && state == CONNECTED;
+    }
+
+    /**
+     * Sends messages at the configured rate until the end time. Private messages are sent to random other users.
+     *
+     * @param config of the load test
+     * @param index of this user
+     * @param padding appended to the timestamp of each message
+     * @param endNanos time to stop sending, as returned by {@link System#nanoTime()}
+     * @throws InterruptedException if interrupted while waiting for the next message
+     */
+    public void chat(LoadConfig config, int index, String padding, long endNanos) throws InterruptedException {
+        Random random = new Random();
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / config.getRate());
+        // spread the users over the interval, so they do not send in lockstep
+        long next = System.nanoTime() + (long) (random.nextDouble() * intervalNanos);
+        long requestId = 0;
+        while (next < endNanos && state == CONNECTED) {
+            TimeUnit.NANOSECONDS.sleep(next - System.nanoTime());
+            String receiver = USER_ALL;
+            if (config.getUsers() > 1 && random.nextDouble() < config.getPrivateRatio()) {
+                int other = random.nextInt(config.getUsers() - 1);
+                receiver = config.userName(other >= index ? other + 1 : other);
+            }
+            requestId++;
+            pendingAcks.put(requestId, next);
+            try {
+                message(receiver, String.valueOf(next) + TIMESTAMP_SEPARATOR + padding, requestId);
+            } catch (ChatProtocolException e) {
+                return;
+            }
+            statistics.messageSent();
+            next += intervalNanos;
+        }
+    }
+
+    /**
+     * Unregisters the user from the server.
+     */
+    public void disconnect() {
+        if (state != CONNECTED) return;
+        setState(CONFIRM_DISCONNECT);
+        sendData(userName, USER_NONE, DISCONNECT, null);
+    }
+
+    @Override
+    protected void threadDies() {
+        if (state == CONNECTED || state == CONFIRM_DISCONNECT) statistics.userDisconnected();
+        setState(DISCONNECTED);
+        confirmation.countDown();
+    }
+
+    @Override
+    protected void getConfirmMessage(String message) {
+        if (state == CONFIRM_CONNECT) {
+            setState(CONNECTED);
+            statistics.userConnected();
+            confirmation.countDown();
+        } else if (state == CONFIRM_DISCONNECT) {
+            statistics.userDisconnected();
+            setState(DISCONNECTED);
+            stopReceiving();
+        }
+    }
+
+    /**
+     * Records the latency of a received message, using the timestamp at the start of its payload.
+     */
+    @Override
+    protected void getMessage(String sender, String receiver, DataType type, String payload) {
+        long now = System.nanoTime();
+        int separator = payload == null ? -1 : payload.indexOf(TIMESTAMP_SEPARATOR);
+        if (separator < 0) return;
+        try {
+            long scheduled = Long.parseLong(payload, 0, separator, 10);
+            statistics.messageDelivered(TimeUnit.NANOSECONDS.toMicros(now - scheduled));
+        } catch (NumberFormatException e) {
+            // not sent by a simulated user
+        }
+    }
+
+    /**
+     * Records the round trip of an acknowledged message, or an error if it has not been delivered.
+     */
+    @Override
+    protected void getAckMessage(long requestId, String error) {
+        long now = System.nanoTime();
+        Long scheduled = pendingAcks.remove(requestId);
+        if (scheduled == null) return;
+        if (error != null) {
+            statistics.errorReceived();
+        } else {
+            statistics.messageAcknowledged(TimeUnit.NANOSECONDS.toMicros(now - scheduled));
+        }
+    }
+
+    @Override
+    protected void getDisconnectMessage(String message) {
+        if (state == CONNECTED) statistics.userDisconnected();
+        setState(DISCONNECTED);
+    }
+
+    @Override
+    protected void getConnectMessage(String message) {
+        // not sent by the server
+    }
+
+    @Override
+    protected void getErrorMessage(String sender, String payload) {
+        statistics.errorReceived();
+    }
+
+    @Override
+    protected void getDefaultMessage(DataType type) {
+        // other frames are not relevant for the load test
+    }
+}
@@ -0,0 +1,310 @@
+package ch.zhaw.pm2.multichat.protocol;
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Leveled logger writing asynchronously to the console.
+ * <p>Logging a message only checks the level, stores the message pattern and its arguments in a preallocated slot
+ * of a ring buffer and returns, without any lock. A single daemon thread formats the messages and writes them to
+ * stdout (DEBUG, INFO) or stderr (WARN, ERROR), flushing whenever the ring buffer is empty. Threads logging at high
+ * rates therefore neither format nor contend on the console. If the ring buffer is full, messages are dropped
+ * instead of blocking the caller, and the number of dropped messages is reported.</p>
+ * <p>Messages of disabled levels cost a single comparison. Patterns use {@code {}} as placeholder for the
+ * arguments, which are converted to strings on the logging thread, so only immutable values should be passed.
+ * Overloads with up to three arguments avoid allocating an argument array.</p>
+ * <p>The level is set by the system property {@code multichat.log.level} (DEBUG, INFO (default), WARN, ERROR or
+ * OFF), the size of the ring buffer by {@code multichat.log.buffer} (default 8192).</p>
+ */
+public final class AsyncLogger {
+    /**
+     * This enum represents the severity of a message. Messages below the configured level are discarded.
+     * OFF disables logging entirely.
+     */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    private static volatile Level threshold = Level.valueOf(
+        System.getProperty("multichat.log.level", Level.INFO.name()).strip().toUpperCase());
+
+    private final String name;
+
+    private AsyncLogger(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns a logger named after the class.
+     *
+     * @param type class which is logging
+     * @return the logger
+     */
+    public static AsyncLogger getLogger(Class<?> type) {
+        return new AsyncLogger(type.getSimpleName());
+    }
+
+    /**
+     * Sets the level of all loggers.
+     *
+     * @param level minimum level of the messages written
+     */
+    public static void setLevel(Level level) {
+        threshold = level;
+    }
+
+    /**
+     * Returns the level of all loggers.
+     *
+     * @return minimum level of the messages written
+     */
+    public static Level getLevel() {
+        return threshold;
+    }
+
+    /**
+     * Indicates if messages of the level are written, e.g. to skip computing expensive arguments.
+     *
+     * @param level to check
+     * @return true if messages of the level are written
+     */
+    public boolean isEnabled(Level level) {
+        return level.compareTo(threshold) >= 0 && level != Level.OFF;
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    public void debug(String message) {
+        log(Level.DEBUG, message, 0, null, null, null, null);
+    }
+
+    public void debug(String pattern, Object argument) {
+        log(Level.DEBUG, pattern, 1, argument, null, null, null);
+    }
+
+    public void debug(String pattern, Object first, Object second) {
+        log(Level.DEBUG, pattern, 2, first, second, null, null);
+    }
+
+    public void debug(String pattern, Object first, Object second, Object third) {
+        log(Level.DEBUG, pattern, 3, first, second, third, null);
+    }
+
+    public void info(String message) {
+        log(Level.INFO, message, 0, null, null, null, null);
+    }
+
+    public void info(String pattern, Object argument) {
+        log(Level.INFO, pattern, 1, argument, null, null, null);
+    }
+
+    public void info(String pattern, Object first, Object second) {
+        log(Level.INFO, pattern, 2, first, second, null, null);
+    }
+
+    public void info(String pattern, Object first, Object second, Object third) {
+        log(Level.INFO, pattern, 3, first, second, third, null);
+    }
+
+    public void warn(String message) {
+        log(Level.WARN, message, 0, null, null, null, null);
+    }
+
+    public void warn(String pattern, Object argument) {
+        log(Level.WARN, pattern, 1, argument, null, null, null);
+    }
+
+    public void warn(String pattern, Object first, Object second) {
+        log(Level.WARN, pattern, 2, first, second, null, null);
+    }
+
+    public void warn(String message, Throwable throwable) {
+        log(Level.WARN, message, 0, null, null, null, throwable);
+    }
+
+    public void error(String message) {
+        log(Level.ERROR, message, 0, null, null, null, null);
+    }
+
+    public void error(String pattern, Object argument) {
+        log(Level.ERROR, pattern, 1, argument, null, null, null);
+    }
+
+    public void error(String pattern, Object first, Object second) {
+        log(Level.ERROR, pattern, 2, first, second, null, null);
+    }
+
+    public void error(String message, Throwable throwable) {
+        log(Level.ERROR, message, 0, null, null, null, throwable);
+    }
+
+    private void log(Level level, String pattern, int arguments, Object first, Object second, Object third,
+                     Throwable throwable) {
+        if (!isEnabled(level)) return;
+        Ring.INSTANCE.publish(level, name, pattern, arguments, first, second, third, throwable);
+    }
+
+    /**
+     * Multi-producer, single-consumer ring buffer of preallocated events, drained by the writer thread.
+     * Producers claim a sequence number with a CAS, fill the slot and publish it by writing the sequence number
+     * to the slot. The writer consumes the slots in sequence order.
+     */
+    private static class Ring implements Runnable {
+        static final Ring INSTANCE = new Ring(Integer.getInteger("multichat.log.buffer", 8192));
+
+        private final Event[] slots;
+        private final int mask;
+        private final AtomicLong claimed = new AtomicLong(0);
+        private final LongAdder dropped = new LongAdder();
+        private final Thread writer;
+        private volatile long consumed = 0;
+        private volatile boolean sleeping = false;
+        private volatile boolean closing = false;
+
+        Ring(int capacity) {
+            int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+            this.slots = new Event[size];
+            for (int i = 0; i < size; i++) {
+                slots[i] = new Event();
+            }
+            this.mask = size - 1;
+            this.writer = new Thread(this, "async-logger");
+            writer.setDaemon(true);
+            writer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(this::close, "async-logger-shutdown"));
+        }
+
+        void publish(Level level, String logger, String pattern, int arguments, Object first, Object second,
+                     Object third, Throwable throwable) {
+            long sequence;
+            do {
+                sequence = claimed.get();
+                if (sequence - consumed >= slots.length) {
+                    dropped.increment();
+                    return;
+                }
+            } while (!claimed.compareAndSet(sequence, sequence + 1));
+            Event event = slots[(int) sequence & mask];
+            event.time = System.currentTimeMillis();
+            event.level = level;
+            event.thread = Thread.currentThread().getName();
+            event.logger = logger;
+            event.pattern = pattern;
+            event.arguments = arguments;
+            event.first = first;
+            event.second = second;
+            event.third = third;
+            event.throwable = throwable;
+            event.published = sequence;
+            if (sleeping) LockSupport.unpark(writer);
+        }
+
+        @Override
+        public void run() {
+            PrintWriter out = console(FileDescriptor.out);
+            PrintWriter err = console(FileDescriptor.err);
+            StringBuilder line = new StringBuilder(256);
+            long reportedDrops = 0;
+            while (true) {
+                long sequence = consumed;
+                Event event = slots[(int) sequence & mask];
+                if (event.published != sequence) {
+                    out.flush();
+                    err.flush();
+                    long drops = dropped.sum();
+                    if (drops != reportedDrops) {
+                        err.println("[async-logger] " + (drops - reportedDrops) + " log messages dropped");
+                        err.flush();
+                        reportedDrops = drops;
+                    }
+                    if (closing) return;
+                    sleeping = true;
+                    // re-check after announcing the sleep, a producer may have published in between
+                    if (event.published != sequence) LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+                    sleeping = false;
+                    continue;
+                }
+                line.setLength(0);
+                event.format(line);
+                PrintWriter target = event.level.compareTo(Level.WARN) >= 0 ? err : out;
+                target.println(line);
+                if (event.throwable != null) event.throwable.printStackTrace(target);
+                event.clear();
+                consumed = sequence + 1;
+            }
+        }
+
+        /**
+         * Writes the pending messages before the JVM exits.
+         */
+        private void close() {
+            closing = true;
+            LockSupport.unpark(writer);
+            try {
+                writer.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private static PrintWriter console(FileDescriptor descriptor) {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(descriptor), StandardCharsets.UTF_8);
+            return new PrintWriter(new BufferedWriter(writer, 16 * 1024), false);
+        }
+    }
+
+    /**
+     * Slot of the ring buffer.
+     */
+    private static class Event {
+        volatile long published = -1;
+        long time;
+        Level level;
+        String thread;
+        String logger;
+        String pattern;
+        int arguments;
+        Object first;
+        Object second;
+        Object third;
+        Throwable throwable;
+
+        void format(StringBuilder line) {
+            line.append(Instant.ofEpochMilli(time)).append(' ');
+            line.append(level);
+            if (level.name().length() < 5) line.append(' ');
+            line.append(" [").append(thread).append("] ").append(logger).append(" - ");
+            Object[] values = {first, second, third};
+            int argument = 0;
+            int start = 0;
+            int placeholder;
+            while (argument < arguments && (placeholder = pattern.indexOf("{}", start)) >= 0) {
+                line.append(pattern, start, placeholder).append(values[argument++]);
+                start = placeholder + 2;
+            }
+            line.append(pattern, start, pattern.length());
+        }
+
+        void clear() {
+            thread = null;
+            logger = null;
+            pattern = null;
+            first = null;
+            second = null;
+            third = null;
+            throwable = null;
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package ch.zhaw.pm2.multichat.protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+
+import static ch.zhaw.pm2.multichat.protocol.ConnectionHandler.DataType;
+
+/**
+ * Compact, length-prefixed binary {@link FrameCodec} for {@link DataFrame} objects.
+ * <p>Each frame is written as</p>
+ * <pre>
+ *   varint  length of the body in bytes
+ *   byte    ordinal of the {@link DataType}
+ *   string  sender
+ *   string  receiver
+ *   string  payload
+ *   string  room (optional)
+ *   varlong id (optional)
+ * </pre>
+ * <p>where a string is written as varint (number of UTF-8 bytes + 1) followed by the UTF-8 bytes, and a
+ * length of 0 represents {@code null}. Varints and varlongs use 7 bits per byte, least significant group first,
+ * with the high bit set on all but the last byte. Optional fields are appended at the end of the body and omitted
+ * if neither they nor a following field are set ({@code null} or 0), so frames without them are as compact
+ * as before.</p>
+ * <p>The compressing formats ({@link FrameCodec#FORMAT_BINARY_DEFLATE} and
+ * {@link FrameCodec#FORMAT_BINARY_DEFLATE_DICTIONARY}) may send the payload compressed by {@link PayloadCompression}.
+ * This is marked by the highest bit of the type byte, the payload is then written as varint (number of bytes + 1)
+ * followed by the varint length of the UTF-8 payload and the deflated bytes.</p>
+ * <p>The codec is stateless, so the encoded bytes of a frame are identical for every connection of the same format.
+ * Unlike {@link SerializedFrameCodec} it never instantiates classes chosen by the peer.</p>
+ */
+public class BinaryFrameCodec implements FrameCodec<DataFrame> {
+    /**
+     * Maximum accepted body length of a frame. Longer frames are rejected before allocating any buffer.
+     */
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    private static final DataType[] TYPES = DataType.values();
+    // flag in the type byte marking a compressed payload
+    private static final int COMPRESSED = 0x80;
+
+    private final int formatId;
+    private final PayloadCompression compression;
+
+    /**
+     * Creates a codec of the uncompressed format {@link FrameCodec#FORMAT_BINARY}.
+     */
+    public BinaryFrameCodec() {
+        this(FORMAT_BINARY, null);
+    }
+
+    private BinaryFrameCodec(int formatId, PayloadCompression compression) {
+        this.formatId = formatId;
+        this.compression = compression;
+    }
+
+    /**
+     * Creates a codec of the format {@link FrameCodec#FORMAT_BINARY_DEFLATE}, compressing large payloads.
+     * @return the codec
+     */
+    public static BinaryFrameCodec deflate() {
+        return new BinaryFrameCodec(FORMAT_BINARY_DEFLATE, PayloadCompression.DEFLATE);
+    }
+
+    /**
+     * Creates a codec of the format {@link FrameCodec#FORMAT_BINARY_DEFLATE_DICTIONARY}, compressing large payloads
+     * using the preset dictionary.
+     * @return the codec
+     */
+    public static BinaryFrameCodec deflateWithDictionary() {
+        return new BinaryFrameCodec(FORMAT_BINARY_DEFLATE_DICTIONARY, PayloadCompression.DEFLATE_DICTIONARY);
+    }
+
+    /**
+     * Indicates if the format is one of the binary formats.
+     * @param formatId id of the format
+     * @return true if a {@link BinaryFrameCodec} reads and writes the format
+     */
+    public static boolean isBinaryFormat(int formatId) {
+        return formatId == FORMAT_BINARY || formatId == FORMAT_BINARY_DEFLATE
+            || formatId == FORMAT_BINARY_DEFLATE_DICTIONARY;
+    }
+
+    @Override
+    public int getFormatId() {
+        return formatId;
+    }
+
+    @Override
+    public void write(DataFrame data, DataOutputStream out) throws IOException {
+        out.write(encode(data, compression));
+    }
+
+    @Override
+    public boolean isStateless() {
+        return true;
+    }
+
+    @Override
+    public byte[] toBytes(DataFrame data) {
+        return encode(data, compression);
+    }
+
+    @Override
+    public DataFrame read(DataInputStream in) throws IOException {
+        int length = readVarint(in);
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Illegal frame length: " + length);
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return decodeBody(body, 0, length, compression);
+    }
+
+    /**
+     * Decodes the body of a frame (without its length prefix) of the format of this codec.
+     * @param buffer    buffer containing the body
+     * @param offset    start of the body within the buffer
+     * @param length    length of the body
+     * @return the decoded frame
+     * @throws ProtocolException if the body is malformed
+     */
+    public DataFrame decode(byte[] buffer, int offset, int length) throws ProtocolException {
+        return decodeBody(buffer, offset, length, compression);
+    }
+
+    /**
+     * Encodes a frame including its length prefix, without compression.
+     * @param data frame to encode
+     * @return the bytes as they are sent on the wire
+     */
+    public static byte[] encode(DataFrame data) {
+        return encode(data, null);
+    }
+
+    private static byte[] encode(DataFrame data, PayloadCompression compression) {
+        byte[] sender = utf8(data.getSender());
+        byte[] receiver = utf8(data.getReceiver());
+        byte[] payload = utf8(data.getPayload());
+        int type = data.getType().ordinal();
+        if (compression != null && payload != null) {
+            byte[] compressed = compression.compress(payload);
+            if (compressed != null) {
+                // the payload is replaced by its length followed by the compressed bytes
+                byte[] field = new byte[varintLength(payload.length) + compressed.length];
+                int position = putVarint(field, 0, payload.length);
+                System.arraycopy(compressed, 0, field, position, compressed.length);
+                payload = field;
+                type |= COMPRESSED;
+            }
+        }
+        byte[] room = utf8(data.getRoom());
+        long id = data.getId();
+        int bodyLength = 1 + stringLength(sender) + stringLength(receiver) + stringLength(payload);
+        if (room != null || id != 0) bodyLength += stringLength(room);
+        if (id != 0) bodyLength += varlongLength(id);
+
+        byte[] buffer = new byte[varintLength(bodyLength) + bodyLength];
+        int position = putVarint(buffer, 0, bodyLength);
+        buffer[position++] = (byte) type;
+        position = putString(buffer, position, sender);
+        position = putString(buffer, position, receiver);
+        position = putString(buffer, position, payload);
+        if (room != null || id != 0) position = putString(buffer, position, room);
+        if (id != 0) putVarlong(buffer, position, id);
+        return buffer;
+    }
+
+    /**
+     * Decodes the body of a frame (without its length prefix) of the uncompressed format.
+     * @param buffer    buffer containing the body
+     * @param offset    start of the body within the buffer
+     * @param length    length of the body
+     * @return the decoded frame
+     * @throws ProtocolException if the body is malformed
+     */
+    public static DataFrame decodeBody(byte[] buffer, int offset, int length) throws ProtocolException {
+        return decodeBody(buffer, offset, length, null);
+    }
+
+    private static DataFrame decodeBody(byte[] buffer, int offset, int length, PayloadCompression compression)
+        throws ProtocolException {
+        Reader reader = new Reader(buffer, offset, offset + length);
+        int type = reader.nextByte();
+        int ordinal = type & ~COMPRESSED;
+        if (ordinal >= TYPES.length) {
+            throw new ProtocolException("Unknown data type: " + ordinal);
+        }
+        String sender = reader.nextString();
+        String receiver = reader.nextString();
+        String payload;
+        if ((type & COMPRESSED) == 0) {
+            payload = reader.nextString();
+        } else if (compression != null) {
+            payload = reader.nextCompressedString(compression);
+        } else {
+            throw new ProtocolException("Compressed payload in uncompressed format");
+        }
+        String room = reader.hasRemaining() ? reader.nextString() : null;
+        long id = reader.hasRemaining() ? reader.nextVarlong() : 0;
+        if (reader.hasRemaining()) {
+            throw new ProtocolException("Trailing bytes in frame: " + (reader.limit - reader.position));
+        }
+        return new DataFrame(sender, receiver, TYPES[ordinal], payload, room, id);
+    }
+
+    /**
+     * Reads a varint from the stream.
+     * @param in stream to read from
+     * @return the value read
+     * @throws IOException if the stream ends or the varint is longer than 5 bytes
+     */
+    static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int next = in.read();
+            if (next < 0) throw new EOFException();
+            value |= (next & 0x7F) << shift;
+            if ((next & 0x80) == 0) return value;
+        }
+        throw new ProtocolException("Varint too long");
+    }
+
+    static int varintLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    static int putVarint(byte[] buffer, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    static int varlongLength(long value) {
+        int length = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    static int putVarlong(byte[] buffer, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int stringLength(byte[] value) {
+        int length = value == null ? 0 : value.length;
+        return varintLength(value == null ? 0 : length + 1) + length;
+    }
+
+    private static int putString(byte[] buffer, int position, byte[] value) {
+        if (value == null) {
+            return putVarint(buffer, position, 0);
+        }
+        position = putVarint(buffer, position, value.length + 1);
+        System.arraycopy(value, 0, buffer, position, value.length);
+        return position + value.length;
+    }
+
+    /**
+     * Cursor over the body of a frame, checking every access against the end of the frame.
+     */
+    private static class Reader {
+        private final byte[] buffer;
+        private final int limit;
+        private int position;
+
+        Reader(byte[] buffer, int position, int limit) {
+            this.buffer = buffer;
+            this.position = position;
+            this.limit = limit;
+        }
+
+        boolean hasRemaining() {
+            return position < limit;
+        }
+
+        int nextByte() throws ProtocolException {
+            if (position >= limit) throw new ProtocolException("Truncated frame");
+            return buffer[position++] & 0xFF;
+        }
+
+        int nextVarint() throws ProtocolException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int next = nextByte();
+                value |= (next & 0x7F) << shift;
+                if ((next & 0x80) == 0) return value;
+            }
+            throw new ProtocolException("Varint too long");
+        }
+
+        long nextVarlong() throws ProtocolException {
+            long value = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                long next = nextByte();
+                value |= (next & 0x7F) << shift;
+                if ((next & 0x80) == 0) return value;
+            }
+            throw new ProtocolException("Varlong too long");
+        }
+
+        String nextString() throws ProtocolException {
+            int length = nextVarint();
+            if (length == 0) return null;
+            length--;
+            if (length < 0 || length > limit - position) throw new ProtocolException("Truncated string");
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        String nextCompressedString(PayloadCompression compression) throws ProtocolException {
+            int length = nextVarint() - 1;
+            if (length < 0 || length > limit - position) throw new ProtocolException("Truncated string");
+            int end = position + length;
+            int originalLength = nextVarint();
+            if (position > end) throw new ProtocolException("Truncated string");
+            String value = compression.decompress(buffer, position, end - position, originalLength);
+            position = end;
+            return value;
+        }
+    }
+}
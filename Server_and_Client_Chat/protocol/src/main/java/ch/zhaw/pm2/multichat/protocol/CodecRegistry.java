@@ -0,0 +1,101 @@
+package ch.zhaw.pm2.multichat.protocol;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Ordered set of {@link FrameCodec} formats a peer supports, most preferred first.
+ * <p>When a {@link NetworkHandler.NetworkConnection} is opened, the client sends the format ids of its registry to
+ * the server, which picks the first one it supports itself. Afterwards both sides create a fresh codec instance of
+ * the agreed format for the connection.</p>
+ *
+ * @param <T> type of the Objects to be transmitted
+ */
+public class CodecRegistry<T extends Serializable> {
+    private final Map<Integer, Supplier<FrameCodec<T>>> codecs = new LinkedHashMap<>();
+
+    /**
+     * Creates an empty registry. Use {@link #register(int, Supplier)} to add formats.
+     */
+    public CodecRegistry() {
+    }
+
+    /**
+     * Creates a registry only supporting Java serialization, which works for any {@link Serializable} type.
+     * The objects read are only checked for their size, see {@link SerializedFrameCodec#SerializedFrameCodec()}.
+     * @param <T> type of the Objects to be transmitted
+     * @return registry containing {@link FrameCodec#FORMAT_SERIALIZED}
+     */
+    public static <T extends Serializable> CodecRegistry<T> serialized() {
+        return new CodecRegistry<T>().register(FrameCodec.FORMAT_SERIALIZED, SerializedFrameCodec::new);
+    }
+
+    /**
+     * Creates the registry used for chat connections, only containing binary formats: Java serialization is not
+     * supported, so a peer can not make the server deserialize arbitrary objects. Depending on the system property
+     * {@code multichat.compression}, the compressing binary formats are preferred to the plain one:
+     * {@code dictionary} (default) prefers compression with the preset dictionary, then without,
+     * {@code deflate} only supports compression without dictionary and {@code off} disables compression.
+     * @return registry containing the enabled compressing formats and {@link FrameCodec#FORMAT_BINARY}
+     * @throws IllegalArgumentException if the property has an unknown value
+     */
+    public static CodecRegistry<DataFrame> forDataFrames() {
+        CodecRegistry<DataFrame> registry = new CodecRegistry<>();
+        String compression = System.getProperty("multichat.compression", "dictionary").strip().toLowerCase();
+        switch (compression) {
+            case "dictionary" -> registry
+                .register(FrameCodec.FORMAT_BINARY_DEFLATE_DICTIONARY, BinaryFrameCodec::deflateWithDictionary)
+                .register(FrameCodec.FORMAT_BINARY_DEFLATE, BinaryFrameCodec::deflate);
+            case "deflate" -> registry.register(FrameCodec.FORMAT_BINARY_DEFLATE, BinaryFrameCodec::deflate);
+            case "off" -> { }
+            default -> throw new IllegalArgumentException("Unknown compression: " + compression);
+        }
+        return registry.register(FrameCodec.FORMAT_BINARY, BinaryFrameCodec::new);
+    }
+
+    /**
+     * Adds a format with lower preference than all formats registered before.
+     * @param formatId  id of the format (range: 0 - 127)
+     * @param factory   creates a new codec instance per connection
+     * @return this registry
+     */
+    public CodecRegistry<T> register(int formatId, Supplier<FrameCodec<T>> factory) {
+        if (formatId < 0 || formatId > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Format id out of range: " + formatId);
+        }
+        codecs.put(formatId, factory);
+        return this;
+    }
+
+    /**
+     * Returns the supported format ids, most preferred first.
+     * @return format ids
+     */
+    public Set<Integer> getFormatIds() {
+        return codecs.keySet();
+    }
+
+    /**
+     * Indicates if the given format is supported.
+     * @param formatId id of the format
+     * @return true if a codec is registered for the format
+     */
+    public boolean supports(int formatId) {
+        return codecs.containsKey(formatId);
+    }
+
+    /**
+     * Creates a new codec instance of the given format.
+     * @param formatId id of the format
+     * @return new codec instance
+     * @throws IllegalArgumentException if the format is not supported
+     */
+    public FrameCodec<T> create(int formatId) {
+        Supplier<FrameCodec<T>> factory = codecs.get(formatId);
+        if (factory == null) throw new IllegalArgumentException("Unsupported format: " + formatId);
+        return factory.get();
+    }
+}
@@ -12,12 +12,26 @@ import static ch.zhaw.pm2.multichat.protocol.ConnectionHandler.DataType.*;
  * and handles all the connection stuff. Methods used in more
  * specific use cases (Client / Serverside) are declared abstract.
  */
-public abstract class ConnectionHandler implements Runnable {
+public abstract class ConnectionHandler implements Runnable, NioNetworkServer.FrameReceiver {
+    private static final AsyncLogger logger = AsyncLogger.getLogger(ConnectionHandler.class);
     public static final String USER_NONE = "";
     public static final String USER_ALL = "*";
-    private final NetworkHandler.NetworkConnection<DataFrame> connection;
+    /**
+     * Prefix marking a room as receiver, e.g. "#general", in {@link #message(String, String)}.
+     */
+    public static final String ROOM_PREFIX = "#";
+    /**
+     * Payload of the HISTORY frame ending a page, if more messages are available.
+     */
+    public static final String HISTORY_MORE = "more";
+    /**
+     * Payload of the HISTORY frame ending a page, if no more messages are available.
+     */
+    public static final String HISTORY_END = "end";
+    private final NetworkHandler.Connection<DataFrame> connection;
     protected String userName = USER_NONE;
     protected State state = NEW;
+    private volatile long lastActivity = System.nanoTime();
 
     @Override
     public void run() {
@@ -30,10 +44,23 @@ public abstract class ConnectionHandler implements Runnable {
      * CONFIRM: Confirm a connect or disconnect request.
      * DISCONNECT: Used by a client to request a formal connection to the server or a server to inform the client about a disconnect.
      * MESSAGE: Standard message containing a text message as payload.
-     * ERROR: Error message to inform the recipient about an error.
+     * ERROR: Error message to inform the recipient about an error. If the server rejected a request because of its
+     * rate limits, the id of the frame is the time in milliseconds the client should wait before sending again.
+     * JOIN: Used by a client to join the room of the frame, sent by the server to the members when a user joined.
+     * LEAVE: Used by a client to leave the room of the frame, sent by the server to the members when a user left.
+     * HISTORY: Used by a client to request the messages after the id of the frame, the server answers with the
+     * messages followed by a HISTORY frame marking the end of the page.
+     * PING: Heartbeat to check if the peer is still alive, answered automatically with a PONG.
+     * PONG: Answer to a PING, echoing its payload.
+     * RESUME: Sent by the server after confirming a connect, carrying the token to resume the session with.
+     * Used by a client instead of CONNECT to resume its session after the connection was lost, with the token as
+     * payload.
+     * ACK: Sent by the server for a MESSAGE of a client carrying a request id (the id of the frame, chosen by the
+     * client), with the same id. The payload is null if the message has been delivered, otherwise the error message.
+     * Messages dropped because of the rate limits are not acknowledged.
      */
     public enum DataType {
-        CONNECT, CONFIRM, DISCONNECT, MESSAGE, ERROR
+        CONNECT, CONFIRM, DISCONNECT, MESSAGE, ERROR, JOIN, LEAVE, HISTORY, PING, PONG, RESUME, ACK
     }
     /**
      * This enum is representing the different connection states of the connection handler.
@@ -52,10 +79,35 @@ public abstract class ConnectionHandler implements Runnable {
      * has to have at least a connection.
      * @param connection that should be used
      */
-    protected ConnectionHandler(NetworkHandler.NetworkConnection<DataFrame> connection)  {
+    protected ConnectionHandler(NetworkHandler.Connection<DataFrame> connection)  {
         this.connection = connection;
     }
 
+    /**
+     * Returns the time the last frame has been received, or the handler has been created if no frame has been
+     * received yet.
+     * @return time of the last activity in nanoseconds, as returned by {@link System#nanoTime()}
+     */
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Returns the number of bytes received on the connection.
+     * @return number of bytes received
+     */
+    public long getBytesReceived() {
+        return connection.getBytesReceived();
+    }
+
+    /**
+     * Returns the number of bytes sent on the connection.
+     * @return number of bytes sent
+     */
+    public long getBytesSent() {
+        return connection.getBytesSent();
+    }
+
     public State getConnectionState() {
         return this.state;
     }
@@ -68,37 +120,71 @@ public abstract class ConnectionHandler implements Runnable {
      * Method to start the connection handler. Executed by the Java Thread class in a separate thread.
      * Starts into while loop where it is waiting for data to be processed
      * Depending on the errors which are thrown, logging them with different messages
+     * Only supported for blocking {@link NetworkHandler.NetworkConnection}s, connections of a
+     * {@link NioNetworkServer} deliver their data using {@link #frameReceived(DataFrame)}.
      */
     public void startReceiving() {
-        System.out.println("Starting Connection Handler");
+        if (!(connection instanceof NetworkHandler.NetworkConnection<DataFrame> receivingConnection)) {
+            throw new IllegalStateException("Connection does not support blocking receive");
+        }
+        logger.debug("Starting Connection Handler of {}", userName);
         try {
-            System.out.println("Start receiving data...");
-            while (connection.isAvailable()) {
-                DataFrame data = connection.receive();
+            while (receivingConnection.isAvailable()) {
+                DataFrame data = receivingConnection.receive();
                 processData(data);
             }
-            System.out.println("Stopped recieving data");
+            logger.debug("Stopped receiving data of {}", userName);
         } catch (SocketException e) {
-            System.out.println("Connection terminated locally");
             this.setState(DISCONNECTED);
-            System.err.println("Unregistered because connection terminated" + e.getMessage());
+            logger.debug("Connection of {} terminated locally: {}", userName, e.getMessage());
         } catch (EOFException e) {
-            System.out.println("Connection terminated by remote");
             this.setState(DISCONNECTED);
-            System.err.println("Unregistered because connection terminated" + e.getMessage());
+            logger.debug("Connection of {} terminated by remote", userName);
         } catch(IOException e) {
-            System.err.println("Communication error" + e);
+            logger.warn("Communication error of {}: {}", userName, e);
         } catch(ClassNotFoundException e) {
-            System.err.println("Received object of unknown type" + e.getMessage());
+            logger.warn("Received object of unknown type: {}", e.getMessage());
         } catch (ChatProtocolException e) {
-            e.printStackTrace();
+            logger.error("Protocol error", e);
         }
-        System.out.println("Stopped Connection Handler");
+        logger.debug("Stopped Connection Handler of {}", userName);
         threadDies();
     }
 
     protected void threadDies(){};
 
+    /**
+     * Called for every received frame before it is processed, e.g. to count the received frames.
+     *
+     * @param data the received frame
+     */
+    protected void dataReceived(DataFrame data) {}
+
+    /**
+     * Processes a frame delivered by the I/O thread of a {@link NioNetworkServer}.
+     *
+     * @param frame the received frame
+     */
+    @Override
+    public void frameReceived(DataFrame frame) {
+        try {
+            processData(frame);
+        } catch (ChatProtocolException e) {
+            logger.error("Protocol error", e);
+        }
+    }
+
+    /**
+     * Called by the {@link NioNetworkServer} once the connection is closed. Equivalent to the end of
+     * {@link #startReceiving()} for blocking connections.
+     */
+    @Override
+    public void connectionClosed() {
+        this.setState(DISCONNECTED);
+        logger.debug("Stopped Connection Handler of {}", userName);
+        threadDies();
+    }
+
      /**
      * Processes incoming data and takes different actions depending
      * on their data type.
@@ -107,35 +193,69 @@ public abstract class ConnectionHandler implements Runnable {
      * @throws ChatProtocolException if either sender,receiver,type are null
      */
     private void processData(DataFrame data) throws ChatProtocolException {
+        lastActivity = System.nanoTime();
+        logger.debug("Received {} from {}", data.getType(), data.getSender());
+        dataReceived(data);
         try {
             // dispatch operation based on type parameter
             switch (data.getType()){
                 case CONFIRM -> getConfirmMessage(data.getPayload());
                 case CONNECT -> getConnectMessage(data.getSender());
                 case DISCONNECT -> getDisconnectMessage(data.getPayload());
-                case MESSAGE -> getMessage(data.getSender(), data.getReceiver(), data.getType(), data.getPayload());
+                case MESSAGE -> {
+                    if (data.getRoom() != null) {
+                        getRoomMessage(data.getSender(), data.getRoom(), data.getPayload());
+                    } else {
+                        getMessage(data.getSender(), data.getReceiver(), data.getType(), data.getPayload());
+                    }
+                }
                 case ERROR -> getErrorMessage(data.getSender(), data.getPayload());
+                case JOIN -> getJoinMessage(data.getSender(), data.getRoom());
+                case LEAVE -> getLeaveMessage(data.getSender(), data.getRoom());
+                case HISTORY -> getHistoryMessage(data.getRoom(), data.getId(), data.getPayload());
+                case PING -> sendData(USER_NONE, data.getSender(), PONG, data.getPayload());
+                case PONG -> { } // the peer is alive, which is recorded as activity already
+                case RESUME -> getResumeMessage(data.getSender(), data.getPayload());
+                case ACK -> getAckMessage(data.getId(), data.getPayload());
                 default -> getDefaultMessage(data.getType());
             }
         } catch (ChatProtocolException e) {
-            System.err.println("Error while processing data: " + e.getMessage());
-            sendData(USER_NONE, userName, ERROR, e.getMessage());
+            logger.warn("Error while processing data of {}: {}", userName, e.getMessage());
+            sendError(data, e.getMessage());
         }
     }
 
+    /**
+     * Informs the peer that a frame could not be processed. By default an ERROR frame is sent.
+     *
+     * @param data the frame which could not be processed
+     * @param message describing the error
+     */
+    protected void sendError(DataFrame data, String message) {
+        sendData(USER_NONE, userName, ERROR, message);
+    }
+
     /**
      * Closes connection handler to server
      */
     public void stopReceiving() {
-        System.out.println("Closing Connection Handler to Server");
         try {
-            System.out.println("Stop receiving data...");
             connection.close();
-            System.out.println("Stopped receiving data.");
+            logger.debug("Closed connection of {}", userName);
+        } catch (IOException e) {
+            logger.warn("Failed to close connection of {}: {}", userName, e.getMessage());
+        }
+    }
+
+    /**
+     * Closes the connection immediately, discarding data not sent yet, e.g. if the peer does not respond anymore.
+     */
+    public void abortConnection() {
+        try {
+            connection.abort();
         } catch (IOException e) {
-            System.err.println("Failed to close connection." + e.getMessage());
+            logger.warn("Failed to abort connection of {}: {}", userName, e.getMessage());
         }
-        System.out.println("Closed Connection Handler to Server");
     }
 
     /**
@@ -147,26 +267,111 @@ public abstract class ConnectionHandler implements Runnable {
      * @param payload of the message
      */
     public void sendData(String sender, String receiver, DataType type, String payload) {
+        sendFrame(new SharedFrame<>(new DataFrame(sender, receiver, type, payload)));
+    }
+
+    /**
+     * If there is a connection to the server, builds data addressed to a room out of parameters and sends it.
+     *
+     * @param sender that sent the message
+     * @param room the message belongs to
+     * @param type of the message
+     * @param payload of the message
+     */
+    public void sendRoomData(String sender, String room, DataType type, String payload) {
+        sendFrame(new SharedFrame<>(new DataFrame(sender, USER_ALL, type, payload, room)));
+    }
+
+    /**
+     * Requests a page of the message history from the server. The messages are delivered like new messages,
+     * followed by a HISTORY frame carrying the id of the last delivered message and
+     * {@link #HISTORY_MORE} or {@link #HISTORY_END} as payload.
+     *
+     * @param room to get the history of, null for the broadcast and private messages of the user
+     * @param sinceId only messages with a greater id are returned, 0 for the oldest available messages
+     * @param limit maximum number of messages returned
+     * @throws ChatProtocolException if the state of the connectionHandler is not 'CONNECTED'
+     */
+    public void requestHistory(String room, long sinceId, int limit) throws ChatProtocolException {
+        if (state != CONNECTED) throw new ChatProtocolException("Illegal state for history request: " + state);
+        sendFrame(new SharedFrame<>(
+            new DataFrame(userName, USER_NONE, HISTORY, String.valueOf(limit), room, sinceId)));
+    }
+
+    /**
+     * Sends the frame, if there is a connection. By default the frame is written immediately on the calling
+     * thread, subclasses may queue it and write it later using {@link #writeFrame(SharedFrame)}.
+     * The same frame may be passed to several handlers, it is only encoded once if possible.
+     *
+     * @param data frame to send
+     */
+    protected void sendFrame(SharedFrame<DataFrame> data) {
         if (connection.isAvailable()) {
-            DataFrame data = new DataFrame(sender, receiver, type, payload);
             try {
-                connection.send(data);
-
+                writeFrame(data);
             } catch(IOException e) {
-                System.err.println("Communication error: " + e.getMessage());
+                logger.warn("Communication error of {}: {}", userName, e.getMessage());
             }
         }
     }
 
+    /**
+     * Writes the frame to the connection.
+     *
+     * @param data frame to write
+     * @throws IOException if an error occurs (e.g. connection interrupted while sending, ...)
+     */
+    protected final void writeFrame(SharedFrame<DataFrame> data) throws IOException {
+        connection.sendShared(data);
+    }
+
     /**
      * Sends a message and the name of the receiver to the server
-     * @param receiver of the message
+     * @param receiver of the message, a user name, {@link #USER_ALL} or a room prefixed with {@link #ROOM_PREFIX}
      * @param message to be sent
      * @throws ChatProtocolException if the state of the connectionHandler is not 'CONNECTED'
     */
     public void message(String receiver, String message) throws ChatProtocolException {
+        message(receiver, message, 0);
+    }
+
+    /**
+     * Sends a message with a request id, which the server acknowledges with an ACK frame carrying the same id.
+     * @param receiver of the message, a user name, {@link #USER_ALL} or a room prefixed with {@link #ROOM_PREFIX}
+     * @param message to be sent
+     * @param requestId id chosen by the sender, unique within the session, 0 if no acknowledgement is requested
+     * @throws ChatProtocolException if the state of the connectionHandler is not 'CONNECTED'
+     */
+    public void message(String receiver, String message, long requestId) throws ChatProtocolException {
         if (state != CONNECTED) throw new ChatProtocolException("Illegal state for message: " + state);
-        this.sendData(userName, receiver, MESSAGE,message);
+        DataFrame data;
+        if (receiver != null && receiver.startsWith(ROOM_PREFIX)) {
+            data = new DataFrame(userName, USER_ALL, MESSAGE, message, receiver.substring(ROOM_PREFIX.length()),
+                requestId);
+        } else {
+            data = new DataFrame(userName, receiver, MESSAGE, message, null, requestId);
+        }
+        sendFrame(new SharedFrame<>(data));
+    }
+
+    /**
+     * Requests the server to add the user to a room
+     * @param room to join
+     * @throws ChatProtocolException if the state of the connectionHandler is not 'CONNECTED'
+     */
+    public void joinRoom(String room) throws ChatProtocolException {
+        if (state != CONNECTED) throw new ChatProtocolException("Illegal state for join: " + state);
+        this.sendRoomData(userName, room, JOIN, null);
+    }
+
+    /**
+     * Requests the server to remove the user from a room
+     * @param room to leave
+     * @throws ChatProtocolException if the state of the connectionHandler is not 'CONNECTED'
+     */
+    public void leaveRoom(String room) throws ChatProtocolException {
+        if (state != CONNECTED) throw new ChatProtocolException("Illegal state for leave: " + state);
+        this.sendRoomData(userName, room, LEAVE, null);
     }
 
     public String getUserName(){return userName;}
@@ -190,6 +395,80 @@ public abstract class ConnectionHandler implements Runnable {
      */
     protected abstract void getMessage(String sender, String receiver, DataType type, String payload) throws ChatProtocolException;
 
+    /**
+     * Defines what happens if a text message for a room has been received.
+     * By default it is handled like a message to the receiver "#room".
+     *
+     * @param sender that sent the message
+     * @param room the message belongs to
+     * @param payload of the message
+     * @throws ChatProtocolException if something is wrong with the message
+     */
+    protected void getRoomMessage(String sender, String room, String payload) throws ChatProtocolException {
+        getMessage(sender, ROOM_PREFIX + room, MESSAGE, payload);
+    }
+
+    /**
+     * Defines what happens if a join request or notification has been received.
+     * By default it is handled like an unknown data type.
+     *
+     * @param sender the user joining the room
+     * @param room to join
+     * @throws ChatProtocolException if something is wrong with the message
+     */
+    protected void getJoinMessage(String sender, String room) throws ChatProtocolException {
+        getDefaultMessage(JOIN);
+    }
+
+    /**
+     * Defines what happens if a leave request or notification has been received.
+     * By default it is handled like an unknown data type.
+     *
+     * @param sender the user leaving the room
+     * @param room to leave
+     * @throws ChatProtocolException if something is wrong with the message
+     */
+    protected void getLeaveMessage(String sender, String room) throws ChatProtocolException {
+        getDefaultMessage(LEAVE);
+    }
+
+    /**
+     * Defines what happens if a history request or the end of a history page has been received.
+     * By default it is handled like an unknown data type.
+     *
+     * @param room of the history, null for the history of the user
+     * @param id the id of the request, or of the last message of the page
+     * @param payload the page size of the request, or {@link #HISTORY_MORE} / {@link #HISTORY_END}
+     * @throws ChatProtocolException if something is wrong with the message
+     */
+    protected void getHistoryMessage(String room, long id, String payload) throws ChatProtocolException {
+        getDefaultMessage(HISTORY);
+    }
+
+    /**
+     * Defines what happens if a resume token or a request to resume a session has been received.
+     * By default it is handled like an unknown data type.
+     *
+     * @param sender the user resuming the session
+     * @param token to resume the session with
+     * @throws ChatProtocolException if something is wrong with the message
+     */
+    protected void getResumeMessage(String sender, String token) throws ChatProtocolException {
+        getDefaultMessage(RESUME);
+    }
+
+    /**
+     * Defines what happens if the acknowledgement of a message has been received.
+     * By default it is handled like an unknown data type.
+     *
+     * @param requestId of the acknowledged message
+     * @param error null if the message has been delivered, otherwise the reason it has not
+     * @throws ChatProtocolException if something is wrong with the message
+     */
+    protected void getAckMessage(long requestId, String error) throws ChatProtocolException {
+        getDefaultMessage(ACK);
+    }
+
     /**
      * Defines what happens if a disconnect request has been received
      *
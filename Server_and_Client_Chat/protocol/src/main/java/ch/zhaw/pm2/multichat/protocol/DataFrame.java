@@ -10,6 +10,8 @@ public class DataFrame implements Serializable {
     private final String receiver;
     private final DataType type;
     private final String payload;
+    private final String room;
+    private final long id;
 
     /**
      * Constructor
@@ -20,10 +22,40 @@ public class DataFrame implements Serializable {
      * @param payload of the message
      */
     public DataFrame(String sender, String receiver, DataType type, String payload) {
+        this(sender, receiver, type, payload, null);
+    }
+
+    /**
+     * Constructor for frames addressed to a room
+     *
+     * @param sender that sent the message
+     * @param receiver that will receive the message
+     * @param type of the message
+     * @param payload of the message
+     * @param room the message belongs to, null if it is not related to a room
+     */
+    public DataFrame(String sender, String receiver, DataType type, String payload, String room) {
+        this(sender, receiver, type, payload, room, 0);
+    }
+
+    /**
+     * Constructor for frames with an id
+     *
+     * @param sender that sent the message
+     * @param receiver that will receive the message
+     * @param type of the message
+     * @param payload of the message
+     * @param room the message belongs to, null if it is not related to a room
+     * @param id of the message, assigned by the server in ascending order, or the request id chosen by a client
+     *           sending a message, 0 if the message has no id
+     */
+    public DataFrame(String sender, String receiver, DataType type, String payload, String room, long id) {
         this.sender = sender;
         this.receiver = receiver;
         this.type = type;
         this.payload = payload;
+        this.room = room;
+        this.id = id;
     }
 
     /**
@@ -57,4 +89,20 @@ public class DataFrame implements Serializable {
     public String getSender() {
         return sender;
     }
+
+    /**
+     * Returns the name of the room the message belongs to
+     * @return the room, null if the message is not related to a room
+     */
+    public String getRoom() {
+        return room;
+    }
+
+    /**
+     * Returns the id of the message
+     * @return the id, 0 if the message has no id
+     */
+    public long getId() {
+        return id;
+    }
 }
@@ -0,0 +1,77 @@
+package ch.zhaw.pm2.multichat.protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Wire format used by a {@link NetworkHandler.NetworkConnection} to write and read objects of type T.
+ * A codec instance belongs to exactly one connection, so it may keep state for the lifetime of the
+ * connection (e.g. the object streams of {@link SerializedFrameCodec}).
+ * Which codec is used is negotiated when the connection is opened, see {@link CodecRegistry}.
+ *
+ * @param <T> type of the Objects to be transmitted
+ */
+public interface FrameCodec<T extends Serializable> {
+    /**
+     * Format id of the Java serialization codec. Supported for any {@link Serializable} type.
+     */
+    int FORMAT_SERIALIZED = 0;
+    /**
+     * Format id of the compact binary codec for {@link DataFrame} objects.
+     */
+    int FORMAT_BINARY = 1;
+    /**
+     * Format id of the binary codec compressing large payloads, see {@link PayloadCompression}.
+     */
+    int FORMAT_BINARY_DEFLATE = 2;
+    /**
+     * Format id of the binary codec compressing large payloads using a preset dictionary,
+     * see {@link PayloadCompression}.
+     */
+    int FORMAT_BINARY_DEFLATE_DICTIONARY = 3;
+
+    /**
+     * Returns the id of the wire format written by this codec, as exchanged during the handshake.
+     * @return format id (range: 0 - 127)
+     */
+    int getFormatId();
+
+    /**
+     * Writes one object to the given stream. The stream is not flushed, this is up to the connection.
+     * @param data  object to write
+     * @param out   stream of the connection
+     * @throws IOException if an error occurs while writing
+     */
+    void write(T data, DataOutputStream out) throws IOException;
+
+    /**
+     * Reads one object from the given stream. The call is blocking until a complete object has been read.
+     * @param in    stream of the connection
+     * @return the object read
+     * @throws IOException if an error occurs while reading or the data is malformed
+     * @throws ClassNotFoundException if the data object received does not match any class in the local classpath
+     */
+    T read(DataInputStream in) throws IOException, ClassNotFoundException;
+
+    /**
+     * Indicates if the bytes written for an object do not depend on the state of the connection, so the same bytes
+     * can be written to several connections (see {@link SharedFrame}).
+     * @return true if the codec supports {@link #toBytes(Serializable)}
+     */
+    default boolean isStateless() {
+        return false;
+    }
+
+    /**
+     * Encodes the object into exactly the bytes {@link #write(Serializable, DataOutputStream)} would write.
+     * Only supported by stateless codecs.
+     * @param data object to encode
+     * @return the encoded bytes
+     * @throws UnsupportedOperationException if the codec is not stateless
+     */
+    default byte[] toBytes(T data) {
+        throw new UnsupportedOperationException("Codec is not stateless: " + getFormatId());
+    }
+}
@@ -2,9 +2,17 @@ package ch.zhaw.pm2.multichat.protocol;
 
 import java.io.*;
 import java.net.InetAddress;
+import java.net.ProtocolException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.time.Duration;
 import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Helper class to support simple network communication.
@@ -40,8 +48,8 @@ import java.util.Objects;
  *             </li>
  *             <li>sending data: call {@link NetworkConnection#send(Serializable data)}, which sends the given data
  *             object to the remote side. The method returns as soon the object has been transmitted.
- *             <b>Important: {@link NetworkConnection} is not thread safe</b>, therefore make sure that only one thread
- *             at a time is sending data.</li>
+ *             Concurrent calls to send are serialized by the connection, so several threads may send on the same
+ *             connection.</li>
  *         </ul>
  *         <b>Important:Sending and receiving of data is completely asynchronous and can happen in parallel.</b>
  *     </li>
@@ -59,6 +67,9 @@ import java.util.Objects;
  * marker interface specifying that an object can be serialized/deserialized. As long all properties within a
  * class are also Serializable, your class simply can be marked using it. All standard Java data-types are by default
  * Serializable.</p>
+ * <p>How the objects are written on the wire is defined by a {@link FrameCodec}. When a connection is opened, the
+ * client proposes the formats of its {@link CodecRegistry} and the server picks the first one it supports as well.
+ * Without a registry, Java serialization ({@link SerializedFrameCodec}) is used.</p>
  */
 public class NetworkHandler {
     /**
@@ -69,6 +80,15 @@ public class NetworkHandler {
      * Default port on the server side to listen for requests
      */
     public static final int DEFAULT_PORT = 22243;
+    /**
+     * Magic number opening the handshake in both directions ("MC").
+     */
+    static final short HANDSHAKE_MAGIC = 0x4D43;
+    static final int HANDSHAKE_VERSION = 1;
+    /**
+     * Format id answered by the server if there is no common wire format.
+     */
+    static final int NO_FORMAT = -1;
 
     /**
      * private Constructor to avoid initialization.
@@ -85,7 +105,22 @@ public class NetworkHandler {
      * @throws IOException  if an error occured opening the port, e.g. the port number is already used.
      */
     public static <T extends Serializable> NetworkServer<T> createServer(int port) throws IOException {
-        return new NetworkServer<>(port);
+        return new NetworkServer<>(port, CodecRegistry.serialized());
+    }
+
+    /**
+     * Creates an instance of a {@link NetworkServer} listening on the specified port for connection request for
+     * Objects of type T, accepting the wire formats of the given registry.
+     * @param port          port to open on the server host (range: 1 - 65535)
+     * @param codecRegistry wire formats supported by the server, most preferred first
+     * @param <T>   type of the Objects to be transmitted in the created {@link NetworkConnection}
+     * @return  {@link NetworkServer} object to be used to wait for connections.
+     * @throws IOException  if an error occured opening the port, e.g. the port number is already used.
+     */
+    public static <T extends Serializable> NetworkServer<T> createServer(int port, CodecRegistry<T> codecRegistry)
+        throws IOException
+    {
+        return new NetworkServer<>(port, codecRegistry);
     }
 
     /**
@@ -96,7 +131,7 @@ public class NetworkHandler {
      * @throws IOException  if an error occured opening the port, e.g. the port number is already used.
      */
     public static <T extends Serializable> NetworkServer<T> createServer() throws IOException {
-        return new NetworkServer<>();
+        return new NetworkServer<>(DEFAULT_PORT, CodecRegistry.serialized());
     }
 
     /**
@@ -110,10 +145,44 @@ public class NetworkHandler {
      */
     public static <T extends Serializable> NetworkConnection<T> openConnection(InetAddress address, int port)
     throws IOException
+    {
+        return openConnection(address, port, CodecRegistry.serialized());
+    }
+
+    /**
+     * Creates an instance of a {@link NetworkConnection} connecting to the specified host/port to send and receive
+     * objects of type T, proposing the wire formats of the given registry to the server.
+     * @param address       {@link InetAddress} object for the host
+     * @param port          port number the server is waiting for connection requests
+     * @param codecRegistry wire formats supported by the client, most preferred first
+     * @param <T>       type of Objects to be transmitted trough this connection
+     * @return  {@link NetworkConnection} object representing the bidirectional channel between client and server.
+     * @throws IOException  if an error occurred opening the connection, e.g. server is not responding.
+     */
+    public static <T extends Serializable> NetworkConnection<T> openConnection(InetAddress address, int port,
+                                                                               CodecRegistry<T> codecRegistry)
+    throws IOException
     {
         Socket socket = new Socket(address, port);
         socket.setKeepAlive(true);
-        return new NetworkConnection<>(socket);
+        return new NetworkConnection<>(socket, true, codecRegistry);
+    }
+
+    /**
+     * Creates an instance of a {@link NetworkConnection} connecting to the specified host/port to send and receive
+     * objects of type T, proposing the wire formats of the given registry to the server.
+     * @param hostname      server host name or address in String representation (e.g. "www.zhaw.ch")
+     * @param port          port number the server is waiting for connection requests
+     * @param codecRegistry wire formats supported by the client, most preferred first
+     * @param <T>       type of Objects to be transmitted trough this connection
+     * @return  {@link NetworkConnection} object representing the bidirectional channel between client and server.
+     * @throws IOException  if an error occurred opening the connection, e.g. server is not responding.
+     */
+    public static <T extends Serializable> NetworkConnection<T> openConnection(String hostname, int port,
+                                                                               CodecRegistry<T> codecRegistry)
+    throws IOException
+    {
+        return openConnection(InetAddress.getByName(hostname), port, codecRegistry);
     }
 
     /**
@@ -144,6 +213,18 @@ public class NetworkHandler {
         return openConnection(DEFAULT_ADDRESS, DEFAULT_PORT);
     }
 
+    /**
+     * Creates an instance of a {@link NioNetworkServer} listening on the specified port. In contrast to
+     * {@link NetworkServer}, all connections are served by a small, fixed number of I/O threads.
+     * @param port      port to open on the server host (range: 1 - 65535)
+     * @param ioThreads number of I/O threads serving the connections
+     * @return  {@link NioNetworkServer} object to be started with a listener for new connections.
+     * @throws IOException  if an error occured opening the port, e.g. the port number is already used.
+     */
+    public static NioNetworkServer createNioServer(int port, int ioThreads) throws IOException {
+        return new NioNetworkServer(port, ioThreads);
+    }
+
 
 
 
@@ -157,24 +238,18 @@ public class NetworkHandler {
      */
     public static class NetworkServer<T extends Serializable> implements Closeable {
         private final ServerSocket serverSocket;
+        private final CodecRegistry<T> codecRegistry;
 
         /**
          * <b>Private constructor: use {@link NetworkHandler#createServer(int port)} factory method to create an instance</b>
          * Open a server port an the given port number. The port number must be unique (i.e. not used by another process)
-         * @param port  port number (range: 1 - 65535) to open to wait for requests.
+         * @param port          port number (range: 1 - 65535) to open to wait for requests.
+         * @param codecRegistry wire formats accepted from connecting clients.
          * @throws IOException if an error occurred opening the port, e.g. the port number is already used.
          */
-        private NetworkServer(int port) throws IOException {
+        private NetworkServer(int port, CodecRegistry<T> codecRegistry) throws IOException {
             this.serverSocket = new ServerSocket(port);
-        }
-
-        /**
-         * <b>Private constructor: use {@link NetworkHandler#createServer(int port)} factory method to create an instance</b>
-         * Open a server port an the default port (22243).
-         * @throws IOException if an error occurred opening the port, e.g. the port number is already used.
-         */
-        private NetworkServer() throws IOException {
-            this(DEFAULT_PORT);
+            this.codecRegistry = codecRegistry;
         }
 
         /**
@@ -188,7 +263,7 @@ public class NetworkHandler {
         public NetworkConnection<T> waitForConnection() throws IOException {
             Socket socket = serverSocket.accept();
             socket.setKeepAlive(true);
-            return new NetworkConnection<>(socket);
+            return new NetworkConnection<>(socket, false, codecRegistry);
         }
 
         /**
@@ -254,6 +329,84 @@ public class NetworkHandler {
         }
     }
 
+    /**
+     * Sending side of a connection between two peers, independent of how the data is received.
+     * Implemented by the thread based {@link NetworkConnection} and the selector based connections of
+     * {@link NioNetworkServer}.
+     *
+     * @param <T> type of Objects to be transmitted trough this connection
+     */
+    public interface Connection<T extends Serializable> extends Closeable {
+        /**
+         * Sends data to the opposite side. May be called by several threads concurrently.
+         * @param data  data object of type T to be submitted through the connection.
+         * @throws IOException if an error occurs (e.g. connection interrupted while sending, ...)
+         */
+        void send(T data) throws IOException;
+
+        /**
+         * Sends data which is sent to other connections as well. If the connection uses a stateless
+         * {@link FrameCodec}, the bytes encoded once by the {@link SharedFrame} are written, otherwise
+         * the data is encoded for this connection.
+         * @param frame data to be submitted through the connection.
+         * @throws IOException if an error occurs (e.g. connection interrupted while sending, ...)
+         */
+        default void sendShared(SharedFrame<T> frame) throws IOException {
+            send(frame.getData());
+        }
+
+        /**
+         * Indicates if the connection is open and connected to the peer.
+         * @return true if the connection is open and connected, false otherwise
+         */
+        boolean isAvailable();
+
+        /**
+         * Indicate if the connection has been closed.
+         * @return true if the connection is closed, false otherwise.
+         */
+        boolean isClosed();
+
+        /**
+         * Closes the connection immediately, discarding data not sent yet. Unlike {@link #close()} it never waits
+         * for pending data to be written, so it is safe to use for a peer which does not read anymore.
+         * @throws IOException if an I/O error occurs
+         */
+        default void abort() throws IOException {
+            close();
+        }
+
+        /**
+         * Returns the port number of the remote host, if the connection is available.
+         * @return port number (range: 1 - 65535) of the port on the remote host, 0 if not connected.
+         */
+        int getRemotePort();
+
+        /**
+         * Returns the host name or address of the remote peer.
+         * @return host of the remote peer, "not connected" if connection is not available.
+         */
+        String getRemoteHost();
+
+        /**
+         * Returns the id of the negotiated wire format (see {@link FrameCodec}).
+         * @return format id, or -1 if the handshake is not completed yet.
+         */
+        int getFormatId();
+
+        /**
+         * Returns the number of bytes received from the peer so far.
+         * @return number of bytes received
+         */
+        long getBytesReceived();
+
+        /**
+         * Returns the number of bytes sent to the peer so far.
+         * @return number of bytes sent
+         */
+        long getBytesSent();
+    }
+
     /**
      * Network communication class representing a bidirectional connection between two peers (client and server),
      * to send and receive Objects of type T.
@@ -272,8 +425,7 @@ public class NetworkHandler {
      *     </li>
      *     <li>sending data: call {@link NetworkConnection#send(Serializable data)}, which sends the given data
      *         object to the remote side. The method returns as soon the object has been transmitted.
-     *         <b>Important: {@link NetworkConnection} is not thread safe</b>, therefore make sure that only one thread
-     *         at a time is sending data.
+     *         Concurrent calls to send are serialized by the connection.
      *     </li>
      * </ul>
      * <p><b>Important: Sending and receiving of data is completely asynchronous and can happen in parallel.</b>
@@ -285,29 +437,177 @@ public class NetworkHandler {
      *
      * @param <T> type of Objects to be transmitted trough this connection
      */
-    public static class NetworkConnection<T extends Serializable> implements Closeable {
+    public static class NetworkConnection<T extends Serializable> implements Connection<T> {
+        /**
+         * Size of the send buffer. Batched frames are coalesced up to this size even if the batch limit is higher.
+         */
+        private static final int SEND_BUFFER_SIZE = 8192;
+
         private final Socket socket;
+        private final boolean clientSide;
+        private final CodecRegistry<T> codecRegistry;
+        // explicit locks instead of synchronized, so virtual threads blocked in socket I/O do not pin their carrier
+        private final Lock negotiationLock = new ReentrantLock();
+        private final Lock sendLock = new ReentrantLock();
+        private final Lock receiveLock = new ReentrantLock();
+        private final CountingOutputStream outputStream;
+        private final DataInputStream inputStream;
+        private final CountingInputStream socketInputStream;
+        private volatile FrameCodec<T> codec;
+        // batching settings, a delay of 0 disables batching
+        private volatile long batchDelayNanos = 0;
+        private volatile int batchMaxBytes = 0;
+        private boolean flushScheduled = false; // guarded by sendLock
 
         /**
          * <b>Privat constructor: Use {@link NetworkHandler#openConnection(String hostname, int port)} and similar
          * factory methods to create instances of {@link NetworkConnection}</b>
-         * @param socket   operating system socket to use for the communication.
+         * The streams of the socket are opened once and kept for the lifetime of the connection. On the client side
+         * the supported formats are sent to the server right away, the answer is read by the first call to
+         * {@link #send(Serializable)} or {@link #receive()}. On the server side the handshake is handled by the
+         * first of these calls.
+         * @param socket        operating system socket to use for the communication.
+         * @param clientSide    true if this side opened the connection and proposes the formats.
+         * @param codecRegistry formats supported by this side.
+         * @throws IOException if the streams of the socket could not be opened.
          */
-        private NetworkConnection(Socket socket) {
+        private NetworkConnection(Socket socket, boolean clientSide, CodecRegistry<T> codecRegistry)
+            throws IOException
+        {
             this.socket = socket;
+            this.clientSide = clientSide;
+            this.codecRegistry = codecRegistry;
+            this.outputStream = new CountingOutputStream(
+                new BufferedOutputStream(socket.getOutputStream(), SEND_BUFFER_SIZE));
+            this.socketInputStream = new CountingInputStream(socket.getInputStream());
+            this.inputStream = new DataInputStream(new BufferedInputStream(socketInputStream));
+            if (clientSide) {
+                outputStream.writeShort(HANDSHAKE_MAGIC);
+                outputStream.writeByte(HANDSHAKE_VERSION);
+                outputStream.writeByte(codecRegistry.getFormatIds().size());
+                for (int formatId : codecRegistry.getFormatIds()) {
+                    outputStream.writeByte(formatId);
+                }
+                outputStream.flush();
+            }
         }
 
         /**
          * Method to send data to the opposite side. The call is sending out the requests immediately and returns if
-         * submitted successfully. Data can also be sent, while another thread is waiting for requests, but it has
-         * to be made sure that only one thread is sending data at a time (not thread-safe).
+         * submitted successfully. Data can also be sent, while another thread is waiting for requests.
+         * Concurrent calls are serialized, so that the objects are not interleaved on the stream.
          * If an error occurs a {@link IOException} is thrown.
          * @param data  data object of type T to be submitted through the connection.
          * @throws IOException if an error occurs (e.g. connection interrupted while sending, ...)
          */
+        @Override
         public void send(T data) throws IOException {
-            ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
-            outputStream.writeObject(data);
+            FrameCodec<T> frameCodec = negotiatedCodec();
+            sendLock.lock();
+            try {
+                frameCodec.write(data, outputStream);
+                flushOrScheduleFlush();
+            } finally {
+                sendLock.unlock();
+            }
+        }
+
+        @Override
+        public void sendShared(SharedFrame<T> frame) throws IOException {
+            FrameCodec<T> frameCodec = negotiatedCodec();
+            if (!frameCodec.isStateless()) {
+                send(frame.getData());
+                return;
+            }
+            byte[] encoded = frame.encodedWith(frameCodec);
+            sendLock.lock();
+            try {
+                outputStream.write(encoded);
+                flushOrScheduleFlush();
+            } finally {
+                sendLock.unlock();
+            }
+        }
+
+        /**
+         * Enables batching of sent frames. Instead of flushing every frame to the socket, frames are collected in the
+         * send buffer and flushed together as soon as the batch reaches maxBytes or the oldest unflushed frame is
+         * older than maxDelay. This reduces the number of system calls and packets for bursts of small frames, at the
+         * cost of up to maxDelay additional latency. As the connection coalesces the frames itself, combine batching
+         * with {@link #setTcpNoDelay(boolean) TCP_NODELAY} enabled, so Nagle's algorithm does not delay them further.
+         * @param maxDelay  maximum time a frame waits in the send buffer
+         * @param maxBytes  number of buffered bytes triggering an immediate flush (at most 8 KiB take effect)
+         */
+        public void enableBatching(Duration maxDelay, int maxBytes) {
+            if (maxDelay.isNegative() || maxDelay.isZero()) {
+                throw new IllegalArgumentException("Batch delay must be positive: " + maxDelay);
+            }
+            if (maxBytes < 1) throw new IllegalArgumentException("Batch size must be positive: " + maxBytes);
+            this.batchMaxBytes = maxBytes;
+            this.batchDelayNanos = maxDelay.toNanos();
+        }
+
+        /**
+         * Disables batching and flushes frames still waiting in the send buffer.
+         * @throws IOException if an error occurs while flushing
+         */
+        public void disableBatching() throws IOException {
+            this.batchDelayNanos = 0;
+            flush();
+        }
+
+        /**
+         * Enables or disables TCP_NODELAY on the socket. With TCP_NODELAY disabled (the default), the operating
+         * system delays small segments while previous data is not acknowledged yet (Nagle's algorithm).
+         * @param noDelay true to send segments without delay
+         * @throws SocketException if the option could not be set
+         */
+        public void setTcpNoDelay(boolean noDelay) throws SocketException {
+            socket.setTcpNoDelay(noDelay);
+        }
+
+        /**
+         * Writes all frames waiting in the send buffer to the socket.
+         * @throws IOException if an error occurs while flushing
+         */
+        public void flush() throws IOException {
+            sendLock.lock();
+            try {
+                outputStream.flush();
+                outputStream.resetCount();
+            } finally {
+                sendLock.unlock();
+            }
+        }
+
+        /**
+         * Flushes the written frame immediately if batching is disabled or the batch is full, otherwise makes sure
+         * a flush is scheduled. Must be called holding the send lock.
+         */
+        private void flushOrScheduleFlush() throws IOException {
+            long delay = batchDelayNanos;
+            if (delay == 0 || outputStream.getCount() >= batchMaxBytes) {
+                outputStream.flush();
+                outputStream.resetCount();
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                FlushScheduler.INSTANCE.schedule(this::scheduledFlush, delay, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void scheduledFlush() {
+            sendLock.lock();
+            try {
+                flushScheduled = false;
+                if (!isClosed()) {
+                    outputStream.flush();
+                    outputStream.resetCount();
+                }
+            } catch (IOException e) {
+                // the connection is broken, which is reported to the next sender or the receiving thread
+            } finally {
+                sendLock.unlock();
+            }
         }
 
         /**
@@ -321,14 +621,83 @@ public class NetworkHandler {
          * @throws ClassNotFoundException if the data object received does not match any class in the local classpath
          */
         public T receive() throws IOException, ClassNotFoundException {
-            ObjectInputStream inputStream = new ObjectInputStream(this.socket.getInputStream());
-            return (T) inputStream.readObject();
+            FrameCodec<T> frameCodec = negotiatedCodec();
+            receiveLock.lock();
+            try {
+                return frameCodec.read(inputStream);
+            } finally {
+                receiveLock.unlock();
+            }
+        }
+
+        /**
+         * Returns the id of the negotiated wire format (see {@link FrameCodec}).
+         * @return format id, or -1 if the handshake is not completed yet.
+         */
+        @Override
+        public int getFormatId() {
+            FrameCodec<T> frameCodec = codec;
+            return frameCodec == null ? NO_FORMAT : frameCodec.getFormatId();
+        }
+
+        /**
+         * Completes the handshake if not done yet and returns the codec of the connection.
+         * The client reads the format chosen by the server, the server reads the proposed formats, chooses the
+         * first one it supports and answers with its id.
+         * @return the codec to use for this connection
+         * @throws IOException if the handshake fails or no common format exists
+         */
+        private FrameCodec<T> negotiatedCodec() throws IOException {
+            FrameCodec<T> frameCodec = codec;
+            if (frameCodec != null) return frameCodec;
+            negotiationLock.lock();
+            try {
+                if (codec != null) return codec;
+                if (clientSide) {
+                    readHandshakeHeader();
+                    int formatId = inputStream.readByte();
+                    if (!codecRegistry.supports(formatId)) {
+                        throw new ProtocolException("No common wire format with server");
+                    }
+                    codec = codecRegistry.create(formatId);
+                } else {
+                    readHandshakeHeader();
+                    int count = inputStream.readUnsignedByte();
+                    int chosen = NO_FORMAT;
+                    for (int i = 0; i < count; i++) {
+                        int formatId = inputStream.readByte();
+                        if (chosen == NO_FORMAT && codecRegistry.supports(formatId)) chosen = formatId;
+                    }
+                    outputStream.writeShort(HANDSHAKE_MAGIC);
+                    outputStream.writeByte(HANDSHAKE_VERSION);
+                    outputStream.writeByte(chosen);
+                    outputStream.flush();
+                    if (chosen == NO_FORMAT) {
+                        throw new ProtocolException("No common wire format with client");
+                    }
+                    codec = codecRegistry.create(chosen);
+                }
+                return codec;
+            } finally {
+                negotiationLock.unlock();
+            }
+        }
+
+        private void readHandshakeHeader() throws IOException {
+            if (inputStream.readShort() != HANDSHAKE_MAGIC) {
+                throw new ProtocolException("Peer is not speaking the chat protocol");
+            }
+            int version = inputStream.readUnsignedByte();
+            if (version != HANDSHAKE_VERSION) {
+                throw new ProtocolException("Unsupported handshake version: " + version);
+            }
         }
 
         /**
          * Indicates if the connection is open and connected to the peer.
          * @return true if the connection is open and connected, false otherwise
          */
+        @Override
         public boolean isAvailable() {
             return !isClosed() && socket.isConnected();
         }
@@ -338,6 +707,7 @@ public class NetworkHandler {
          * To re-open, a new Instance must be created.
          * @return true if the connection is closed, false otherwise.
          */
+        @Override
         public boolean isClosed() {
             return socket == null || socket.isClosed();
         }
@@ -346,15 +716,25 @@ public class NetworkHandler {
          * Returns the port number of the remote host, if the connection is available.
          * @return port number (range: 1 - 65535) of the port on the remote host, 0 if not connected.
          */
+        @Override
         public int getRemotePort() {
             return isAvailable()? socket.getPort() : 0;
         }
 
+        /**
+         * Returns the IP address of the remote peer, without looking up its host name.
+         * @return address of the remote peer, null if the connection is not available.
+         */
+        public InetAddress getRemoteAddress() {
+            return isAvailable()? socket.getInetAddress() : null;
+        }
+
         /**
          * Returns the host name of the remote peer. If available looks up the hostname (e.g. "www.zhaw.ch"),
          * otherwise returns a string representation of the IP address (e.g. "160.85.104.112").
          * @return host name of the remote peer, "not connected" if connection is not available.
          */
+        @Override
         public String getRemoteHost() {
             return isAvailable()? socket.getInetAddress().getHostName() : "not connected";
         }
@@ -364,16 +744,122 @@ public class NetworkHandler {
          * If the connection is closed a {@link java.net.SocketException} is thrown on all local waiting threads
          * (e.g. in {@link NetworkConnection#receive()}), and on the remote side an {@link EOFException} is thrown
          * on all waiting threads.
+         * Frames still waiting in the send buffer of a batching connection are flushed before closing, unless
+         * another thread is sending: it may be blocked by a peer not reading, so the socket is closed without
+         * waiting, which also releases the blocked sender.
          * If the connection is already closed then invoking this method has no effect.
          * @throws IOException if an I/O error occurs
          */
         @Override
         public void close() throws IOException {
+            if (isClosed()) return;
+            if (batchDelayNanos != 0 && sendLock.tryLock()) {
+                try {
+                    outputStream.flush();
+                    outputStream.resetCount();
+                } catch (IOException e) {
+                    // the peer is gone, nothing left to deliver
+                } finally {
+                    sendLock.unlock();
+                }
+            }
+            socket.close();
+        }
+
+        @Override
+        public long getBytesReceived() {
+            return socketInputStream.getTotal();
+        }
+
+        @Override
+        public long getBytesSent() {
+            return outputStream.getTotal();
+        }
+
+        /**
+         * Closes the socket without flushing frames waiting in the send buffer.
+         * @throws IOException if an I/O error occurs
+         */
+        @Override
+        public void abort() throws IOException {
             if (!isClosed()) {
                 socket.close();
             }
         }
 
+        /**
+         * {@link DataOutputStream} counting the bytes written since the last reset, i.e. the size of the batch,
+         * and in total.
+         */
+        private static class CountingOutputStream extends DataOutputStream {
+            // bytes written before the last reset, written by the thread holding the send lock
+            private volatile long total = 0;
+
+            CountingOutputStream(OutputStream out) {
+                super(out);
+            }
+
+            int getCount() {
+                return written;
+            }
+
+            void resetCount() {
+                total += written;
+                written = 0;
+            }
+
+            long getTotal() {
+                return total + written;
+            }
+        }
+
+        /**
+         * Stream of the socket counting the bytes read. Only read by the receiving thread.
+         */
+        private static class CountingInputStream extends FilterInputStream {
+            private volatile long total = 0;
+
+            CountingInputStream(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                int value = super.read();
+                if (value >= 0) total++;
+                return value;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int count = super.read(buffer, offset, length);
+                if (count > 0) total += count;
+                return count;
+            }
+
+            @Override
+            public long skip(long count) throws IOException {
+                long skipped = super.skip(count);
+                total += skipped;
+                return skipped;
+            }
+
+            long getTotal() {
+                return total;
+            }
+        }
+
+        /**
+         * Lazily started daemon thread flushing the batches of all connections.
+         */
+        private static class FlushScheduler {
+            static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "network-flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
@@ -0,0 +1,609 @@
+package ch.zhaw.pm2.multichat.protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Event-driven variant of {@link NetworkHandler.NetworkServer} for {@link DataFrame} connections.
+ * <p>Instead of one blocking thread per connection, the server uses a {@link Selector} on the calling thread to
+ * accept connections and distributes them round-robin over a fixed number of I/O threads. Each I/O thread owns a
+ * selector and a single read buffer shared by all its connections. Incoming bytes are decoded into frames on the
+ * I/O thread and passed to the {@link FrameReceiver} of the connection; outgoing frames are queued per connection
+ * and written with gathering writes as soon as the socket accepts data. An idle connection therefore only costs its
+ * channel and a few small objects, no thread and no buffer.</p>
+ * <p>Frames are decoded with the {@link BinaryFrameCodec}, as the stateful Java serialization can not be decoded
+ * from partial reads. The first binary format proposed by the client during the handshake and enabled in
+ * {@link CodecRegistry#forDataFrames()} is chosen, clients not proposing any of them are rejected.</p>
+ * <p><b>Important:</b> The receivers are called on the I/O threads and must not block, otherwise all other
+ * connections served by the same thread are stalled. Sending data is non-blocking and therefore fine.</p>
+ */
+public class NioNetworkServer implements Closeable {
+    private static final AsyncLogger logger = AsyncLogger.getLogger(NioNetworkServer.class);
+    private static final int ACCEPT_BACKLOG = 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_GATHERED_BUFFERS = 64;
+    /**
+     * Maximum number of bytes queued for a single connection. A peer not reading fast enough to stay below this
+     * limit is disconnected as slow consumer, so it can not make the server run out of memory.
+     */
+    private static final long MAX_QUEUED_BYTES = 8L * 1024 * 1024;
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector acceptSelector;
+    private final IoLoop[] ioLoops;
+    private volatile boolean closed = false;
+    private volatile boolean accepting = true;
+
+    /**
+     * Called on an I/O thread for every accepted connection.
+     */
+    public interface ConnectionListener {
+        /**
+         * Creates the receiver for the frames of a new connection.
+         * @param connection the new connection
+         * @return receiver for all frames of the connection
+         */
+        FrameReceiver connected(NioConnection connection);
+    }
+
+    /**
+     * Receives the frames of one connection. All calls for a connection are made by the same I/O thread.
+     */
+    public interface FrameReceiver {
+        /**
+         * Called for every frame received on the connection.
+         * @param frame the received frame
+         */
+        void frameReceived(DataFrame frame);
+
+        /**
+         * Called once after the connection has been closed, locally or by the remote side.
+         */
+        void connectionClosed();
+    }
+
+    /**
+     * <b>Package private constructor: use {@link NetworkHandler#createNioServer(int, int)} to create an instance</b>
+     * Opens the server port and the selectors of the I/O threads. The threads are started by
+     * {@link #run(ConnectionListener)}.
+     * @param port      port number (range: 1 - 65535) to open to wait for requests.
+     * @param ioThreads number of I/O threads serving the connections
+     * @throws IOException if an error occurred opening the port, e.g. the port number is already used.
+     */
+    NioNetworkServer(int port, int ioThreads) throws IOException {
+        if (ioThreads < 1) throw new IllegalArgumentException("At least one I/O thread required: " + ioThreads);
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        this.serverChannel.configureBlocking(false);
+        this.acceptSelector = Selector.open();
+        this.serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+        this.ioLoops = new IoLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            ioLoops[i] = new IoLoop("nio-io-" + i);
+        }
+    }
+
+    /**
+     * Starts the I/O threads and accepts connections on the calling thread, until the server is closed using
+     * {@link #close()} or {@link #stopAccepting()}.
+     * @param listener called for every accepted connection
+     * @throws IOException if an error occurred while accepting connections
+     */
+    public void run(ConnectionListener listener) throws IOException {
+        for (IoLoop ioLoop : ioLoops) {
+            ioLoop.start(listener);
+        }
+        int nextLoop = 0;
+        try {
+            while (accepting) {
+                acceptSelector.select();
+                acceptSelector.selectedKeys().clear();
+                SocketChannel channel;
+                while (accepting && (channel = serverChannel.accept()) != null) {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                    ioLoops[nextLoop].register(channel);
+                    nextLoop = (nextLoop + 1) % ioLoops.length;
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // server has been closed while waiting
+        } catch (IOException e) {
+            if (accepting) throw e;
+        }
+    }
+
+    /**
+     * Does indicate if the server is ready and bound to the declared port.
+     * @return true if the server is ready and bound to the declared port, false otherwise
+     */
+    public boolean isAvailable() {
+        return !closed && serverChannel.isOpen();
+    }
+
+    /**
+     * Does indicate if the server has been closed. A closed server can not be reopened.
+     * @return true if the server is closed, false otherwise.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Returns the port number on which the server is listening for requests.
+     * @return returns the port number (range: 1 - 65535) if the server is available, 0 otherwise.
+     */
+    public int getHostPort() {
+        return isAvailable() ? serverChannel.socket().getLocalPort() : 0;
+    }
+
+    /**
+     * Returns the host address in String format on which the server is listening for requests.
+     * @return host address in String format or "unbound" if not available.
+     */
+    public String getHostAddress() {
+        return isAvailable() ? serverChannel.socket().getInetAddress().getHostAddress() : "unbound";
+    }
+
+    /**
+     * Closes the server port, all connections and stops the I/O threads.
+     * If the Server is already closed then invoking this method has no effect.
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            stopAccepting();
+        } finally {
+            for (IoLoop ioLoop : ioLoops) {
+                ioLoop.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Closes the server port, so no more connections are accepted. The accepted connections are served until the
+     * server is closed using {@link #close()}, e.g. to let them finish sending.
+     * If the server does not accept connections anymore then invoking this method has no effect.
+     * @throws IOException if an I/O error occurs
+     */
+    public void stopAccepting() throws IOException {
+        if (!accepting) return;
+        accepting = false;
+        try {
+            serverChannel.close();
+        } finally {
+            acceptSelector.close();
+        }
+    }
+
+    /**
+     * Thread owning a selector and serving all connections registered to it.
+     */
+    private static class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHERED_BUFFERS];
+        private ConnectionListener listener;
+
+        IoLoop(String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+
+        void start(ConnectionListener listener) {
+            this.listener = listener;
+            thread.start();
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (!inLoop()) selector.wakeup();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                NioConnection connection = null;
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    connection = new NioConnection(channel, key, this);
+                    key.attach(connection);
+                    connection.receiver = listener.connected(connection);
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Failed to register connection: {}", e.getMessage());
+                    if (connection != null) {
+                        connection.closeNow();
+                    } else {
+                        closeQuietly(channel);
+                    }
+                }
+            });
+        }
+
+        void shutdown() {
+            execute(() -> {
+                for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                    if (key.attachment() instanceof NioConnection connection) connection.closeNow();
+                }
+                closeQuietly(selector);
+            });
+        }
+
+        @Override
+        public void run() {
+            while (selector.isOpen()) {
+                try {
+                    selector.select();
+                    runTasks();
+                    if (!selector.isOpen()) break;
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (connection == null || !key.isValid()) continue;
+                        if (key.isReadable()) connection.handleRead(readBuffer);
+                        if (key.isValid() && key.isWritable()) connection.flush();
+                    }
+                    selector.selectedKeys().clear();
+                    // flushes of the frames sent while handling the reads
+                    runTasks();
+                } catch (ClosedSelectorException e) {
+                    break;
+                } catch (IOException e) {
+                    logger.error("I/O loop error", e);
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    /**
+     * Connection served by an I/O thread of the {@link NioNetworkServer}.
+     * Sending is non-blocking: frames are encoded on the calling thread, queued and written by the I/O thread.
+     */
+    public static class NioConnection implements NetworkHandler.Connection<DataFrame> {
+        private static final CodecRegistry<DataFrame> FORMATS = CodecRegistry.forDataFrames();
+
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final IoLoop ioLoop;
+        private final InetSocketAddress remoteAddress;
+        private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+        private final AtomicLong queuedBytes = new AtomicLong(0);
+        private volatile boolean closing = false;
+        private volatile int formatId = NetworkHandler.NO_FORMAT;
+        // codec of the negotiated format, uncompressed until the handshake is completed
+        private volatile BinaryFrameCodec codec = new BinaryFrameCodec();
+        // only written by the I/O thread
+        private volatile long bytesReceived = 0;
+        private volatile long bytesSent = 0;
+        // the following fields are only accessed by the I/O thread
+        private FrameReceiver receiver;
+        private boolean closed = false;
+        private byte[] pending;
+        private int pendingLength = 0;
+
+        private NioConnection(SocketChannel channel, SelectionKey key, IoLoop ioLoop) throws IOException {
+            this.channel = channel;
+            this.key = key;
+            this.ioLoop = ioLoop;
+            this.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+        }
+
+        /**
+         * Queues the frame to be sent to the opposite side and returns immediately.
+         * @param data  frame to be submitted through the connection.
+         * @throws IOException if the connection is closed
+         */
+        @Override
+        public void send(DataFrame data) throws IOException {
+            if (closing) throw new SocketException("Connection closed");
+            enqueue(ByteBuffer.wrap(codec.toBytes(data)));
+        }
+
+        /**
+         * Queues the bytes encoded once by the shared frame. The connection only gets its own view of the bytes,
+         * so a broadcast to many connections neither encodes nor copies the frame per connection.
+         * @param frame frame to be submitted through the connection.
+         * @throws IOException if the connection is closed
+         */
+        @Override
+        public void sendShared(SharedFrame<DataFrame> frame) throws IOException {
+            if (closing) throw new SocketException("Connection closed");
+            enqueue(ByteBuffer.wrap(frame.encodedWith(codec)).asReadOnlyBuffer());
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return !closing && channel.isOpen();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closing;
+        }
+
+        @Override
+        public int getRemotePort() {
+            return isAvailable() ? remoteAddress.getPort() : 0;
+        }
+
+        /**
+         * Returns the IP address of the remote peer. No reverse lookup is done, as this would block the caller.
+         * @return IP address of the remote peer, "not connected" if connection is not available.
+         */
+        @Override
+        public String getRemoteHost() {
+            return isAvailable() ? remoteAddress.getAddress().getHostAddress() : "not connected";
+        }
+
+        @Override
+        public int getFormatId() {
+            return formatId;
+        }
+
+        @Override
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+
+        @Override
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        /**
+         * Returns the number of bytes queued but not yet written to the socket.
+         * @return number of queued bytes
+         */
+        public long getQueuedBytes() {
+            return queuedBytes.get();
+        }
+
+        /**
+         * Closes the connection as soon as all queued frames have been written.
+         * If the connection is already closed then invoking this method has no effect.
+         */
+        @Override
+        public void close() {
+            if (closing) return;
+            closing = true;
+            if (ioLoop.inLoop()) {
+                flush();
+            } else {
+                ioLoop.execute(this::flush);
+            }
+        }
+
+        /**
+         * Closes the connection without writing the queued frames.
+         */
+        @Override
+        public void abort() {
+            closing = true;
+            if (ioLoop.inLoop()) {
+                closeNow();
+            } else {
+                ioLoop.execute(this::closeNow);
+            }
+        }
+
+        private void enqueue(ByteBuffer buffer) {
+            if (queuedBytes.addAndGet(buffer.remaining()) > MAX_QUEUED_BYTES) {
+                logger.warn("Disconnecting slow consumer {}", remoteAddress);
+                closing = true;
+                ioLoop.execute(this::closeNow);
+                return;
+            }
+            outbound.add(buffer);
+            // on the I/O thread the flush runs after all ready connections have been handled, so the frames sent
+            // in reply to the received ones (e.g. a message and its acknowledgement) are written together
+            if (flushScheduled.compareAndSet(false, true)) ioLoop.execute(this::flush);
+        }
+
+        /**
+         * Writes as many queued buffers as the socket accepts. If the socket is full, the connection waits for
+         * {@link SelectionKey#OP_WRITE} and continues when the I/O thread calls this method again.
+         * Only called by the I/O thread.
+         */
+        private void flush() {
+            if (closed) return;
+            ByteBuffer[] batch = ioLoop.gatherBuffers;
+            try {
+                while (true) {
+                    int count = 0;
+                    for (Iterator<ByteBuffer> it = outbound.iterator(); it.hasNext() && count < batch.length; ) {
+                        batch[count++] = it.next();
+                    }
+                    if (count == 0) {
+                        flushScheduled.set(false);
+                        if (outbound.isEmpty() || !flushScheduled.compareAndSet(false, true)) break;
+                        continue;
+                    }
+                    bytesSent += channel.write(batch, 0, count);
+                    boolean socketFull = batch[count - 1].hasRemaining();
+                    for (int i = 0; i < count && !batch[i].hasRemaining(); i++) {
+                        queuedBytes.addAndGet(-outbound.poll().limit());
+                    }
+                    Arrays.fill(batch, 0, count, null);
+                    if (socketFull) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                if (key.isValid()) key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (closing) closeNow();
+            } catch (IOException | RuntimeException e) {
+                Arrays.fill(batch, null);
+                closeNow();
+            }
+        }
+
+        /**
+         * Reads the available bytes and passes every complete frame to the receiver. Bytes of an incomplete
+         * frame are kept until the next read. Only called by the I/O thread.
+         * @param readBuffer buffer of the I/O thread
+         */
+        private void handleRead(ByteBuffer readBuffer) {
+            try {
+                readBuffer.clear();
+                int count = channel.read(readBuffer);
+                if (count < 0) {
+                    closeNow();
+                    return;
+                }
+                bytesReceived += count;
+                byte[] data = readBuffer.array();
+                if (pendingLength == 0) {
+                    int consumed = decode(data, 0, count);
+                    if (consumed < count) {
+                        pending = Arrays.copyOfRange(data, consumed, count);
+                        pendingLength = count - consumed;
+                    }
+                } else {
+                    if (pending.length < pendingLength + count) {
+                        pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + count));
+                    }
+                    System.arraycopy(data, 0, pending, pendingLength, count);
+                    pendingLength += count;
+                    int consumed = decode(pending, 0, pendingLength);
+                    pendingLength -= consumed;
+                    if (pendingLength == 0) {
+                        pending = null;
+                    } else if (consumed > 0) {
+                        System.arraycopy(pending, consumed, pending, 0, pendingLength);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Closing connection to {}: {}", remoteAddress, e);
+                closeNow();
+            }
+        }
+
+        /**
+         * Decodes the handshake and all complete frames within the given range.
+         * @return number of bytes consumed
+         */
+        private int decode(byte[] buffer, int position, int limit) throws ProtocolException {
+            while (position < limit && !closing) {
+                if (formatId == NetworkHandler.NO_FORMAT) {
+                    int consumed = decodeHandshake(buffer, position, limit);
+                    if (consumed == 0) break;
+                    position += consumed;
+                    continue;
+                }
+                int cursor = position;
+                int length = 0;
+                boolean complete = false;
+                for (int shift = 0; cursor < limit; shift += 7) {
+                    if (shift >= 35) throw new ProtocolException("Varint too long");
+                    int next = buffer[cursor++] & 0xFF;
+                    length |= (next & 0x7F) << shift;
+                    if ((next & 0x80) == 0) {
+                        complete = true;
+                        break;
+                    }
+                }
+                if (!complete) break;
+                if (length < 0 || length > BinaryFrameCodec.MAX_FRAME_LENGTH) {
+                    throw new ProtocolException("Illegal frame length: " + length);
+                }
+                if (limit - cursor < length) break;
+                DataFrame frame = codec.decode(buffer, cursor, length);
+                position = cursor + length;
+                receiver.frameReceived(frame);
+            }
+            return position;
+        }
+
+        /**
+         * Decodes the handshake of the client and answers with the chosen format.
+         * @return number of bytes consumed, 0 if the handshake is not complete yet
+         */
+        private int decodeHandshake(byte[] buffer, int position, int limit) throws ProtocolException {
+            if (limit - position < 4) return 0;
+            int magic = ((buffer[position] & 0xFF) << 8) | (buffer[position + 1] & 0xFF);
+            if ((short) magic != NetworkHandler.HANDSHAKE_MAGIC) {
+                throw new ProtocolException("Peer is not speaking the chat protocol");
+            }
+            int version = buffer[position + 2] & 0xFF;
+            if (version != NetworkHandler.HANDSHAKE_VERSION) {
+                throw new ProtocolException("Unsupported handshake version: " + version);
+            }
+            int count = buffer[position + 3] & 0xFF;
+            if (limit - position < 4 + count) return 0;
+            int chosen = NetworkHandler.NO_FORMAT;
+            for (int i = 0; i < count && chosen == NetworkHandler.NO_FORMAT; i++) {
+                int proposed = buffer[position + 4 + i];
+                if (BinaryFrameCodec.isBinaryFormat(proposed) && FORMATS.supports(proposed)) chosen = proposed;
+            }
+            byte[] answer = {
+                (byte) (NetworkHandler.HANDSHAKE_MAGIC >> 8), (byte) NetworkHandler.HANDSHAKE_MAGIC,
+                (byte) NetworkHandler.HANDSHAKE_VERSION, (byte) chosen
+            };
+            enqueue(ByteBuffer.wrap(answer));
+            if (chosen == NetworkHandler.NO_FORMAT) {
+                close();
+                return 4 + count;
+            }
+            codec = (BinaryFrameCodec) FORMATS.create(chosen);
+            formatId = chosen;
+            return 4 + count;
+        }
+
+        /**
+         * Closes the channel immediately and informs the receiver. Only called by the I/O thread.
+         */
+        private void closeNow() {
+            if (closed) return;
+            closed = true;
+            closing = true;
+            key.cancel();
+            closeQuietly(channel);
+            outbound.clear();
+            queuedBytes.set(0);
+            pending = null;
+            pendingLength = 0;
+            if (receiver != null) receiver.connectionClosed();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package ch.zhaw.pm2.multichat.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of large payloads, used by the compressing formats of the {@link BinaryFrameCodec}.
+ * <p>Only payloads of at least {@code multichat.compression.threshold} UTF-8 bytes (default 512) are compressed,
+ * and only if this makes them smaller, so short chat messages are sent as before. Each payload is compressed on its
+ * own, keeping the codec stateless: a broadcast is still compressed once for all connections.</p>
+ * <p>As a single payload offers little context to find repetitions in, the preset dictionary of
+ * {@link #DEFLATE_DICTIONARY} primes the compressor with text typical for chat messages and pasted logs. Both peers
+ * must use the same dictionary, so a changed dictionary needs a new format id.</p>
+ */
+public final class PayloadCompression {
+    /**
+     * Minimum size of a payload in UTF-8 bytes to be compressed.
+     */
+    public static final int THRESHOLD = Math.max(Integer.getInteger("multichat.compression.threshold", 512), 1);
+    /**
+     * Maximum ratio of the original to the compressed size deflate can achieve: a match of 258 bytes coded in 2 bits.
+     */
+    static final int MAX_RATIO = 1032;
+    // initial size of the buffer the payload is inflated into, it grows as the payload is inflated
+    private static final int INITIAL_BUFFER = 8192;
+
+    private static final byte[] DICTIONARY = """
+        https://www. http://localhost: .com/ .html .json .java .txt \
+        java.lang.NullPointerException java.lang.IllegalStateException java.lang.IllegalArgumentException \
+        java.io.IOException: Connection reset Caused by: ... more \
+        at java.base/java.lang.Thread.run(Thread.java: \
+        at java.base/java.util.concurrent.ThreadPoolExecutor.runWorker(ThreadPoolExecutor.java: \
+        at ch.zhaw.pm2.multichat. Exception in thread "main" \
+        [main] DEBUG [main] INFO [main] WARN [main] ERROR  - Failed to  - Started  - Stopped  null true false \
+        {"id": , "name": "type": "message": "value": }, { ] } \
+        2026-01-01T00:00:00.000Z 00:00:00 \
+        public class private static final void return new String if (  } else { for (int i = 0; i < \
+        the and that have with this from they will would there their what about which when make can like \
+        time just know take people into year your good some could them other than then look only come \
+        over think also back after use two how our work first well way even want because any these \
+        give day most thank you please hello thanks sorry okay yes no I'm I think we should the \
+        """.getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Compression without dictionary.
+     */
+    public static final PayloadCompression DEFLATE = new PayloadCompression(null);
+    /**
+     * Compression with the preset dictionary.
+     */
+    public static final PayloadCompression DEFLATE_DICTIONARY = new PayloadCompression(DICTIONARY);
+
+    private final byte[] dictionary;
+
+    private PayloadCompression(byte[] dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Compresses the payload if it is large enough and gets smaller.
+     *
+     * @param payload UTF-8 bytes of the payload
+     * @return the compressed bytes, null if the payload is to be sent uncompressed
+     */
+    byte[] compress(byte[] payload) {
+        if (payload.length < THRESHOLD) return null;
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            if (dictionary != null) deflater.setDictionary(dictionary);
+            deflater.setInput(payload);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(payload.length / 2);
+            byte[] buffer = new byte[Math.min(payload.length, 8192)];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                compressed.write(buffer, 0, length);
+                // not worth it if it does not save anything
+                if (compressed.size() >= payload.length) return null;
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompresses a payload.
+     *
+     * @param buffer containing the compressed bytes
+     * @param offset of the compressed bytes
+     * @param length of the compressed bytes
+     * @param originalLength number of UTF-8 bytes of the payload, as sent with the compressed bytes
+     * @return the payload
+     * @throws ProtocolException if the compressed bytes are malformed or do not match the original length
+     */
+    String decompress(byte[] buffer, int offset, int length, int originalLength) throws ProtocolException {
+        // the length is chosen by the peer, it must not exceed what the compressed bytes can inflate to
+        if (originalLength < 0 || originalLength > BinaryFrameCodec.MAX_FRAME_LENGTH
+            || originalLength > (long) length * MAX_RATIO) {
+            throw new ProtocolException("Illegal payload length: " + originalLength);
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            // the raw format has no header announcing the dictionary, it is set up front
+            if (dictionary != null) inflater.setDictionary(dictionary);
+            inflater.setInput(buffer, offset, length);
+            byte[] payload = new byte[Math.min(originalLength, INITIAL_BUFFER)];
+            int inflated = 0;
+            while (inflated < originalLength) {
+                if (inflated == payload.length) {
+                    payload = Arrays.copyOf(payload, (int) Math.min((long) payload.length * 2, originalLength));
+                }
+                int count = inflater.inflate(payload, inflated, payload.length - inflated);
+                if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+                inflated += count;
+            }
+            if (inflated != originalLength || inflater.getRemaining() > 0) {
+                throw new ProtocolException("Compressed payload does not match its length");
+            }
+            return new String(payload, StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Malformed compressed payload: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package ch.zhaw.pm2.multichat.protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * {@link FrameCodec} using Java serialization. The object streams are kept open for the lifetime of the connection,
+ * so the stream header and class descriptors are only sent once and following objects only carry their fields and
+ * back-references.
+ * <p>Deserializing data from an untrusted peer can instantiate any class on the class path, therefore every object
+ * read is checked by an {@link ObjectInputFilter}: the nesting depth, the back-references and arrays are limited, and
+ * {@link #forDataFrames()} only allows the classes of a {@link DataFrame}. Also an object may not take more than
+ * {@link BinaryFrameCodec#MAX_FRAME_LENGTH} bytes. The chat server does not accept this format at all, see
+ * {@link CodecRegistry#forDataFrames()}.</p>
+ *
+ * @param <T> type of the Objects to be transmitted
+ */
+public class SerializedFrameCodec<T extends Serializable> implements FrameCodec<T> {
+    /**
+     * Number of objects written before the stream handle table is reset. Resetting drops the back-references
+     * the stream keeps to already written objects, so memory stays bounded on long-lived connections, at the
+     * cost of re-sending the class descriptors once per interval.
+     */
+    private static final int RESET_INTERVAL = 512;
+    /**
+     * Limits applying to any object read. The back-references are only dropped when the writer resets the stream,
+     * so the limit allows {@link #RESET_INTERVAL} objects with a few references each.
+     */
+    private static final String LIMITS = "maxdepth=16;maxrefs=16384;maxarray=65536";
+
+    private final ObjectInputFilter filter;
+    private DrainableObjectOutputStream objectOutput;
+    private ObjectInputStream objectInput;
+    private BoundedInputStream boundedInput;
+    private int objectsSinceReset = 0;
+
+    /**
+     * Creates a codec accepting objects of any class within the limits of depth, references, array and object
+     * size. Only use it for peers which are trusted, or with {@link #SerializedFrameCodec(ObjectInputFilter)}.
+     */
+    public SerializedFrameCodec() {
+        this(ObjectInputFilter.Config.createFilter(LIMITS));
+    }
+
+    /**
+     * Creates a codec checking the objects read with the given filter, in addition to the object size.
+     *
+     * @param filter deciding which classes, depths and references are accepted
+     */
+    public SerializedFrameCodec(ObjectInputFilter filter) {
+        this.filter = Objects.requireNonNull(filter, "Filter must not be null");
+    }
+
+    /**
+     * Creates a codec only accepting {@link DataFrame} objects.
+     *
+     * @return codec rejecting any other class
+     */
+    public static SerializedFrameCodec<DataFrame> forDataFrames() {
+        return new SerializedFrameCodec<>(ObjectInputFilter.Config.createFilter(LIMITS
+            + ";" + DataFrame.class.getName()
+            + ";" + ConnectionHandler.DataType.class.getName()
+            + ";java.lang.Enum;java.lang.String;!*"));
+    }
+
+    @Override
+    public int getFormatId() {
+        return FORMAT_SERIALIZED;
+    }
+
+    @Override
+    public void write(T data, DataOutputStream out) throws IOException {
+        if (objectOutput == null) {
+            objectOutput = new DrainableObjectOutputStream(out);
+        }
+        if (++objectsSinceReset >= RESET_INTERVAL) {
+            objectOutput.reset();
+            objectsSinceReset = 0;
+        }
+        objectOutput.writeObject(data);
+        objectOutput.drain();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T read(DataInputStream in) throws IOException, ClassNotFoundException {
+        if (objectInput == null) {
+            // reading the stream header is blocking, therefore the stream is only opened on the first read
+            boundedInput = new BoundedInputStream(in);
+            objectInput = new ObjectInputStream(boundedInput);
+            objectInput.setObjectInputFilter(filter);
+        }
+        boundedInput.remaining = BinaryFrameCodec.MAX_FRAME_LENGTH;
+        return (T) objectInput.readObject();
+    }
+
+    /**
+     * Input stream failing if more than the remaining bytes are read, so a peer can not make the codec read an
+     * arbitrarily large object, e.g. a string, which the filter does not check.
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+        private long remaining = BinaryFrameCodec.MAX_FRAME_LENGTH;
+
+        BoundedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            consume(1);
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, (int) Math.min(length, Math.max(remaining, 1)));
+            if (count > 0) consume(count);
+            return count;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(Math.min(count, Math.max(remaining, 1)));
+            consume(skipped);
+            return skipped;
+        }
+
+        private void consume(long count) throws InvalidObjectException {
+            remaining -= count;
+            if (remaining < 0) {
+                throw new InvalidObjectException("Object exceeds " + BinaryFrameCodec.MAX_FRAME_LENGTH + " bytes");
+            }
+        }
+    }
+
+    /**
+     * {@link ObjectOutputStream} which allows to move its internal buffer to the underlying stream without flushing
+     * the underlying stream.
+     */
+    private static class DrainableObjectOutputStream extends ObjectOutputStream {
+        DrainableObjectOutputStream(OutputStream out) throws IOException {
+            super(out);
+        }
+
+        @Override
+        public void drain() throws IOException {
+            super.drain();
+        }
+    }
+}
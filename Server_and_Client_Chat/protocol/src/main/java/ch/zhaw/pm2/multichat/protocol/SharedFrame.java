@@ -0,0 +1,66 @@
+package ch.zhaw.pm2.multichat.protocol;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Object to be sent to several connections, e.g. a broadcast message.
+ * <p>Connections using a stateless {@link FrameCodec} encode the object only once and all of them write the same
+ * immutable bytes. Connections with a stateful codec (Java serialization) write the object with their own codec.
+ * The encoded bytes are cached per format; as the connections of a server only use a few formats, this means one
+ * encoding per frame and format.</p>
+ *
+ * @param <T> type of the Object to be transmitted
+ */
+public final class SharedFrame<T extends Serializable> {
+    private final T data;
+    private final long createdNanos = System.nanoTime();
+    private volatile Encoding[] encodings = new Encoding[0];
+
+    /**
+     * Constructor
+     *
+     * @param data object to send
+     */
+    public SharedFrame(T data) {
+        this.data = Objects.requireNonNull(data, "Data must not be null");
+    }
+
+    /**
+     * Returns the object to send.
+     * @return the object
+     */
+    public T getData() {
+        return data;
+    }
+
+    /**
+     * Returns the time the frame has been created, e.g. to measure how long it took to send it.
+     * @return creation time in nanoseconds, as returned by {@link System#nanoTime()}
+     */
+    public long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    /**
+     * Returns the bytes of the object as written by the given codec, encoding it on first use.
+     * The returned array is shared and must not be modified.
+     * @param codec stateless codec of the connection
+     * @return the encoded bytes
+     */
+    byte[] encodedWith(FrameCodec<T> codec) {
+        Encoding[] current = encodings;
+        for (Encoding encoding : current) {
+            if (encoding.formatId == codec.getFormatId()) return encoding.bytes;
+        }
+        // concurrent first calls may encode twice or drop an encoding, which is cheaper than locking
+        byte[] bytes = codec.toBytes(data);
+        Encoding[] extended = Arrays.copyOf(current, current.length + 1);
+        extended[current.length] = new Encoding(codec.getFormatId(), bytes);
+        encodings = extended;
+        return bytes;
+    }
+
+    private record Encoding(int formatId, byte[] bytes) {}
+}
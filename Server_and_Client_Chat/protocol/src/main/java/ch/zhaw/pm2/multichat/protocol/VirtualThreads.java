@@ -0,0 +1,51 @@
+package ch.zhaw.pm2.multichat.protocol;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads without requiring them at compile time.
+ * The modules are compiled for Java 17, virtual threads are only available when running on Java 21 or newer.
+ */
+public final class VirtualThreads {
+    private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = lookupExecutorFactory();
+
+    /**
+     * private Constructor to avoid initialization.
+     */
+    private VirtualThreads() {}
+
+    /**
+     * Indicates if the running JVM supports virtual threads.
+     * @return true if virtual threads are available
+     */
+    public static boolean isSupported() {
+        return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+    }
+
+    /**
+     * Creates an executor starting a new virtual thread for each task.
+     * @return the executor
+     * @throws UnsupportedOperationException if the running JVM does not support virtual threads
+     */
+    public static ExecutorService newPerTaskExecutor() {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or newer");
+        }
+        try {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new UnsupportedOperationException("Failed to create virtual thread executor", e);
+        }
+    }
+
+    private static Method lookupExecutorFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
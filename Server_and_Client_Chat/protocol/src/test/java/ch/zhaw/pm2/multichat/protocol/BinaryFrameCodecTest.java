@@ -0,0 +1,227 @@
+package ch.zhaw.pm2.multichat.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static ch.zhaw.pm2.multichat.protocol.ConnectionHandler.DataType;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the {@link BinaryFrameCodec}: round trips of all fields, malformed frames and compressed payloads.
+ */
+class BinaryFrameCodecTest {
+    // long enough to exceed the compression threshold, and compressible
+    private static final String LARGE_PAYLOAD = "Hello everybody in this chat room! ".repeat(40);
+
+    @Test
+    void roundTripWithAllFields() throws IOException {
+        DataFrame frame = new DataFrame("alice", "bob", DataType.MESSAGE, "Grüezi 👋", "lobby", 1L << 40);
+        assertFrameEquals(frame, roundTrip(new BinaryFrameCodec(), frame));
+    }
+
+    @Test
+    void roundTripWithoutOptionalFields() throws IOException {
+        DataFrame frame = new DataFrame("alice", null, DataType.CONNECT, null);
+        DataFrame read = roundTrip(new BinaryFrameCodec(), frame);
+        assertFrameEquals(frame, read);
+        assertNull(read.getReceiver());
+        assertNull(read.getRoom());
+        assertEquals(0L, read.getId());
+    }
+
+    @Test
+    void roundTripOfEveryType() throws IOException {
+        for (DataType type : DataType.values()) {
+            DataFrame frame = new DataFrame("alice", "bob", type, type.name(), null, 7);
+            assertFrameEquals(frame, roundTrip(new BinaryFrameCodec(), frame));
+        }
+    }
+
+    @Test
+    void roundTripOfConsecutiveFrames() throws IOException {
+        BinaryFrameCodec codec = new BinaryFrameCodec();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; i < 100; i++) {
+            codec.write(new DataFrame("alice", "bob", DataType.MESSAGE, "message " + i, null, i), out);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (int i = 0; i < 100; i++) {
+            DataFrame read = codec.read(in);
+            assertEquals("message " + i, read.getPayload());
+            assertEquals(i, read.getId());
+        }
+        assertThrows(EOFException.class, () -> codec.read(in));
+    }
+
+    @Test
+    void truncatedFrameIsRejected() {
+        byte[] encoded = BinaryFrameCodec.encode(new DataFrame("alice", "bob", DataType.MESSAGE, "Hello", "lobby", 42));
+        for (int length = 1; length < encoded.length; length++) {
+            byte[] truncated = Arrays.copyOf(encoded, length);
+            assertThrows(EOFException.class, () -> new BinaryFrameCodec().read(input(truncated)));
+        }
+    }
+
+    @Test
+    void bodyEndingWithinAFieldIsRejected() {
+        byte[] encoded = BinaryFrameCodec.encode(new DataFrame("alice", "bob", DataType.MESSAGE, "Hello"));
+        // the length prefix takes one byte, the body ends within the payload
+        assertThrows(ProtocolException.class,
+            () -> BinaryFrameCodec.decodeBody(encoded, 1, encoded.length - 3));
+    }
+
+    @Test
+    void oversizedFrameIsRejectedBeforeReadingTheBody() {
+        byte[] length = new byte[5];
+        int end = BinaryFrameCodec.putVarint(length, 0, BinaryFrameCodec.MAX_FRAME_LENGTH + 1);
+        ProtocolException exception = assertThrows(ProtocolException.class,
+            () -> new BinaryFrameCodec().read(input(Arrays.copyOf(length, end))));
+        assertTrue(exception.getMessage().startsWith("Illegal frame length"));
+    }
+
+    @Test
+    void negativeFrameLengthIsRejected() {
+        byte[] length = new byte[5];
+        int end = BinaryFrameCodec.putVarint(length, 0, -1);
+        assertThrows(ProtocolException.class, () -> new BinaryFrameCodec().read(input(Arrays.copyOf(length, end))));
+    }
+
+    @Test
+    void unknownTypeIsRejected() {
+        byte[] encoded = BinaryFrameCodec.encode(new DataFrame("alice", "bob", DataType.MESSAGE, "Hello"));
+        encoded[1] = (byte) DataType.values().length;
+        assertThrows(ProtocolException.class, () -> new BinaryFrameCodec().read(input(encoded)));
+    }
+
+    @Test
+    void trailingBytesAreRejected() {
+        byte[] encoded = BinaryFrameCodec.encode(new DataFrame("alice", "bob", DataType.MESSAGE, "Hello", "lobby", 1));
+        byte[] body = Arrays.copyOfRange(encoded, 1, encoded.length + 1);
+        assertThrows(ProtocolException.class, () -> BinaryFrameCodec.decodeBody(body, 0, body.length));
+    }
+
+    @Test
+    void largePayloadIsCompressed() throws IOException {
+        for (BinaryFrameCodec codec : new BinaryFrameCodec[] {
+            BinaryFrameCodec.deflate(), BinaryFrameCodec.deflateWithDictionary()}) {
+            DataFrame frame = new DataFrame("alice", "bob", DataType.MESSAGE, LARGE_PAYLOAD, "lobby", 3);
+            byte[] encoded = codec.toBytes(frame);
+            assertTrue(isCompressed(encoded), "Compressed flag not set");
+            assertTrue(encoded.length < BinaryFrameCodec.encode(frame).length, "Payload not compressed");
+            assertFrameEquals(frame, codec.read(input(encoded)));
+        }
+    }
+
+    @Test
+    void smallPayloadIsNotCompressed() throws IOException {
+        DataFrame frame = new DataFrame("alice", "bob", DataType.MESSAGE, "Hello");
+        byte[] encoded = BinaryFrameCodec.deflate().toBytes(frame);
+        assertTrue(!isCompressed(encoded), "Compressed flag set");
+        // frames without compressed payload are readable by every binary format
+        assertFrameEquals(frame, new BinaryFrameCodec().read(input(encoded)));
+    }
+
+    @Test
+    void compressedPayloadIsRejectedByUncompressedFormat() {
+        byte[] encoded = BinaryFrameCodec.deflate()
+            .toBytes(new DataFrame("alice", "bob", DataType.MESSAGE, LARGE_PAYLOAD));
+        ProtocolException exception = assertThrows(ProtocolException.class,
+            () -> new BinaryFrameCodec().read(input(encoded)));
+        assertEquals("Compressed payload in uncompressed format", exception.getMessage());
+    }
+
+    @Test
+    void corruptCompressedPayloadIsRejected() {
+        byte[] encoded = BinaryFrameCodec.deflate()
+            .toBytes(new DataFrame("alice", "bob", DataType.MESSAGE, LARGE_PAYLOAD));
+        // overwrite the end of the deflated bytes
+        Arrays.fill(encoded, encoded.length - 8, encoded.length, (byte) 0xFF);
+        assertThrows(ProtocolException.class, () -> BinaryFrameCodec.deflate().read(input(encoded)));
+    }
+
+    @Test
+    void tinyCompressedPayloadClaimingHugeLengthIsRejected() {
+        byte[] compressed = PayloadCompression.DEFLATE.compress("a".repeat(1000).getBytes(StandardCharsets.UTF_8));
+        byte[] frame = compressedFrame(compressed, BinaryFrameCodec.MAX_FRAME_LENGTH);
+        assertTrue(frame.length < 32, "Frame not tiny: " + frame.length);
+        ProtocolException exception = assertThrows(ProtocolException.class,
+            () -> BinaryFrameCodec.deflate().read(input(frame)));
+        assertTrue(exception.getMessage().startsWith("Illegal payload length"));
+    }
+
+    @Test
+    void compressedPayloadShorterThanClaimedIsRejected() {
+        byte[] compressed = PayloadCompression.DEFLATE.compress("a".repeat(1000).getBytes(StandardCharsets.UTF_8));
+        byte[] frame = compressedFrame(compressed, compressed.length * PayloadCompression.MAX_RATIO);
+        ProtocolException exception = assertThrows(ProtocolException.class,
+            () -> BinaryFrameCodec.deflate().read(input(frame)));
+        assertEquals("Compressed payload does not match its length", exception.getMessage());
+    }
+
+    /**
+     * Builds a frame with a compressed payload announcing the given original length, and without sender and
+     * receiver.
+     */
+    private static byte[] compressedFrame(byte[] compressed, int originalLength) {
+        byte[] field = new byte[5 + compressed.length];
+        int fieldLength = BinaryFrameCodec.putVarint(field, 0, originalLength);
+        System.arraycopy(compressed, 0, field, fieldLength, compressed.length);
+        fieldLength += compressed.length;
+
+        byte[] body = new byte[3 + 5 + fieldLength];
+        body[0] = (byte) (DataType.MESSAGE.ordinal() | 0x80);
+        // sender and receiver are null
+        int position = 3;
+        position = BinaryFrameCodec.putVarint(body, position, fieldLength + 1);
+        System.arraycopy(field, 0, body, position, fieldLength);
+        position += fieldLength;
+
+        byte[] frame = new byte[5 + position];
+        int start = BinaryFrameCodec.putVarint(frame, 0, position);
+        System.arraycopy(body, 0, frame, start, position);
+        return Arrays.copyOf(frame, start + position);
+    }
+
+    private static DataFrame roundTrip(BinaryFrameCodec codec, DataFrame frame) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        codec.write(frame, new DataOutputStream(bytes));
+        return codec.read(input(bytes.toByteArray()));
+    }
+
+    private static DataInputStream input(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    /**
+     * Reads the compressed flag from the type byte, which follows the length prefix.
+     */
+    private static boolean isCompressed(byte[] encoded) {
+        int position = 0;
+        while ((encoded[position] & 0x80) != 0) {
+            position++;
+        }
+        return (encoded[position + 1] & 0x80) != 0;
+    }
+
+    static void assertFrameEquals(DataFrame expected, DataFrame actual) {
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getSender(), actual.getSender());
+        assertEquals(expected.getReceiver(), actual.getReceiver());
+        assertEquals(expected.getPayload(), actual.getPayload());
+        assertEquals(expected.getRoom(), actual.getRoom());
+        assertEquals(expected.getId(), actual.getId());
+    }
+}
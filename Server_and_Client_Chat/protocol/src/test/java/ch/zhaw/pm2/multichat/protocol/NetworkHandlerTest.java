@@ -0,0 +1,106 @@
+package ch.zhaw.pm2.multichat.protocol;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static ch.zhaw.pm2.multichat.protocol.ConnectionHandler.DataType;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the handshake of {@link NetworkHandler.NetworkConnection}s over loopback: the format proposed first by the
+ * client and supported by the server is chosen, and connections without a common format fail on both sides.
+ */
+class NetworkHandlerTest {
+    private static final int TIMEOUT_SECONDS = 10;
+
+    private final ExecutorService serverThread = Executors.newSingleThreadExecutor();
+    private NetworkHandler.NetworkServer<DataFrame> server;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        serverThread.shutdownNow();
+        if (server != null) server.close();
+    }
+
+    @Test
+    void firstFormatOfClientSupportedByServerIsChosen() throws Exception {
+        CodecRegistry<DataFrame> serverFormats = new CodecRegistry<DataFrame>()
+            .register(FrameCodec.FORMAT_BINARY, BinaryFrameCodec::new)
+            .register(FrameCodec.FORMAT_BINARY_DEFLATE, BinaryFrameCodec::deflate);
+        CodecRegistry<DataFrame> clientFormats = new CodecRegistry<DataFrame>()
+            .register(FrameCodec.FORMAT_BINARY_DEFLATE_DICTIONARY, BinaryFrameCodec::deflateWithDictionary)
+            .register(FrameCodec.FORMAT_BINARY_DEFLATE, BinaryFrameCodec::deflate)
+            .register(FrameCodec.FORMAT_BINARY, BinaryFrameCodec::new);
+        Future<NetworkHandler.NetworkConnection<DataFrame>> accepted = listen(serverFormats);
+
+        try (NetworkHandler.NetworkConnection<DataFrame> client = connect(clientFormats);
+             NetworkHandler.NetworkConnection<DataFrame> serverSide = accepted.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            DataFrame frame = new DataFrame("alice", "bob", DataType.MESSAGE, "x".repeat(2000), "lobby", 5);
+            // the server answers the handshake when it starts reading, the client waits for the answer to send
+            Future<DataFrame> received = serverThread.submit(() -> serverSide.receive());
+            client.send(frame);
+            BinaryFrameCodecTest.assertFrameEquals(frame, received.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            assertEquals(FrameCodec.FORMAT_BINARY_DEFLATE, serverSide.getFormatId());
+            assertEquals(FrameCodec.FORMAT_BINARY_DEFLATE, client.getFormatId());
+
+            serverSide.send(frame);
+            BinaryFrameCodecTest.assertFrameEquals(frame, client.receive());
+        }
+    }
+
+    @Test
+    void chatRegistriesAgreeOnPreferredFormat() throws Exception {
+        Future<NetworkHandler.NetworkConnection<DataFrame>> accepted = listen(CodecRegistry.forDataFrames());
+
+        try (NetworkHandler.NetworkConnection<DataFrame> client = connect(CodecRegistry.forDataFrames());
+             NetworkHandler.NetworkConnection<DataFrame> serverSide = accepted.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            Future<DataFrame> received = serverThread.submit(() -> serverSide.receive());
+            client.send(new DataFrame("alice", null, DataType.CONNECT, null));
+            assertEquals(DataType.CONNECT, received.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getType());
+            int preferred = CodecRegistry.forDataFrames().getFormatIds().iterator().next();
+            assertEquals(preferred, serverSide.getFormatId());
+            assertEquals(preferred, client.getFormatId());
+        }
+    }
+
+    @Test
+    void connectionWithoutCommonFormatFails() throws Exception {
+        CodecRegistry<DataFrame> serverFormats = new CodecRegistry<DataFrame>()
+            .register(FrameCodec.FORMAT_BINARY, BinaryFrameCodec::new);
+        CodecRegistry<DataFrame> clientFormats = new CodecRegistry<DataFrame>()
+            .register(FrameCodec.FORMAT_BINARY_DEFLATE, BinaryFrameCodec::deflate);
+        Future<NetworkHandler.NetworkConnection<DataFrame>> accepted = listen(serverFormats);
+
+        try (NetworkHandler.NetworkConnection<DataFrame> client = connect(clientFormats);
+             NetworkHandler.NetworkConnection<DataFrame> serverSide = accepted.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            Future<?> serverReceive = serverThread.submit(() -> serverSide.receive());
+            ExecutionException serverFailure = assertThrows(ExecutionException.class,
+                () -> serverReceive.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            assertTrue(serverFailure.getCause() instanceof ProtocolException);
+            assertThrows(ProtocolException.class,
+                () -> client.send(new DataFrame("alice", null, DataType.CONNECT, null)));
+            assertEquals(NetworkHandler.NO_FORMAT, client.getFormatId());
+        }
+    }
+
+    private Future<NetworkHandler.NetworkConnection<DataFrame>> listen(CodecRegistry<DataFrame> formats)
+        throws IOException {
+        server = NetworkHandler.createServer(0, formats);
+        return serverThread.submit(() -> server.waitForConnection());
+    }
+
+    private NetworkHandler.NetworkConnection<DataFrame> connect(CodecRegistry<DataFrame> formats) throws IOException {
+        return NetworkHandler.openConnection(InetAddress.getLoopbackAddress(), server.getHostPort(), formats);
+    }
+}
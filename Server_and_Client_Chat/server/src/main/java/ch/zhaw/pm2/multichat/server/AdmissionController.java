@@ -0,0 +1,77 @@
+package ch.zhaw.pm2.multichat.server;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Decides if a request of a client is processed, so a single client flooding the server can not saturate the CPU
+ * and the network for all users.
+ * <p>Two limits apply, each a {@link TokenBucket}:</p>
+ * <ul>
+ *     <li>Every connection may send {@code multichat.rate.messages} requests per second, with bursts of
+ *     {@code multichat.rate.burst} requests.</li>
+ *     <li>All connections together may cause {@code multichat.rate.global} deliveries per second, i.e. frames
+ *     passed to connections. A broadcast costs one delivery per connected user, so this bounds the fan-out the
+ *     server takes on regardless of the number of clients sending.</li>
+ * </ul>
+ * <p>A rejected request is dropped, not delayed: the connection handlers run on the I/O threads with NIO and must
+ * not block. Instead the client is told how long to back off.</p>
+ */
+public class AdmissionController {
+    private final int messagesPerSecond;
+    private final int burst;
+    private final LongSupplier clock;
+    // limit of all deliveries, null if unlimited
+    private final TokenBucket deliveries;
+
+    /**
+     * Constructor
+     *
+     * @param config of the server, providing the limits
+     */
+    public AdmissionController(ServerConfig config) {
+        this(config, System::nanoTime);
+    }
+
+    /**
+     * Constructor with the clock of the buckets, e.g. a fake one in tests.
+     *
+     * @param config of the server, providing the limits
+     * @param clock returning the time in nanoseconds, like {@link System#nanoTime()}
+     */
+    AdmissionController(ServerConfig config, LongSupplier clock) {
+        this.clock = clock;
+        this.messagesPerSecond = config.getRateMessages();
+        this.burst = config.getRateBurst();
+        int global = config.getRateGlobal();
+        this.deliveries = global > 0 ? new TokenBucket(global, global, clock) : null;
+    }
+
+    /**
+     * Creates the bucket limiting the requests of a connection.
+     *
+     * @return the bucket, null if the requests of a connection are not limited
+     */
+    TokenBucket newConnectionLimit() {
+        return messagesPerSecond > 0 ? new TokenBucket(messagesPerSecond, burst, clock) : null;
+    }
+
+    /**
+     * Admits a request if neither the limit of the connection nor the global limit is exceeded.
+     * The limit of the connection is checked first, so a flooding client does not use up the global limit. If the
+     * global limit rejects the request, the token of the connection is put back, so the client is not charged for a
+     * request which has not been processed.
+     *
+     * @param connectionLimit bucket of the connection sending the request, null if not limited
+     * @param deliveryCount number of frames the request causes to be sent
+     * @return 0 if the request is admitted, otherwise the time in nanoseconds the client should wait
+     */
+    long admit(TokenBucket connectionLimit, int deliveryCount) {
+        if (connectionLimit != null) {
+            long waitNanos = connectionLimit.tryAcquire(1);
+            if (waitNanos > 0) return waitNanos;
+        }
+        long waitNanos = deliveries == null ? 0 : deliveries.tryAcquire(Math.max(deliveryCount, 1));
+        if (waitNanos > 0 && connectionLimit != null) connectionLimit.release(1);
+        return waitNanos;
+    }
+}
@@ -0,0 +1,226 @@
+package ch.zhaw.pm2.multichat.server;
+
+import ch.zhaw.pm2.multichat.protocol.AsyncLogger;
+import ch.zhaw.pm2.multichat.protocol.ChatProtocolException;
+import ch.zhaw.pm2.multichat.protocol.ConnectionHandler;
+import ch.zhaw.pm2.multichat.protocol.DataFrame;
+import ch.zhaw.pm2.multichat.protocol.NetworkHandler;
+import ch.zhaw.pm2.multichat.protocol.SharedFrame;
+
+import java.util.concurrent.Executor;
+
+import static ch.zhaw.pm2.multichat.protocol.ConnectionHandler.DataType.*;
+
+/**
+ * Link to another node of the cluster, using the chat protocol between the nodes:
+ * <ul>
+ *     <li>CONFIRM: first frame on the link, carrying the id of the sending node as payload, followed by a proof
+ *     of the cluster secret if one is configured (see {@link ClusterNode#authenticate(String)})</li>
+ *     <li>CONNECT: a user connected to the sending node, the sender of the frame</li>
+ *     <li>DISCONNECT: a user disconnected from the sending node, the payload of the frame</li>
+ *     <li>MESSAGE, JOIN, LEAVE: frames to deliver to the users of the receiving node, as if they were sent there</li>
+ * </ul>
+ * <p>Frames are sent using an {@link OutboundQueue}, so a slow link does not block the connection handlers. If the
+ * queue of the link overflows, the link is closed and established again by the {@link ClusterNode}.</p>
+ */
+class ClusterLink extends ConnectionHandler {
+    private static final AsyncLogger logger = AsyncLogger.getLogger(ClusterLink.class);
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+
+    private final ClusterNode node;
+    private final String address;
+    private final OutboundQueue outboundQueue;
+    // id of the node at the other end, null until its CONFIRM has been received
+    private volatile String peer;
+
+    /**
+     * Constructor
+     *
+     * @param connection to the other node
+     * @param node this node
+     * @param address the link has been opened to, null if the other node opened it
+     * @param writerService executor running the writer task of the outbound queue
+     */
+    ClusterLink(NetworkHandler.NetworkConnection<DataFrame> connection, ClusterNode node, String address,
+                Executor writerService) {
+        super(connection);
+        this.node = node;
+        this.address = address;
+        this.outboundQueue = new OutboundQueue(QUEUE_CAPACITY, OutboundQueue.OverflowPolicy.DISCONNECT,
+            writerService, this::writeFrame, this::abortConnection);
+    }
+
+    /**
+     * Returns the id of the node at the other end.
+     *
+     * @return the id, null if the link is not established yet
+     */
+    String getPeer() {
+        return peer;
+    }
+
+    /**
+     * Returns the address the link has been opened to.
+     *
+     * @return the address as {@code host:port}, null if the other node opened the link
+     */
+    String getAddress() {
+        return address;
+    }
+
+    /**
+     * Indicates if this node opened the link.
+     *
+     * @return true if the link has been opened to the other node
+     */
+    boolean isOutbound() {
+        return address != null;
+    }
+
+    /**
+     * Queues the frame, so the calling thread is not blocked by the link.
+     *
+     * @param data frame to send
+     */
+    @Override
+    protected void sendFrame(SharedFrame<DataFrame> data) {
+        outboundQueue.offer(data);
+    }
+
+    /**
+     * Discards the unsent frames and removes the link from the cluster.
+     */
+    @Override
+    protected void threadDies() {
+        outboundQueue.close();
+        node.linkLost(this);
+    }
+
+    /**
+     * Establishes the link with the id of the other node. The link is closed if the other node does not prove
+     * that it knows the cluster secret.
+     *
+     * @param payload id of the other node and the proof of the secret
+     * @throws ChatProtocolException if the link has been established already
+     */
+    @Override
+    protected void getConfirmMessage(String payload) throws ChatProtocolException {
+        if (peer != null) throw new ChatProtocolException("Cluster link to " + peer + " already established");
+        if (payload == null || payload.isBlank()) throw new ChatProtocolException("Missing node id");
+        String peerId = node.authenticate(payload);
+        if (peerId == null) {
+            logger.warn("Closing cluster link, {} failed to authenticate", address != null ? address : "peer");
+            stopReceiving();
+            return;
+        }
+        this.peer = peerId;
+        this.userName = peerId;
+        this.state = State.CONNECTED;
+        node.linkEstablished(this);
+    }
+
+    /**
+     * Records the user as connected to the other node.
+     *
+     * @param user connected to the other node
+     * @throws ChatProtocolException if the link is not established
+     */
+    @Override
+    protected void getConnectMessage(String user) throws ChatProtocolException {
+        checkEstablished();
+        node.remoteUserConnected(this, user);
+    }
+
+    /**
+     * Records the user as disconnected from the other node.
+     *
+     * @param user disconnected from the other node
+     * @throws ChatProtocolException if the link is not established
+     */
+    @Override
+    protected void getDisconnectMessage(String user) throws ChatProtocolException {
+        checkEstablished();
+        node.remoteUserDisconnected(this, user);
+    }
+
+    /**
+     * Delivers a broadcast or private message to the users of this node.
+     *
+     * @param sender that sent the message
+     * @param receiver of the message, a user or {@link #USER_ALL}
+     * @param type of the message
+     * @param payload of the message
+     * @throws ChatProtocolException if the link is not established
+     */
+    @Override
+    protected void getMessage(String sender, String receiver, DataType type, String payload)
+        throws ChatProtocolException {
+        checkEstablished();
+        node.deliver(this, new DataFrame(sender, receiver, MESSAGE, payload));
+    }
+
+    /**
+     * Delivers a room message to the members of the room on this node.
+     *
+     * @param sender that sent the message
+     * @param room the message belongs to
+     * @param payload of the message
+     * @throws ChatProtocolException if the link is not established
+     */
+    @Override
+    protected void getRoomMessage(String sender, String room, String payload) throws ChatProtocolException {
+        checkEstablished();
+        node.deliver(this, new DataFrame(sender, USER_ALL, MESSAGE, payload, room));
+    }
+
+    /**
+     * Informs the members of the room on this node that a user of the other node joined.
+     *
+     * @param sender the user joining the room
+     * @param room the user joined
+     * @throws ChatProtocolException if the link is not established
+     */
+    @Override
+    protected void getJoinMessage(String sender, String room) throws ChatProtocolException {
+        checkEstablished();
+        node.deliver(this, new DataFrame(sender, USER_ALL, JOIN, null, room));
+    }
+
+    /**
+     * Informs the members of the room on this node that a user of the other node left.
+     *
+     * @param sender the user leaving the room
+     * @param room the user left
+     * @throws ChatProtocolException if the link is not established
+     */
+    @Override
+    protected void getLeaveMessage(String sender, String room) throws ChatProtocolException {
+        checkEstablished();
+        node.deliver(this, new DataFrame(sender, USER_ALL, LEAVE, null, room));
+    }
+
+    /**
+     * Logs the error reported by the other node.
+     *
+     * @param sender of the error
+     * @param payload the error message
+     */
+    @Override
+    protected void getErrorMessage(String sender, String payload) {
+        logger.warn("Received error from cluster node {}: {}", peer, payload);
+    }
+
+    /**
+     * Logs frames not used between the nodes.
+     *
+     * @param type of the frame
+     */
+    @Override
+    protected void getDefaultMessage(DataType type) {
+        logger.warn("Unexpected data type received from cluster node {}: {}", peer, type);
+    }
+
+    private void checkEstablished() throws ChatProtocolException {
+        if (peer == null) throw new ChatProtocolException("Cluster link not established");
+    }
+}
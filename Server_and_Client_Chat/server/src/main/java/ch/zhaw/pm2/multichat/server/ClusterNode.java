@@ -0,0 +1,411 @@
+package ch.zhaw.pm2.multichat.server;
+
+import ch.zhaw.pm2.multichat.protocol.AsyncLogger;
+import ch.zhaw.pm2.multichat.protocol.CodecRegistry;
+import ch.zhaw.pm2.multichat.protocol.DataFrame;
+import ch.zhaw.pm2.multichat.protocol.NetworkHandler;
+import ch.zhaw.pm2.multichat.protocol.SharedFrame;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static ch.zhaw.pm2.multichat.protocol.ConnectionHandler.DataType.*;
+import static ch.zhaw.pm2.multichat.protocol.ConnectionHandler.USER_ALL;
+import static ch.zhaw.pm2.multichat.protocol.ConnectionHandler.USER_NONE;
+
+/**
+ * Membership of the server in a cluster of chat servers, each serving its own clients.
+ * <p>Every node listens for {@link ClusterLink}s from the other nodes and opens links to the configured peers,
+ * retrying periodically while a peer is not reachable. If two nodes opened a link to each other, the link opened by
+ * the node with the smaller id is kept. Over the links the nodes announce the users connecting and disconnecting, so
+ * every node knows on which node a user is connected, and forward the messages for users of other nodes: private
+ * messages to the node of the receiver, broadcasts and room messages to all nodes, which deliver them to their
+ * users and room members. Every node stores the messages it delivers in its own history.</p>
+ * <p>A user name is unique per node. If the same name connects to two nodes at the same time, both nodes learn about
+ * it from the announcement of the other and decide by consistent hashing (see {@link HashRing}) which node owns the
+ * name: the user on the other node is disconnected. As the decision only depends on the name and the two node ids,
+ * no coordination is needed.</p>
+ * <p>A node trusts the frames of its links: they announce users and deliver messages in their name. Therefore links
+ * are only accepted from the addresses of the configured peers, so every node must list all other nodes. If a
+ * cluster secret is configured, both ends of a link also prove in their CONFIRM that they know it. The links are not
+ * encrypted, the nodes are expected to run in a trusted network.</p>
+ */
+public class ClusterNode implements Closeable {
+    private static final AsyncLogger logger = AsyncLogger.getLogger(ClusterNode.class);
+    private static final Duration RETRY_INTERVAL = Duration.ofSeconds(2);
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private final String nodeId;
+    private final List<String> peers;
+    // key derived from the cluster secret, null if the links are not authenticated
+    private final SecretKeySpec secretKey;
+    private final ConnectionRegistry registry;
+    private final RoomRegistry rooms;
+    private final HistoryStore history;
+    private final ServerMetrics metrics;
+    private final ExecutorService linkService;
+    private final ExecutorService writerService;
+    private final NetworkHandler.NetworkServer<DataFrame> linkServer;
+    private final ScheduledExecutorService dialer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "cluster-dialer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // established links by node id
+    private final ConcurrentHashMap<String, ClusterLink> links = new ConcurrentHashMap<>();
+    // links opened to the configured peers by address, until they end
+    private final ConcurrentHashMap<String, ClusterLink> openedLinks = new ConcurrentHashMap<>();
+    // node id of the configured peers by address, once they have been linked
+    private final ConcurrentHashMap<String, String> peerIds = new ConcurrentHashMap<>();
+    // users connected to other nodes, by name
+    private final ConcurrentHashMap<String, ClusterLink> remoteUsers = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor. Opens the port of the cluster links.
+     *
+     * @param config of the server, with the cluster port, peers and node id
+     * @param registry of the users connected to this node
+     * @param rooms of this node
+     * @param history store of the messages of this node
+     * @param metrics instrumentation of the server
+     * @param linkService executor running the receiving tasks of the links
+     * @param writerService executor running the writer tasks of the links
+     * @throws IOException if the cluster port could not be opened
+     */
+    public ClusterNode(ServerConfig config, ConnectionRegistry registry, RoomRegistry rooms, HistoryStore history,
+                       ServerMetrics metrics, ExecutorService linkService, ExecutorService writerService)
+        throws IOException {
+        this.peers = config.getClusterPeers();
+        this.registry = registry;
+        this.rooms = rooms;
+        this.history = history;
+        this.metrics = metrics;
+        this.linkService = linkService;
+        this.writerService = writerService;
+        this.linkServer = NetworkHandler.createServer(config.getClusterPort(), CodecRegistry.forDataFrames());
+        this.nodeId = config.getClusterNode() != null
+            ? config.getClusterNode()
+            : hostName() + ":" + linkServer.getHostPort();
+        this.secretKey = config.getClusterSecret() == null ? null
+            : new SecretKeySpec(config.getClusterSecret().getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM);
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return InetAddress.getLoopbackAddress().getHostName();
+        }
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Starts accepting links from the other nodes and opening links to the peers.
+     */
+    public void start() {
+        logger.info("Cluster node {} listening on {}:{}", nodeId, linkServer.getHostAddress(),
+            linkServer.getHostPort());
+        if (secretKey == null) logger.warn("Cluster links are not authenticated, set multichat.cluster.secret");
+        linkService.submit(this::acceptLinks);
+        dialer.scheduleWithFixedDelay(this::openLinks, 0, RETRY_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void acceptLinks() {
+        try {
+            while (true) {
+                NetworkHandler.NetworkConnection<DataFrame> connection = linkServer.waitForConnection();
+                if (isPeerAddress(connection.getRemoteAddress())) {
+                    startLink(connection, null);
+                } else {
+                    logger.warn("Rejecting cluster link from {}, which is not a peer", connection.getRemoteAddress());
+                    connection.close();
+                }
+            }
+        } catch (SocketException e) {
+            logger.debug("Cluster port closed");
+        } catch (IOException e) {
+            logger.error("Failed to accept cluster link", e);
+        }
+    }
+
+    /**
+     * Opens a link to every peer which is not linked.
+     */
+    private void openLinks() {
+        for (String address : peers) {
+            String peerId = peerIds.get(address);
+            if (openedLinks.containsKey(address) || peerId != null && links.containsKey(peerId)) continue;
+            int separator = address.lastIndexOf(':');
+            try {
+                startLink(NetworkHandler.openConnection(address.substring(0, separator),
+                    Integer.parseInt(address.substring(separator + 1)), CodecRegistry.forDataFrames()), address);
+            } catch (IOException e) {
+                logger.debug("Cluster node {} not reachable: {}", address, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Indicates if the address is one of the addresses of the configured peers, resolving their host names.
+     */
+    private boolean isPeerAddress(InetAddress address) {
+        if (address == null) return false;
+        for (String peer : peers) {
+            try {
+                InetAddress[] peerAddresses = InetAddress.getAllByName(peer.substring(0, peer.lastIndexOf(':')));
+                if (Arrays.asList(peerAddresses).contains(address)) return true;
+            } catch (UnknownHostException e) {
+                logger.debug("Cluster peer {} can not be resolved: {}", peer, e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    private void startLink(NetworkHandler.NetworkConnection<DataFrame> connection, String address) {
+        ClusterLink link = new ClusterLink(connection, this, address, writerService);
+        if (address != null) openedLinks.put(address, link);
+        link.sendData(nodeId, USER_NONE, CONFIRM, secretKey == null ? nodeId : nodeId + " " + proof(nodeId));
+        linkService.submit(link);
+    }
+
+    /**
+     * Checks the CONFIRM of another node: its id followed by the proof of the cluster secret, if one is configured.
+     *
+     * @param payload of the CONFIRM
+     * @return the id of the other node, null if the proof is missing or wrong
+     */
+    String authenticate(String payload) {
+        if (secretKey == null) return payload;
+        int separator = payload.lastIndexOf(' ');
+        if (separator < 1) return null;
+        String peerId = payload.substring(0, separator);
+        byte[] expected = proof(peerId).getBytes(StandardCharsets.US_ASCII);
+        byte[] actual = payload.substring(separator + 1).getBytes(StandardCharsets.US_ASCII);
+        return MessageDigest.isEqual(expected, actual) ? peerId : null;
+    }
+
+    /**
+     * Computes the proof of the secret for a node id: the HMAC of the id, so the secret itself is not sent.
+     */
+    private String proof(String id) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(secretKey);
+            return Base64.getEncoder().encodeToString(mac.doFinal(id.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC_ALGORITHM + " not available", e);
+        }
+    }
+
+    /**
+     * Called when a link received the id of the other node. Keeps the link unless the nodes are linked already,
+     * and announces the users of this node over it.
+     *
+     * @param link which has been established
+     */
+    synchronized void linkEstablished(ClusterLink link) {
+        String peer = link.getPeer();
+        if (peer.equals(nodeId)) {
+            logger.warn("Cluster link to itself, check the peers of node {}", nodeId);
+            link.stopReceiving();
+            return;
+        }
+        if (link.isOutbound()) peerIds.put(link.getAddress(), peer);
+        ClusterLink existing = links.get(peer);
+        if (existing != null) {
+            // both nodes opened a link, both keep the one opened by the node with the smaller id
+            if (link.isOutbound() != nodeId.compareTo(peer) < 0) {
+                link.stopReceiving();
+                return;
+            }
+            remoteUsers.replaceAll((userName, userLink) -> userLink == existing ? link : userLink);
+            existing.stopReceiving();
+        }
+        links.put(peer, link);
+        logger.info("Linked to cluster node {}", peer);
+        for (ServerConnectionHandler handler : registry.handlers()) {
+            link.sendData(handler.getUserName(), USER_NONE, CONNECT, null);
+        }
+    }
+
+    /**
+     * Called when the connection of a link ended. Forgets the users of the other node.
+     *
+     * @param link which ended
+     */
+    synchronized void linkLost(ClusterLink link) {
+        if (link.isOutbound()) openedLinks.remove(link.getAddress(), link);
+        remoteUsers.values().removeIf(userLink -> userLink == link);
+        if (link.getPeer() != null && links.remove(link.getPeer(), link)) {
+            logger.info("Lost link to cluster node {}", link.getPeer());
+        }
+    }
+
+    /**
+     * Indicates if the user is connected to another node.
+     *
+     * @param userName of the user
+     * @return true if the name is taken on another node
+     */
+    public boolean isRemoteUser(String userName) {
+        return remoteUsers.containsKey(userName);
+    }
+
+    /**
+     * Announces a user who connected to this node to the other nodes.
+     *
+     * @param userName of the user
+     */
+    public void userConnected(String userName) {
+        for (ClusterLink link : links.values()) {
+            link.sendData(userName, USER_NONE, CONNECT, null);
+        }
+    }
+
+    /**
+     * Announces a user who disconnected from this node to the other nodes.
+     *
+     * @param userName of the user
+     */
+    public void userDisconnected(String userName) {
+        for (ClusterLink link : links.values()) {
+            link.sendData(nodeId, USER_NONE, DISCONNECT, userName);
+        }
+    }
+
+    /**
+     * Records a user connected to another node. If the name is taken on this node as well, the node owning the name
+     * keeps its user.
+     *
+     * @param link to the node of the user
+     * @param userName of the user
+     */
+    void remoteUserConnected(ClusterLink link, String userName) {
+        if (!isEstablished(link)) return;
+        ServerConnectionHandler local = registry.get(userName);
+        if (local != null) {
+            if (owns(nodeId, link.getPeer(), userName)) return;
+            logger.info("User name {} is taken on cluster node {}, disconnecting the local user", userName,
+                link.getPeer());
+            local.disconnectDuplicate();
+        }
+        remoteUsers.merge(userName, link, (current, candidate) ->
+            owns(current.getPeer(), candidate.getPeer(), userName) ? current : candidate);
+    }
+
+    /**
+     * Forgets a user who disconnected from another node.
+     *
+     * @param link to the node of the user
+     * @param userName of the user
+     */
+    void remoteUserDisconnected(ClusterLink link, String userName) {
+        remoteUsers.remove(userName, link);
+    }
+
+    private static boolean owns(String node, String otherNode, String userName) {
+        return node.equals(HashRing.owner(userName, List.of(node, otherNode)));
+    }
+
+    private boolean isEstablished(ClusterLink link) {
+        return links.get(link.getPeer()) == link;
+    }
+
+    /**
+     * Forwards a broadcast, room message, join or leave to all other nodes.
+     *
+     * @param data frame to forward
+     */
+    public void forward(DataFrame data) {
+        if (links.isEmpty()) return;
+        SharedFrame<DataFrame> frame = new SharedFrame<>(data);
+        for (ClusterLink link : links.values()) {
+            link.sendFrame(frame);
+        }
+    }
+
+    /**
+     * Forwards a private message to the node of its receiver. The message is dropped if the receiver disconnected
+     * meanwhile.
+     *
+     * @param data frame to forward
+     */
+    public void forwardToReceiver(DataFrame data) {
+        ClusterLink link = remoteUsers.get(data.getReceiver());
+        if (link != null) link.sendFrame(new SharedFrame<>(data));
+    }
+
+    /**
+     * Delivers a frame forwarded by another node to the users of this node: a room frame to the members of the room,
+     * a broadcast to all users and a private message to its receiver. Messages are stored in the history first.
+     *
+     * @param link the frame has been received from
+     * @param data frame to deliver
+     */
+    void deliver(ClusterLink link, DataFrame data) {
+        if (!isEstablished(link)) return;
+        boolean isMessage = data.getType() == MESSAGE;
+        if (data.getRoom() != null) {
+            Set<ServerConnectionHandler> members = rooms.members(data.getRoom());
+            if (members.isEmpty()) return;
+            SharedFrame<DataFrame> frame = new SharedFrame<>(isMessage ? history.append(data) : data);
+            members.forEach(member -> member.sendFrame(frame));
+            metrics.fanOut(members.size());
+        } else if (USER_ALL.equals(data.getReceiver())) {
+            SharedFrame<DataFrame> frame = new SharedFrame<>(history.append(data));
+            int recipients = 0;
+            for (ServerConnectionHandler handler : registry.handlers()) {
+                handler.sendFrame(frame);
+                recipients++;
+            }
+            metrics.fanOut(recipients);
+        } else {
+            ServerConnectionHandler handler = registry.get(data.getReceiver());
+            if (handler == null) {
+                logger.debug("Dropping message for {}, who is not connected anymore", data.getReceiver());
+                return;
+            }
+            handler.sendFrame(new SharedFrame<>(history.append(data)));
+        }
+    }
+
+    /**
+     * Closes the cluster port and all links.
+     */
+    @Override
+    public void close() {
+        dialer.shutdownNow();
+        try {
+            linkServer.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close cluster port: {}", e.getMessage());
+        }
+        for (ClusterLink link : links.values()) {
+            link.stopReceiving();
+        }
+        for (ClusterLink link : openedLinks.values()) {
+            link.stopReceiving();
+        }
+    }
+}
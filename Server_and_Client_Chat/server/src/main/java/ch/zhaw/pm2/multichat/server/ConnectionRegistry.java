@@ -0,0 +1,85 @@
+package ch.zhaw.pm2.multichat.server;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Thread-safe registry of the connected users, shared by all {@link ServerConnectionHandler}s.
+ * <p>The registry is backed by a {@link ConcurrentHashMap}, which locks per hash bin on updates and never locks on
+ * reads. User names are reserved atomically, so two clients can not register the same name concurrently, and
+ * iterating over the handlers for a broadcast neither copies the registry nor blocks concurrent connects and
+ * disconnects. Handlers registered or removed during a broadcast may or may not receive it.</p>
+ */
+public class ConnectionRegistry {
+    private final ConcurrentHashMap<String, ServerConnectionHandler> connections = new ConcurrentHashMap<>();
+
+    /**
+     * Registers the handler under the given user name, if the name is not taken yet.
+     *
+     * @param userName to reserve
+     * @param handler serving the user
+     * @return true if the name has been reserved for the handler, false if it is already taken
+     */
+    public boolean register(String userName, ServerConnectionHandler handler) {
+        return connections.putIfAbsent(userName, handler) == null;
+    }
+
+    /**
+     * Removes the user name from the registry, if it is still registered for the given handler.
+     *
+     * @param userName to release
+     * @param handler which registered the name
+     * @return true if the name has been removed
+     */
+    public boolean unregister(String userName, ServerConnectionHandler handler) {
+        return connections.remove(userName, handler);
+    }
+
+    /**
+     * Returns the handler registered for the given user name.
+     *
+     * @param userName to look up
+     * @return the handler or null if no user with this name is connected
+     */
+    public ServerConnectionHandler get(String userName) {
+        return connections.get(userName);
+    }
+
+    /**
+     * Indicates if the user name is taken.
+     *
+     * @param userName to look up
+     * @return true if a handler is registered for the name
+     */
+    public boolean contains(String userName) {
+        return connections.containsKey(userName);
+    }
+
+    /**
+     * Calls the action for every registered handler, without copying the registry.
+     *
+     * @param action to call
+     */
+    public void forEach(Consumer<ServerConnectionHandler> action) {
+        connections.values().forEach(action);
+    }
+
+    /**
+     * Returns a live view of the registered handlers.
+     *
+     * @return the handlers
+     */
+    public Collection<ServerConnectionHandler> handlers() {
+        return connections.values();
+    }
+
+    /**
+     * Returns the number of registered users.
+     *
+     * @return number of users
+     */
+    public int size() {
+        return connections.size();
+    }
+}
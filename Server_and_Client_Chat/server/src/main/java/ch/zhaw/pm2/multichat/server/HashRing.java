@@ -0,0 +1,69 @@
+package ch.zhaw.pm2.multichat.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+
+/**
+ * Consistent hashing of user names onto the nodes of a cluster.
+ * <p>Every node is placed on a ring at several points (virtual nodes) derived from its id, a name is owned by the node
+ * of the first point at or after the hash of the name. If a node joins or leaves, only the names of the ring sections
+ * it takes over or gives up change their owner. As the points only depend on the node ids, the nodes agree on the
+ * owner of a name without coordination.</p>
+ */
+public final class HashRing {
+    private static final int VIRTUAL_NODES = 64;
+
+    private HashRing() {
+    }
+
+    /**
+     * Returns the node owning the key.
+     *
+     * @param key e.g. a user name
+     * @param nodes ids of the nodes on the ring
+     * @return id of the owning node, null if there are no nodes
+     */
+    public static String owner(String key, Collection<String> nodes) {
+        long hash = hash(key);
+        String owner = null;
+        long ownerDistance = 0;
+        for (String node : nodes) {
+            long distance = distance(hash, node);
+            if (owner == null || Long.compareUnsigned(distance, ownerDistance) < 0
+                || distance == ownerDistance && node.compareTo(owner) < 0) {
+                owner = node;
+                ownerDistance = distance;
+            }
+        }
+        return owner;
+    }
+
+    // distance walking the ring from the hash to the closest point of the node
+    private static long distance(long hash, String node) {
+        long distance = -1;
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            long pointDistance = hash(point(node, i)) - hash;
+            if (Long.compareUnsigned(pointDistance, distance) < 0) distance = pointDistance;
+        }
+        return distance;
+    }
+
+    private static String point(String node, int index) {
+        return node + "#" + index;
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < Long.BYTES; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+}
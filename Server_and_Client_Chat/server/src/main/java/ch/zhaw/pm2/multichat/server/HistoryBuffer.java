@@ -0,0 +1,91 @@
+package ch.zhaw.pm2.multichat.server;
+
+import ch.zhaw.pm2.multichat.protocol.DataFrame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ring buffer keeping the last messages of one conversation (a room, a user or the broadcasts).
+ * <p>The array is allocated once with the full capacity, so adding a message never allocates or copies. When the
+ * buffer is full, each new message overwrites the oldest one. The messages must be added in ascending id order,
+ * which allows finding the first message after an id by binary search.</p>
+ * <p>Not thread-safe, the {@link HistoryStore} guards all buffers with its lock.</p>
+ */
+public class HistoryBuffer {
+    private final DataFrame[] frames;
+    private int next = 0;
+    private int size = 0;
+
+    /**
+     * Constructor
+     *
+     * @param capacity maximum number of messages kept
+     */
+    public HistoryBuffer(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        this.frames = new DataFrame[capacity];
+    }
+
+    /**
+     * Adds the message, overwriting the oldest one if the buffer is full.
+     *
+     * @param frame to add, with an id greater than the ids of all messages in the buffer
+     */
+    public void add(DataFrame frame) {
+        frames[next] = frame;
+        next = (next + 1) % frames.length;
+        if (size < frames.length) size++;
+    }
+
+    /**
+     * Returns the messages with an id greater than the given id, oldest first.
+     *
+     * @param sinceId id to start after
+     * @param limit maximum number of messages returned
+     * @return the messages, at most limit
+     */
+    public List<DataFrame> since(long sinceId, int limit) {
+        int first = firstAfter(sinceId);
+        int count = Math.min(size - first, limit);
+        List<DataFrame> result = new ArrayList<>(Math.max(count, 0));
+        for (int i = first; i < first + count; i++) {
+            result.add(get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of messages in the buffer.
+     *
+     * @return number of messages
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Binary search for the logical index of the first message with an id greater than the given id.
+     */
+    private int firstAfter(long sinceId) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (get(middle).getId() <= sinceId) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the message at the logical index, 0 being the oldest message.
+     */
+    private DataFrame get(int index) {
+        int oldest = (next - size + frames.length) % frames.length;
+        return frames[(oldest + index) % frames.length];
+    }
+}
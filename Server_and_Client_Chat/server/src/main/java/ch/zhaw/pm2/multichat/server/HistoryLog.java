@@ -0,0 +1,309 @@
+package ch.zhaw.pm2.multichat.server;
+
+import ch.zhaw.pm2.multichat.protocol.AsyncLogger;
+import ch.zhaw.pm2.multichat.protocol.BinaryFrameCodec;
+import ch.zhaw.pm2.multichat.protocol.DataFrame;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import static ch.zhaw.pm2.multichat.protocol.ConnectionHandler.USER_ALL;
+
+/**
+ * Append-only log of the chat messages, split into segment files of a maximum size.
+ * <p>Messages are stored in the format of the {@link BinaryFrameCodec}, one length-prefixed frame after the other.
+ * Appending only queues the frame, a single writer thread encodes and writes the queued frames to the current segment
+ * and flushes once the queue is empty, so bursts of messages are written with few system calls. The queue is bounded:
+ * if the disk can not keep up, further messages are not logged but counted as dropped, as the threads appending
+ * must not block. When the segment
+ * reaches its maximum size a new one is started, and the oldest segments are deleted to keep the number of
+ * segments bounded.</p>
+ * <p>The private messages of a single user can be read again with {@link #replay(String, Consumer)}. To skip the
+ * segments without messages of the user, a {@link UserFilter} of each segment records the senders and receivers of
+ * its private messages.</p>
+ * <p>Every start of the server begins a new segment, so a frame truncated by a crash is always at the end of a
+ * segment and is skipped when the log is replayed.</p>
+ */
+public class HistoryLog implements Closeable {
+    private static final AsyncLogger logger = AsyncLogger.getLogger(HistoryLog.class);
+    private static final String SEGMENT_PREFIX = "history-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final int maxSegments;
+    // modified by the writer thread, read by the threads replaying the messages of a user
+    private final Deque<Path> segments = new ConcurrentLinkedDeque<>();
+    private final Map<Path, UserFilter> userFilters = new ConcurrentHashMap<>();
+    private final BlockingQueue<DataFrame> queue;
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean closed = false;
+    // state of the writer thread
+    private OutputStream segmentOutput;
+    private long segmentSize;
+    private long nextSegmentNumber;
+
+    /**
+     * Opens the log in the directory, creating the directory if necessary.
+     * Call {@link #replay(Consumer)} to read the existing messages, then {@link #start()} to start appending.
+     *
+     * @param directory of the segment files
+     * @param segmentBytes size after which a new segment is started
+     * @param maxSegments number of segments kept
+     * @param queueCapacity number of messages queued for the writer thread before messages are dropped
+     * @throws IOException if the directory can not be read or created
+     */
+    public HistoryLog(Path directory, long segmentBytes, int maxSegments, int queueCapacity) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        this.queue = new LinkedBlockingQueue<>(queueCapacity);
+        Files.createDirectories(directory);
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> segmentNumber(file) >= 0)
+                .sorted((first, second) -> Long.compare(segmentNumber(first), segmentNumber(second)))
+                .forEach(segments::add);
+        }
+        this.nextSegmentNumber = segments.isEmpty() ? 1 : segmentNumber(segments.getLast()) + 1;
+        this.writer = new Thread(this::writeQueuedFrames, "history-writer");
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * Reads all messages of the log, oldest first. Must be called before {@link #start()}.
+     *
+     * @param consumer called for each message
+     * @throws IOException if a segment can not be read
+     */
+    public void replay(Consumer<DataFrame> consumer) throws IOException {
+        for (Path segment : segments) {
+            UserFilter filter = new UserFilter();
+            read(segment, frame -> {
+                filter.add(frame);
+                consumer.accept(frame);
+            });
+            userFilters.put(segment, filter);
+        }
+    }
+
+    /**
+     * Reads the private messages sent or received by the user, oldest first. Only the segments which may contain
+     * such messages are read. Messages still queued are not read.
+     *
+     * @param user to read the messages of
+     * @param consumer called for each message
+     */
+    public void replay(String user, Consumer<DataFrame> consumer) {
+        for (Path segment : segments) {
+            UserFilter filter = userFilters.get(segment);
+            if (filter == null || !filter.mightContain(user)) continue;
+            try {
+                read(segment, frame -> {
+                    if (isPrivate(frame) && (user.equals(frame.getSender()) || user.equals(frame.getReceiver()))) {
+                        consumer.accept(frame);
+                    }
+                });
+            } catch (IOException e) {
+                // the segment may have been deleted meanwhile
+                logger.warn("Failed to read history segment {}: {}", segment, e.getMessage());
+            }
+        }
+    }
+
+    private static void read(Path segment, Consumer<DataFrame> consumer) throws IOException {
+        BinaryFrameCodec codec = new BinaryFrameCodec();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment)))) {
+            while (true) {
+                consumer.accept(codec.read(in));
+            }
+        } catch (EOFException e) {
+            // end of the segment, possibly with a truncated frame
+        } catch (ProtocolException e) {
+            logger.warn("Skipping rest of corrupt history segment {}: {}", segment, e.getMessage());
+        }
+    }
+
+    private static boolean isPrivate(DataFrame frame) {
+        return frame.getRoom() == null && !USER_ALL.equals(frame.getReceiver());
+    }
+
+    /**
+     * Starts a new segment and the writer thread.
+     *
+     * @throws IOException if the segment can not be created
+     */
+    public void start() throws IOException {
+        openSegment();
+        writer.start();
+    }
+
+    /**
+     * Queues the message to be appended to the log, or drops it if the queue is full.
+     *
+     * @param frame to append
+     */
+    public void append(DataFrame frame) {
+        if (closed || queue.offer(frame)) return;
+        long dropped = droppedFrames.incrementAndGet();
+        if (dropped == 1 || dropped % 1000 == 0) {
+            logger.warn("History log can not keep up, {} messages not logged", dropped);
+        }
+    }
+
+    /**
+     * Returns the number of messages waiting to be written.
+     *
+     * @return number of queued messages
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the number of messages not logged because the queue was full.
+     *
+     * @return number of dropped messages
+     */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /**
+     * Writes the queued messages and closes the log.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeQueuedFrames() {
+        List<DataFrame> batch = new ArrayList<>();
+        try {
+            while (!closed || !queue.isEmpty()) {
+                DataFrame first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                queue.drainTo(batch);
+                try {
+                    for (DataFrame frame : batch) {
+                        if (segmentSize >= segmentBytes) {
+                            segmentOutput.close();
+                            openSegment();
+                        }
+                        byte[] bytes = BinaryFrameCodec.encode(frame);
+                        segmentOutput.write(bytes);
+                        segmentSize += bytes.length;
+                        userFilters.get(segments.getLast()).add(frame);
+                    }
+                    segmentOutput.flush();
+                } catch (IOException e) {
+                    logger.error("Failed to write history log: {}", e.getMessage());
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                segmentOutput.close();
+            } catch (IOException e) {
+                logger.error("Failed to close history log: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void openSegment() throws IOException {
+        Path segment = directory.resolve(
+            String.format("%s%08d%s", SEGMENT_PREFIX, nextSegmentNumber++, SEGMENT_SUFFIX));
+        segmentOutput = new BufferedOutputStream(Files.newOutputStream(segment));
+        segmentSize = 0;
+        userFilters.put(segment, new UserFilter());
+        segments.add(segment);
+        while (segments.size() > maxSegments) {
+            Path oldest = segments.removeFirst();
+            userFilters.remove(oldest);
+            Files.deleteIfExists(oldest);
+        }
+    }
+
+    /**
+     * Bloom filter of the senders and receivers of the private messages in a segment. It may report a user whose
+     * messages are not in the segment, but never misses one. The size is fixed, about 1% of the lookups are false
+     * positives with 100000 users per segment.
+     */
+    private static class UserFilter {
+        private static final int BITS = 1 << 20;
+        private static final int HASHES = 7;
+        private final long[] words = new long[BITS / Long.SIZE];
+
+        synchronized void add(DataFrame frame) {
+            if (!isPrivate(frame)) return;
+            add(frame.getSender());
+            add(frame.getReceiver());
+        }
+
+        private void add(String user) {
+            if (user == null) return;
+            for (int i = 0; i < HASHES; i++) {
+                int bit = bit(user, i);
+                words[bit >>> 6] |= 1L << bit;
+            }
+        }
+
+        synchronized boolean mightContain(String user) {
+            for (int i = 0; i < HASHES; i++) {
+                int bit = bit(user, i);
+                if ((words[bit >>> 6] & 1L << bit) == 0) return false;
+            }
+            return true;
+        }
+
+        /**
+         * Derives the i-th bit of the user from two hashes (double hashing).
+         */
+        private static int bit(String user, int i) {
+            int first = user.hashCode();
+            int second = Integer.reverse(first * 0x9E3779B9) | 1;
+            return (first + i * second) & (BITS - 1);
+        }
+    }
+
+    /**
+     * Returns the number of the segment file, or -1 if the file is not a segment.
+     */
+    private static long segmentNumber(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) return -1;
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package ch.zhaw.pm2.multichat.server;
+
+import ch.zhaw.pm2.multichat.protocol.DataFrame;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+import static ch.zhaw.pm2.multichat.protocol.ConnectionHandler.ROOM_PREFIX;
+import static ch.zhaw.pm2.multichat.protocol.ConnectionHandler.USER_ALL;
+
+/**
+ * Message history of the server.
+ * <p>Every message gets an id, ascending in the order the messages are stored. The last messages of each
+ * conversation are kept in a {@link HistoryBuffer}: one per room, one per user for the private messages sent or
+ * received by the user, and one for the broadcasts. Clients request the messages after the last id they know,
+ * page by page. Optionally all messages are appended to a {@link HistoryLog}, which is replayed on startup,
+ * so the history survives a restart of the server.</p>
+ * <p>As every user ever seen would otherwise keep a buffer, the buffers of the users are limited: if there are more
+ * than {@code maxUsers}, the least recently used buffers of users who are neither connected nor have a session are
+ * dropped. The buffer of a user is read from the log again when it is needed, so without a log the private
+ * messages of a dropped buffer are lost. On startup only the rooms and broadcasts are replayed, the buffers of the
+ * users are read on demand.</p>
+ * <p>Reading a buffer from the log may take long, so it is done without holding the lock, which all appending
+ * threads need. A message stored for a user whose buffer is being read goes into a new buffer marked incomplete,
+ * which is merged with the messages read from the log afterwards.</p>
+ */
+public class HistoryStore implements Closeable {
+    private final int capacity;
+    private final HistoryLog log;
+    private final int maxUsers;
+    private final Predicate<String> active;
+    // buffers of the rooms and the broadcasts
+    private final Map<String, HistoryBuffer> buffers = new HashMap<>();
+    // buffers of the private messages per user, least recently used first
+    private final LinkedHashMap<String, HistoryBuffer> userBuffers = new LinkedHashMap<>(16, 0.75f, true);
+    // users whose buffer has been created without reading their older messages from the log
+    private final Set<String> incompleteUsers = new HashSet<>();
+    // guards the buffers and the id, so messages are stored and logged in id order
+    private final Lock lock = new ReentrantLock();
+    private long lastId = 0;
+
+    /**
+     * A page of the history.
+     *
+     * @param frames the messages of the page, oldest first
+     * @param more true if there are more messages after the page
+     */
+    public record Page(List<DataFrame> frames, boolean more) {
+    }
+
+    /**
+     * Constructor for a store keeping the buffers of all users.
+     *
+     * @param capacity number of messages kept per conversation, 0 to keep no history in memory
+     * @param log to persist the messages, null to keep the history in memory only
+     * @throws IOException if the log can not be replayed or opened
+     */
+    public HistoryStore(int capacity, HistoryLog log) throws IOException {
+        this(capacity, log, Integer.MAX_VALUE, user -> true);
+    }
+
+    /**
+     * Constructor. Replays the log and starts appending to it.
+     *
+     * @param capacity number of messages kept per conversation, 0 to keep no history in memory
+     * @param log to persist the messages, null to keep the history in memory only
+     * @param maxUsers number of buffers of users kept, unless the users are active
+     * @param active tells if a user is connected or has a session, so the buffer of the user is kept
+     * @throws IOException if the log can not be replayed or opened
+     */
+    public HistoryStore(int capacity, HistoryLog log, int maxUsers, Predicate<String> active) throws IOException {
+        this.capacity = capacity;
+        this.log = log;
+        this.maxUsers = maxUsers;
+        this.active = active;
+        if (log != null) {
+            log.replay(this::replay);
+            log.start();
+        }
+    }
+
+    /**
+     * Creates the history store as configured.
+     *
+     * @param config of the server
+     * @param active tells if a user is connected or has a session, so the buffer of the user is kept
+     * @return the store
+     * @throws IOException if the log can not be replayed or opened
+     */
+    public static HistoryStore create(ServerConfig config, Predicate<String> active) throws IOException {
+        HistoryLog log = config.getHistoryDirectory() == null ? null
+            : new HistoryLog(config.getHistoryDirectory(), config.getHistorySegmentBytes(),
+                config.getHistorySegments(), config.getHistoryQueue());
+        return new HistoryStore(config.getHistorySize(), log, config.getHistoryUsers(), active);
+    }
+
+    /**
+     * Assigns the next id to the message and stores it.
+     *
+     * @param frame message to store, sent to a room, a user or to all users
+     * @return the message with its id
+     */
+    public DataFrame append(DataFrame frame) {
+        if (frame.getRoom() == null && !USER_ALL.equals(frame.getReceiver())) {
+            loadUserBuffer(frame.getSender());
+            loadUserBuffer(frame.getReceiver());
+        }
+        lock.lock();
+        try {
+            DataFrame stored = new DataFrame(frame.getSender(), frame.getReceiver(), frame.getType(),
+                frame.getPayload(), frame.getRoom(), lastId + 1);
+            store(stored);
+            if (log != null) log.append(stored);
+            return stored;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the messages of a room.
+     *
+     * @param room to get the messages of
+     * @param sinceId only messages with a greater id are returned
+     * @param limit maximum number of messages returned
+     * @return the page
+     */
+    public Page roomHistory(String room, long sinceId, int limit) {
+        lock.lock();
+        try {
+            List<DataFrame> frames = since(ROOM_PREFIX + room, sinceId, limit + 1);
+            return page(frames, limit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the broadcasts and the private messages of a user, merged in id order.
+     *
+     * @param user to get the messages of
+     * @param sinceId only messages with a greater id are returned
+     * @param limit maximum number of messages returned
+     * @return the page
+     */
+    public Page userHistory(String user, long sinceId, int limit) {
+        List<DataFrame> broadcasts;
+        List<DataFrame> privates;
+        loadUserBuffer(user);
+        lock.lock();
+        try {
+            broadcasts = since(USER_ALL, sinceId, limit + 1);
+            HistoryBuffer buffer = capacity == 0 ? null : userBuffer(user, false);
+            privates = buffer == null ? List.of() : buffer.since(sinceId, limit + 1);
+        } finally {
+            lock.unlock();
+        }
+        List<DataFrame> merged = new ArrayList<>(Math.min(broadcasts.size() + privates.size(), limit + 1));
+        int b = 0;
+        int p = 0;
+        while (merged.size() <= limit && (b < broadcasts.size() || p < privates.size())) {
+            if (p == privates.size()
+                || (b < broadcasts.size() && broadcasts.get(b).getId() < privates.get(p).getId())) {
+                merged.add(broadcasts.get(b++));
+            } else {
+                merged.add(privates.get(p++));
+            }
+        }
+        return page(merged, limit);
+    }
+
+    /**
+     * Returns the id of the last stored message.
+     *
+     * @return the id, 0 if no message has been stored yet
+     */
+    public long getLastId() {
+        lock.lock();
+        try {
+            return lastId;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the log persisting the messages.
+     *
+     * @return the log, null if the history is kept in memory only
+     */
+    public HistoryLog getLog() {
+        return log;
+    }
+
+    /**
+     * Writes the messages still queued for the log and closes it.
+     */
+    @Override
+    public void close() {
+        if (log != null) log.close();
+    }
+
+    /**
+     * Stores the message in the buffers of its conversations. Must be called holding the lock.
+     */
+    private void store(DataFrame frame) {
+        lastId = Math.max(lastId, frame.getId());
+        if (capacity == 0) return;
+        if (frame.getRoom() != null) {
+            buffer(ROOM_PREFIX + frame.getRoom()).add(frame);
+        } else if (USER_ALL.equals(frame.getReceiver())) {
+            buffer(USER_ALL).add(frame);
+        } else {
+            userBuffer(frame.getSender(), true).add(frame);
+            if (!frame.getReceiver().equals(frame.getSender())) {
+                userBuffer(frame.getReceiver(), true).add(frame);
+            }
+        }
+    }
+
+    /**
+     * Stores a replayed message, skipping the private messages which are read on demand.
+     */
+    private void replay(DataFrame frame) {
+        lastId = Math.max(lastId, frame.getId());
+        if (capacity == 0) return;
+        if (frame.getRoom() != null) {
+            buffer(ROOM_PREFIX + frame.getRoom()).add(frame);
+        } else if (USER_ALL.equals(frame.getReceiver())) {
+            buffer(USER_ALL).add(frame);
+        }
+    }
+
+    private HistoryBuffer buffer(String key) {
+        return buffers.computeIfAbsent(key, name -> new HistoryBuffer(capacity));
+    }
+
+    /**
+     * Returns the buffer of the user. A buffer created while the messages of the user are in the log only is marked
+     * incomplete, see {@link #loadUserBuffer(String)}. Must be called holding the lock.
+     *
+     * @param user whose private messages are buffered
+     * @param create true to create the buffer if it is not in memory
+     * @return the buffer, null if it is not in memory and create is false
+     */
+    private HistoryBuffer userBuffer(String user, boolean create) {
+        HistoryBuffer buffer = userBuffers.get(user);
+        if (buffer != null || !create) return buffer;
+        buffer = new HistoryBuffer(capacity);
+        userBuffers.put(user, buffer);
+        if (log != null) incompleteUsers.add(user);
+        evictUserBuffers();
+        return buffer;
+    }
+
+    /**
+     * Reads the private messages of the user from the log, if the buffer of the user is not in memory or
+     * incomplete. The log is read without holding the lock, then the messages read are merged with the messages
+     * stored meanwhile.
+     *
+     * @param user whose buffer is needed
+     */
+    private void loadUserBuffer(String user) {
+        if (log == null || capacity == 0) return;
+        lock.lock();
+        try {
+            if (userBuffers.containsKey(user) && !incompleteUsers.contains(user)) return;
+        } finally {
+            lock.unlock();
+        }
+        List<DataFrame> loaded = new ArrayList<>();
+        log.replay(user, loaded::add);
+        lock.lock();
+        try {
+            HistoryBuffer buffer = userBuffers.get(user);
+            if (buffer != null && !incompleteUsers.remove(user)) return; // loaded by another thread meanwhile
+            List<DataFrame> stored = buffer == null ? List.of() : buffer.since(0, capacity);
+            userBuffers.put(user, merge(loaded, stored));
+            evictUserBuffers();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Merges two lists of messages in id order into a new buffer, skipping messages contained in both.
+     */
+    private HistoryBuffer merge(List<DataFrame> first, List<DataFrame> second) {
+        HistoryBuffer merged = new HistoryBuffer(capacity);
+        int f = 0;
+        int s = 0;
+        long lastAdded = 0;
+        while (f < first.size() || s < second.size()) {
+            DataFrame next = s == second.size()
+                || (f < first.size() && first.get(f).getId() <= second.get(s).getId())
+                ? first.get(f++) : second.get(s++);
+            if (next.getId() > lastAdded) {
+                merged.add(next);
+                lastAdded = next.getId();
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Drops the least recently used buffers of inactive users while there are too many buffers.
+     */
+    private void evictUserBuffers() {
+        Iterator<Map.Entry<String, HistoryBuffer>> entries = userBuffers.entrySet().iterator();
+        while (userBuffers.size() > maxUsers && entries.hasNext()) {
+            String user = entries.next().getKey();
+            if (!active.test(user)) {
+                entries.remove();
+                incompleteUsers.remove(user);
+            }
+        }
+    }
+
+    private List<DataFrame> since(String key, long sinceId, int limit) {
+        HistoryBuffer buffer = buffers.get(key);
+        return buffer == null ? List.of() : buffer.since(sinceId, limit);
+    }
+
+    private static Page page(List<DataFrame> frames, int limit) {
+        boolean more = frames.size() > limit;
+        return new Page(more ? frames.subList(0, limit) : frames, more);
+    }
+}
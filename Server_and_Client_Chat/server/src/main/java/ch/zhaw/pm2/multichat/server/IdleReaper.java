@@ -0,0 +1,164 @@
+package ch.zhaw.pm2.multichat.server;
+
+import ch.zhaw.pm2.multichat.protocol.AsyncLogger;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects idle and dead connections using a hashed timer wheel.
+ * <p>Each watched {@link ServerConnectionHandler} is placed in the slot of the wheel at which it has to be checked
+ * next. Receiving a frame only updates the time of the last activity of the handler, the wheel is not touched.
+ * A single timer thread advances the wheel by one slot per tick and only checks the handlers in that slot:</p>
+ * <ul>
+ *     <li>Handlers with activity within the ping interval are checked again one ping interval after their last
+ *     activity.</li>
+ *     <li>Handlers idle for the ping interval are sent a PING, which a live peer answers with a PONG, and are
+ *     checked again at the end of the timeout.</li>
+ *     <li>Handlers idle for the timeout are evicted, i.e. their connection is closed.</li>
+ * </ul>
+ * <p>So every handler is checked about once per ping interval, independent of the number of frames received,
+ * and a tick only costs as much as the handlers due in it, even with tens of thousands of connections.</p>
+ */
+public class IdleReaper implements Closeable {
+    private static final AsyncLogger logger = AsyncLogger.getLogger(IdleReaper.class);
+    private static final int WHEEL_SIZE = 512;
+    private static final int TICKS_PER_INTERVAL = 8;
+    private static final long MIN_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final long pingIntervalNanos;
+    private final long timeoutNanos;
+    private final long tickNanos;
+    private final long startNanos = System.nanoTime();
+    // handlers to be placed in the wheel by the timer thread
+    private final Queue<Entry> added = new ConcurrentLinkedQueue<>();
+    // slots of the wheel, only accessed by the timer thread
+    private final List<ArrayDeque<Entry>> wheel = new ArrayList<>(WHEEL_SIZE);
+    private long currentTick = 0;
+    private final ScheduledExecutorService timer;
+
+    /**
+     * A watched handler and the tick it has to be checked at.
+     */
+    private static class Entry {
+        private final ServerConnectionHandler handler;
+        private long deadlineTick;
+        private boolean pinged = false;
+
+        Entry(ServerConnectionHandler handler) {
+            this.handler = handler;
+        }
+    }
+
+    /**
+     * Constructor. Starts the timer thread.
+     *
+     * @param pingInterval idle time after which a PING is sent
+     * @param timeout idle time after which the connection is closed, longer than the ping interval
+     */
+    public IdleReaper(Duration pingInterval, Duration timeout) {
+        if (pingInterval.isNegative() || pingInterval.isZero()) {
+            throw new IllegalArgumentException("Ping interval must be positive: " + pingInterval);
+        }
+        if (timeout.compareTo(pingInterval) <= 0) {
+            throw new IllegalArgumentException("Timeout must be longer than the ping interval: " + timeout);
+        }
+        this.pingIntervalNanos = pingInterval.toNanos();
+        this.timeoutNanos = timeout.toNanos();
+        this.tickNanos = Math.max(pingIntervalNanos / TICKS_PER_INTERVAL, MIN_TICK_NANOS);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel.add(new ArrayDeque<>());
+        }
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "idle-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleAtFixedRate(this::advance, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Starts watching the handler. It is dropped automatically once its connection ended.
+     *
+     * @param handler to watch
+     */
+    public void watch(ServerConnectionHandler handler) {
+        added.add(new Entry(handler));
+    }
+
+    /**
+     * Stops the timer thread.
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Places the new handlers and processes all slots up to the current time. Runs on the timer thread.
+     */
+    private void advance() {
+        try {
+            Entry entry;
+            while ((entry = added.poll()) != null) {
+                schedule(entry, entry.handler.getLastActivity() + pingIntervalNanos);
+            }
+            long now = System.nanoTime();
+            long nowTick = (now - startNanos) / tickNanos;
+            while (currentTick <= nowTick) {
+                processSlot(now);
+                currentTick++;
+            }
+        } catch (RuntimeException e) {
+            // an exception would cancel the periodic task
+            logger.error("Error while checking idle connections", e);
+        }
+    }
+
+    private void processSlot(long now) {
+        ArrayDeque<Entry> slot = wheel.get((int) (currentTick % WHEEL_SIZE));
+        // entries rescheduled a full round later are appended to this slot, so only process the current ones
+        for (int count = slot.size(); count > 0; count--) {
+            Entry entry = slot.poll();
+            if (entry.deadlineTick > currentTick) {
+                slot.add(entry);
+            } else {
+                check(entry, now);
+            }
+        }
+    }
+
+    private void check(Entry entry, long now) {
+        ServerConnectionHandler handler = entry.handler;
+        if (handler.isTerminated()) return;
+        long lastActivity = handler.getLastActivity();
+        long idle = now - lastActivity;
+        if (idle >= timeoutNanos) {
+            handler.evictIdle();
+        } else if (idle >= pingIntervalNanos) {
+            if (!entry.pinged) {
+                entry.pinged = true;
+                handler.sendPing();
+            }
+            schedule(entry, lastActivity + timeoutNanos);
+        } else {
+            entry.pinged = false;
+            schedule(entry, lastActivity + pingIntervalNanos);
+        }
+    }
+
+    private void schedule(Entry entry, long deadlineNanos) {
+        // round up, so the handler is not checked before its deadline
+        long deadlineTick = (deadlineNanos - startNanos + tickNanos - 1) / tickNanos;
+        entry.deadlineTick = Math.max(deadlineTick, currentTick + 1);
+        wheel.get((int) (entry.deadlineTick % WHEEL_SIZE)).add(entry);
+    }
+}
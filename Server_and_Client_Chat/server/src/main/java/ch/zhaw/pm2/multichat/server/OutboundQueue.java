@@ -0,0 +1,223 @@
+package ch.zhaw.pm2.multichat.server;
+
+import ch.zhaw.pm2.multichat.protocol.AsyncLogger;
+import ch.zhaw.pm2.multichat.protocol.DataFrame;
+import ch.zhaw.pm2.multichat.protocol.SharedFrame;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded queue of the frames to be sent on one connection.
+ * <p>Senders only put the frame into the queue and return. As long as the queue is not empty, a writer task on the
+ * given executor drains it and writes the frames to the connection. So a client with a full TCP window only delays
+ * its own frames, not the thread broadcasting a message to all clients. No thread is bound to the queue while it is
+ * empty.</p>
+ * <p>If the queue is full, the {@link OverflowPolicy} decides what happens.</p>
+ */
+public class OutboundQueue {
+    private static final AsyncLogger logger = AsyncLogger.getLogger(OutboundQueue.class);
+    private final BlockingQueue<SharedFrame<DataFrame>> queue;
+    private final OverflowPolicy overflowPolicy;
+    private final Executor writerExecutor;
+    private final FrameWriter writer;
+    private final Runnable slowConsumerHandler;
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private final LongAdder droppedFrames = new LongAdder();
+    private volatile int highWatermark = 0;
+    private volatile boolean closed = false;
+    private volatile Runnable drainedAction;
+
+    /**
+     * This enum represents what happens if a frame is sent while the queue is full.
+     * DROP_OLDEST: The oldest queued frame is dropped to make room for the new one.
+     * DISCONNECT: The frame is dropped and the slow consumer is disconnected.
+     * BLOCK: The sender waits until there is room in the queue.
+     */
+    public enum OverflowPolicy {
+        DROP_OLDEST, DISCONNECT, BLOCK
+    }
+
+    /**
+     * Writes a frame to the connection. Called by the writer task only.
+     */
+    @FunctionalInterface
+    public interface FrameWriter {
+        /**
+         * Writes the frame to the connection.
+         *
+         * @param frame to write
+         * @throws IOException if the connection failed
+         */
+        void write(SharedFrame<DataFrame> frame) throws IOException;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param capacity maximum number of queued frames
+     * @param overflowPolicy what to do if the queue is full
+     * @param writerExecutor executor running the writer task
+     * @param writer writes the frames to the connection
+     * @param slowConsumerHandler called to disconnect the client with {@link OverflowPolicy#DISCONNECT}
+     */
+    public OutboundQueue(int capacity, OverflowPolicy overflowPolicy, Executor writerExecutor,
+                         FrameWriter writer, Runnable slowConsumerHandler) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.writerExecutor = writerExecutor;
+        this.writer = writer;
+        this.slowConsumerHandler = slowConsumerHandler;
+    }
+
+    /**
+     * Queues the frame to be written. Returns immediately, unless the queue is full and the policy is
+     * {@link OverflowPolicy#BLOCK}.
+     *
+     * @param frame to send
+     * @return true if the frame has been queued, false if it has been dropped
+     */
+    public boolean offer(SharedFrame<DataFrame> frame) {
+        if (closed) return false;
+        boolean queued = switch (overflowPolicy) {
+            case DROP_OLDEST -> offerDroppingOldest(frame);
+            case DISCONNECT -> offerOrDisconnect(frame);
+            case BLOCK -> offerBlocking(frame);
+        };
+        if (queued) {
+            int depth = queue.size();
+            if (depth > highWatermark) highWatermark = depth;
+            scheduleDrain();
+        }
+        return queued;
+    }
+
+    /**
+     * Queues the frame only if there is room in the queue, regardless of the overflow policy. Used for frames
+     * which are not worth blocking or dropping other frames for, e.g. heartbeats.
+     *
+     * @param frame to send
+     * @return true if the frame has been queued, false if the queue is full or closed
+     */
+    public boolean tryOffer(SharedFrame<DataFrame> frame) {
+        if (closed || !queue.offer(frame)) return false;
+        scheduleDrain();
+        return true;
+    }
+
+    /**
+     * Stops accepting frames and runs the action as soon as all queued frames have been written.
+     *
+     * @param action to run once the queue is drained, e.g. closing the connection
+     */
+    public void closeWhenDrained(Runnable action) {
+        closed = true;
+        drainedAction = action;
+        scheduleDrain();
+    }
+
+    /**
+     * Stops accepting frames and discards all queued frames.
+     */
+    public void close() {
+        closed = true;
+        queue.clear();
+    }
+
+    /**
+     * Returns the number of frames currently waiting to be written.
+     *
+     * @return queue depth
+     */
+    public int getDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the highest queue depth seen so far.
+     *
+     * @return maximum queue depth
+     */
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    /**
+     * Returns the number of frames dropped because the queue was full.
+     *
+     * @return number of dropped frames
+     */
+    public long getDroppedFrames() {
+        return droppedFrames.sum();
+    }
+
+    private boolean offerDroppingOldest(SharedFrame<DataFrame> frame) {
+        while (!queue.offer(frame)) {
+            if (queue.poll() != null) droppedFrames.increment();
+        }
+        return true;
+    }
+
+    private boolean offerOrDisconnect(SharedFrame<DataFrame> frame) {
+        if (queue.offer(frame)) return true;
+        droppedFrames.increment();
+        logger.warn("Outbound queue full, disconnecting slow consumer");
+        close();
+        slowConsumerHandler.run();
+        return false;
+    }
+
+    private boolean offerBlocking(SharedFrame<DataFrame> frame) {
+        try {
+            queue.put(frame);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            droppedFrames.increment();
+            return false;
+        }
+    }
+
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            writerExecutor.execute(this::drain);
+        }
+    }
+
+    /**
+     * Writes queued frames until the queue is empty. Only one drain task per queue is active at a time, which keeps
+     * the frames in order.
+     */
+    private void drain() {
+        try {
+            while (true) {
+                SharedFrame<DataFrame> frame;
+                while ((frame = queue.poll()) != null) {
+                    writer.write(frame);
+                }
+                Runnable action = drainedAction;
+                if (action != null && queue.isEmpty()) {
+                    drainedAction = null;
+                    action.run();
+                }
+                draining.set(false);
+                // work added after the last check but before resetting the flag did not schedule a new task
+                if ((queue.isEmpty() && drainedAction == null) || !draining.compareAndSet(false, true)) return;
+            }
+        } catch (IOException e) {
+            logger.warn("Communication error: {}", e.getMessage());
+            close();
+            // the queued frames are lost, but the pending action, e.g. closing the connection, must still run
+            Runnable action = drainedAction;
+            drainedAction = null;
+            draining.set(false);
+            if (action != null) action.run();
+            // an action set after taking it did not schedule a new task, the next one runs it on the empty queue
+            if (drainedAction != null) scheduleDrain();
+        }
+    }
+}
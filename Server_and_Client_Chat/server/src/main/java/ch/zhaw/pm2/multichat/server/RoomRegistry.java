@@ -0,0 +1,63 @@
+package ch.zhaw.pm2.multichat.server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread-safe subscription index of the chat rooms, mapping each room to the set of its members.
+ * <p>Messages to a room are only delivered to its members, so the cost of a room message is proportional to
+ * the size of the room instead of the number of connected users. Rooms are created by the first member joining
+ * and removed as soon as the last member left. Like the {@link ConnectionRegistry}, iterating over the members
+ * neither copies the set nor blocks concurrent joins and leaves.</p>
+ */
+public class RoomRegistry {
+    private final ConcurrentHashMap<String, Set<ServerConnectionHandler>> rooms = new ConcurrentHashMap<>();
+
+    /**
+     * Adds the handler to the members of the room, creating the room if it does not exist yet.
+     *
+     * @param room to join
+     * @param handler serving the joining user
+     */
+    public void join(String room, ServerConnectionHandler handler) {
+        rooms.compute(room, (name, members) -> {
+            if (members == null) members = ConcurrentHashMap.newKeySet();
+            members.add(handler);
+            return members;
+        });
+    }
+
+    /**
+     * Removes the handler from the members of the room, removing the room if it is empty afterwards.
+     *
+     * @param room to leave
+     * @param handler serving the leaving user
+     */
+    public void leave(String room, ServerConnectionHandler handler) {
+        rooms.computeIfPresent(room, (name, members) -> {
+            members.remove(handler);
+            return members.isEmpty() ? null : members;
+        });
+    }
+
+    /**
+     * Returns a live view of the members of the room.
+     *
+     * @param room to look up
+     * @return the members, an empty set if the room does not exist
+     */
+    public Set<ServerConnectionHandler> members(String room) {
+        Set<ServerConnectionHandler> members = rooms.get(room);
+        return members == null ? Collections.emptySet() : Collections.unmodifiableSet(members);
+    }
+
+    /**
+     * Returns the number of rooms with at least one member.
+     *
+     * @return number of rooms
+     */
+    public int size() {
+        return rooms.size();
+    }
+}
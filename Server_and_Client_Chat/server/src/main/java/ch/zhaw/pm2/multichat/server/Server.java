@@ -1,57 +1,87 @@
 package ch.zhaw.pm2.multichat.server;
 
+import ch.zhaw.pm2.multichat.protocol.AsyncLogger;
+import ch.zhaw.pm2.multichat.protocol.CodecRegistry;
 import ch.zhaw.pm2.multichat.protocol.DataFrame;
 import ch.zhaw.pm2.multichat.protocol.NetworkHandler;
+import ch.zhaw.pm2.multichat.protocol.NioNetworkServer;
+import ch.zhaw.pm2.multichat.protocol.VirtualThreads;
 
 import java.io.IOException;
 import java.net.SocketException;
-import java.util.HashMap;
-import java.util.Map;
+import java.time.Duration;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Application running on the server. It initiates all connectionHandlers
  */
 public class Server {
+    private static final AsyncLogger logger = AsyncLogger.getLogger(Server.class);
+    private static final int IO_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final long DRAIN_POLL_MILLIS = 10;
 
-    // Server connection
+    /**
+     * This enum represents the different ways the server can serve its connections.
+     * THREADS: Each connection is served by a blocking thread of a cached thread pool.
+     * VIRTUAL_THREADS: Each connection is served by a blocking virtual thread (requires Java 21+).
+     * NIO: All connections are served by a few I/O threads using non-blocking sockets.
+     */
+    public enum Mode {
+        THREADS, VIRTUAL_THREADS, NIO
+    }
+
+    private final Mode mode;
+
+    // Server connection (depending on the mode)
     private NetworkHandler.NetworkServer<DataFrame> networkServer;
+    private NioNetworkServer nioServer;
 
-    // Connection registry
-    private Map<String,ServerConnectionHandler> connections = new HashMap<>();
+    // Connection registry and chat rooms
+    private final ConnectionRegistry connections = new ConnectionRegistry();
+    private final RoomRegistry rooms = new RoomRegistry();
+    private final HistoryStore history;
+    // detects idle connections, null if the heartbeat is disabled
+    private final IdleReaper idleReaper;
+    private final ServerMetrics metrics = new ServerMetrics();
+    // links to the other nodes of the cluster, null if the server runs stand-alone
+    private final ClusterNode cluster;
+    private final ServerContext context;
 
-    ExecutorService connectionService = Executors.newCachedThreadPool();
+    private final ExecutorService connectionService;
 
     /**
      * Main method used to start the server
-     * @param args Server port
+     * @param args Server port and mode (THREADS, VIRTUAL_THREADS or NIO)
      */
     public static void main(String[] args) {
-        // Parse arguments for server port.
+        // Parse arguments for server port and mode.
         try {
-            int port;
+            int port = NetworkHandler.DEFAULT_PORT;
+            Mode mode = Mode.THREADS;
             switch (args.length) {
-                case 0 -> port = NetworkHandler.DEFAULT_PORT;
+                case 0 -> { }
                 case 1 -> port = Integer.parseInt(args[0]);
+                case 2 -> {
+                    port = Integer.parseInt(args[0]);
+                    mode = Mode.valueOf(args[1].toUpperCase());
+                }
                 default -> {
-                    System.out.println("Illegal number of arguments:  [<ServerPort>]");
+                    System.out.println("Illegal number of arguments:  [<ServerPort> [THREADS|VIRTUAL_THREADS|NIO]]");
                     return;
                 }
             }
             // Initialize server
-            final Server server = new Server(port);
+            final Server server = new Server(port, mode);
 
             // This adds a shutdown hook running a cleanup task if the JVM is terminated (kill -HUP, Ctrl-C,...)
             Runtime.getRuntime().addShutdownHook(new Thread() {
                 @Override
                 public void run() {
                     try {
-                        Thread.sleep(200);
                         System.out.println("Shutdown initiated...");
                         server.terminate();
-                    } catch (InterruptedException e) {
-                        System.out.println("Warning: Shutdown interrupted. " + e);
                     } finally {
                         System.out.println("Shutdown complete.");
                     }
@@ -66,52 +96,202 @@ public class Server {
     }
 
     /**
-     * Creates a new server, that once started will listen on the given network port.
+     * Creates a new server, that once started will listen on the given network port
+     * and serve each connection by a thread.
      *
      * @param serverPort to be used for the server
      * @throws IOException if an error occurred opening the port, e.g. the port number is already used.
      */
     public Server(int serverPort) throws IOException {
+        this(serverPort, Mode.THREADS);
+    }
+
+    /**
+     * Creates a new server, that once started will listen on the given network port.
+     *
+     * @param serverPort to be used for the server
+     * @param mode how the connections are served
+     * @throws IOException if an error occurred opening the port, e.g. the port number is already used.
+     */
+    public Server(int serverPort, Mode mode) throws IOException {
+        if (mode == Mode.VIRTUAL_THREADS && !VirtualThreads.isSupported()) {
+            logger.warn("Virtual threads are not supported by this JVM, falling back to {}", Mode.THREADS);
+            mode = Mode.THREADS;
+        }
+        this.mode = mode;
+        this.connectionService = mode == Mode.VIRTUAL_THREADS
+            ? VirtualThreads.newPerTaskExecutor()
+            : Executors.newCachedThreadPool();
+        // writer tasks only run while a connection has queued frames
+        ExecutorService writerService = mode == Mode.VIRTUAL_THREADS
+            ? VirtualThreads.newPerTaskExecutor()
+            : Executors.newCachedThreadPool();
+        ServerConfig config = ServerConfig.fromSystemProperties();
+        SessionRegistry sessions = new SessionRegistry(Duration.ofSeconds(config.getResumeTimeout()));
+        this.history = HistoryStore.create(config,
+            userName -> connections.contains(userName) || sessions.hasSession(userName));
+        metrics.monitor(history.getLog());
+        this.idleReaper = config.getHeartbeatInterval() == 0 ? null : new IdleReaper(
+            Duration.ofSeconds(config.getHeartbeatInterval()), Duration.ofSeconds(config.getHeartbeatTimeout()));
+        this.cluster = config.getClusterPort() == 0 ? null
+            : new ClusterNode(config, connections, rooms, history, metrics, connectionService, writerService);
+        this.context = new ServerContext(config, connections, rooms, history, sessions, cluster,
+            new AdmissionController(config), metrics, writerService, mode == Mode.NIO);
         // Open server connection
-        System.out.println("Create server connection");
-        networkServer = NetworkHandler.createServer(serverPort);
-        System.out.println("Listening on " + networkServer.getHostAddress() + ":" + networkServer.getHostPort());
+        logger.info("Create server connection ({})", mode);
+        if (mode == Mode.NIO) {
+            nioServer = NetworkHandler.createNioServer(serverPort, IO_THREADS);
+            logger.info("Listening on {}:{}", nioServer.getHostAddress(), nioServer.getHostPort());
+        } else {
+            networkServer = NetworkHandler.createServer(serverPort, CodecRegistry.forDataFrames());
+            logger.info("Listening on {}:{}", networkServer.getHostAddress(), networkServer.getHostPort());
+        }
+        int port = mode == Mode.NIO ? nioServer.getHostPort() : networkServer.getHostPort();
+        if (config.isMetricsJmx()) metrics.registerMBean(String.valueOf(port));
+        if (config.getMetricsInterval() > 0) metrics.startDump(Duration.ofSeconds(config.getMetricsInterval()));
+    }
+
+    /**
+     * Starts the server according to its mode. Blocks until the server is terminated.
+     */
+    private void start() {
+        if (cluster != null) cluster.start();
+        if (mode == Mode.NIO) {
+            startNio();
+        } else {
+            startThreads();
+        }
     }
+
     /**
      * Waits for clients to be connected and adds / starts for each client a new
      * Connection Handler.
      */
-    private void start() {
-        System.out.println("Server started.");
+    private void startThreads() {
+        logger.info("Server started.");
         try {
             while (true) {
                  NetworkHandler.NetworkConnection<DataFrame> connection = networkServer.waitForConnection();
-                 ServerConnectionHandler connectionHandler = new ServerConnectionHandler(connection, connections);
+                 configureConnection(connection);
+                 ServerConnectionHandler connectionHandler = new ServerConnectionHandler(connection, context);
+                 if (idleReaper != null) idleReaper.watch(connectionHandler);
                  connectionService.submit(connectionHandler);
-                 System.out.println(String.format("Connected new Client %s with IP:Port <%s:%d>",
-                     connectionHandler.getUserName(),
-                     connection.getRemoteHost(),
-                     connection.getRemotePort()
-                 ));
+                 logger.info("Connected new Client {} with IP:Port <{}:{}>", connectionHandler.getUserName(),
+                     connection.getRemoteHost(), connection.getRemotePort());
             }
         } catch(SocketException e) {
-            System.out.println("Server connection terminated");
+            logger.info("Server connection terminated");
         }
         catch (IOException e) {
-            System.err.println("Communication error " + e);
+            logger.error("Communication error", e);
         }
         // close server
-        System.out.println("Server Stopped.");
+        logger.info("Server Stopped.");
+    }
+
+    /**
+     * Applies the socket and batching settings of the configuration to a new connection.
+     *
+     * @param connection to configure
+     */
+    private void configureConnection(NetworkHandler.NetworkConnection<DataFrame> connection) {
+        ServerConfig config = context.getConfig();
+        try {
+            connection.setTcpNoDelay(config.isTcpNoDelay());
+        } catch (SocketException e) {
+            logger.warn("Failed to set TCP_NODELAY: {}", e.getMessage());
+        }
+        if (config.getBatchDelayMillis() > 0) {
+            connection.enableBatching(Duration.ofMillis(config.getBatchDelayMillis()), config.getBatchMaxBytes());
+        }
+    }
+
+    /**
+     * Accepts clients and creates a Connection Handler for each of them. The handlers are driven by
+     * the I/O threads of the {@link NioNetworkServer}, which deliver the received frames.
+     */
+    private void startNio() {
+        logger.info("Server started.");
+        try {
+            nioServer.run(connection -> {
+                ServerConnectionHandler connectionHandler = new ServerConnectionHandler(connection, context);
+                if (idleReaper != null) idleReaper.watch(connectionHandler);
+                logger.info("Connected new Client {} with IP:Port <{}:{}>", connectionHandler.getUserName(),
+                    connection.getRemoteHost(), connection.getRemotePort());
+                return connectionHandler;
+            });
+            logger.info("Server connection terminated");
+        } catch (IOException e) {
+            logger.error("Communication error", e);
+        }
+        logger.info("Server Stopped.");
     }
+
     /**
-     * Informs the clients about the closed port and closes the network Server
+     * Shuts the server down without dropping the messages in flight:
+     * <ol>
+     *     <li>Closes the server port, so no more clients connect.</li>
+     *     <li>Sends a DISCONNECT frame to the connected clients and closes each connection as soon as the frames
+     *     queued for it have been written.</li>
+     *     <li>Waits for the connections to be closed, at most for the shutdown timeout, then closes the remaining
+     *     ones without writing their queued frames.</li>
+     *     <li>Closes the links to the other nodes of the cluster (after they have been told about the disconnected
+     *     users), writes the pending history log and unpublishes the metrics.</li>
+     * </ol>
      */
     public void terminate() {
         try {
-            System.out.println("Close server port.");
-            networkServer.close();
+            logger.info("Close server port.");
+            if (nioServer != null) {
+                nioServer.stopAccepting();
+            } else {
+                networkServer.close();
+            }
         } catch (IOException e) {
-            System.err.println("Failed to close server connection: " + e);
+            logger.warn("Failed to close server connection: {}", e.getMessage());
+        }
+        if (idleReaper != null) idleReaper.close();
+        logger.info("Disconnecting {} clients", connections.size());
+        for (ServerConnectionHandler handler : connections.handlers()) {
+            handler.shutdown();
+        }
+        if (!awaitDrained(Duration.ofSeconds(context.getConfig().getShutdownTimeout()))) {
+            logger.warn("Closing {} connections not drained in time", connections.size());
+            for (ServerConnectionHandler handler : connections.handlers()) {
+                handler.abortConnection();
+            }
+        }
+        if (nioServer != null) {
+            try {
+                nioServer.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close server connection: {}", e.getMessage());
+            }
+        }
+        if (cluster != null) cluster.close();
+        connectionService.shutdown();
+        context.getWriterService().shutdown();
+        history.close();
+        metrics.close();
+    }
+
+    /**
+     * Waits until all connections of users have been closed.
+     *
+     * @param timeout maximum time to wait
+     * @return true if all connections have been closed, false if the timeout elapsed or the thread was interrupted
+     */
+    private boolean awaitDrained(Duration timeout) {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        try {
+            while (connections.size() > 0) {
+                if (System.nanoTime() - deadline >= 0) return false;
+                TimeUnit.MILLISECONDS.sleep(DRAIN_POLL_MILLIS);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         }
     }
 
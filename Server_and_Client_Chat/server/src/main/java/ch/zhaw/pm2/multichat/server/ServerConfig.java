@@ -0,0 +1,327 @@
+package ch.zhaw.pm2.multichat.server;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Tuning parameters of the server. The defaults can be overridden using system properties,
+ * e.g. {@code -Dmultichat.outbound.capacity=4096}.
+ */
+public class ServerConfig {
+    private static final String PREFIX = "multichat.";
+
+    private final int outboundQueueCapacity;
+    private final OutboundQueue.OverflowPolicy overflowPolicy;
+    private final boolean tcpNoDelay;
+    private final int batchDelayMillis;
+    private final int batchMaxBytes;
+    private final int historySize;
+    private final Path historyDirectory;
+    private final long historySegmentBytes;
+    private final int historySegments;
+    private final int historyUsers;
+    private final int historyQueue;
+    private final int heartbeatInterval;
+    private final int heartbeatTimeout;
+    private final int metricsInterval;
+    private final boolean metricsJmx;
+    private final int resumeTimeout;
+    private final int clusterPort;
+    private final List<String> clusterPeers;
+    private final String clusterNode;
+    private final String clusterSecret;
+    private final int rateMessages;
+    private final int rateBurst;
+    private final int rateGlobal;
+    private final int shutdownTimeout;
+
+    /**
+     * Creates the configuration from the given properties, using the defaults for properties not set.
+     * <ul>
+     *     <li>{@code multichat.outbound.capacity}: frames queued per connection (default 1024)</li>
+     *     <li>{@code multichat.outbound.policy}: DISCONNECT (default), DROP_OLDEST or BLOCK. A disconnected client
+     *     resumes its session and fetches the missed messages from the history, while DROP_OLDEST silently loses
+     *     messages for the slow client</li>
+     *     <li>{@code multichat.tcp.nodelay}: disable Nagle's algorithm (default false)</li>
+     *     <li>{@code multichat.batch.delay}: batching window in milliseconds, 0 disables batching (default 0)</li>
+     *     <li>{@code multichat.batch.bytes}: batch size flushed immediately (default 8192)</li>
+     *     <li>{@code multichat.history.size}: messages kept in memory per room, user and for broadcasts
+     *     (default 100)</li>
+     *     <li>{@code multichat.history.dir}: directory of the history log, empty to keep the history in memory
+     *     only (default empty)</li>
+     *     <li>{@code multichat.history.segment.bytes}: size of a history log segment (default 16 MiB)</li>
+     *     <li>{@code multichat.history.segments}: number of history log segments kept (default 8)</li>
+     *     <li>{@code multichat.history.queue}: messages queued to be written to the history log, further messages
+     *     are not logged while the queue is full (default 65536)</li>
+     *     <li>{@code multichat.history.users}: private message histories of offline users kept in memory, others
+     *     are read from the history log again when needed (default 10000)</li>
+     *     <li>{@code multichat.heartbeat.interval}: seconds a client may be idle before it is sent a PING,
+     *     0 disables the heartbeat (default 30)</li>
+     *     <li>{@code multichat.heartbeat.timeout}: seconds a client may be idle before it is disconnected
+     *     (default 90)</li>
+     *     <li>{@code multichat.metrics.interval}: seconds between two dumps of the metrics to the log, 0 disables
+     *     the dump (default 0)</li>
+     *     <li>{@code multichat.metrics.jmx}: publish the metrics via JMX (default true)</li>
+     *     <li>{@code multichat.resume.timeout}: seconds a client may resume its session after the connection was
+     *     lost, 0 disables resuming (default 60)</li>
+     *     <li>{@code multichat.cluster.port}: port of the links to the other nodes of the cluster, 0 runs the server
+     *     stand-alone (default 0)</li>
+     *     <li>{@code multichat.cluster.peers}: comma separated {@code host:port} of the cluster links of the other
+     *     nodes (default empty)</li>
+     *     <li>{@code multichat.cluster.node}: unique id of the node in the cluster (default host name and cluster
+     *     port)</li>
+     *     <li>{@code multichat.cluster.secret}: secret shared by the nodes to authenticate their links, empty to
+     *     only accept links from the addresses of the peers (default empty)</li>
+     *     <li>{@code multichat.rate.messages}: requests a client may send per second, 0 disables the limit
+     *     (default 20)</li>
+     *     <li>{@code multichat.rate.burst}: requests a client may send at once after a pause (default 40)</li>
+     *     <li>{@code multichat.rate.global}: frames all requests together may cause to be sent per second, 0 disables
+     *     the limit (default 1000000)</li>
+     *     <li>{@code multichat.shutdown.timeout}: seconds the server waits on shutdown for the frames queued for the
+     *     clients to be written (default 10)</li>
+     * </ul>
+     *
+     * @param properties to read the configuration from
+     * @throws IllegalArgumentException if a property has an illegal value
+     */
+    public ServerConfig(Properties properties) {
+        this.outboundQueueCapacity = positive(properties, "outbound.capacity", 1024);
+        this.overflowPolicy = OutboundQueue.OverflowPolicy.valueOf(
+            properties.getProperty(PREFIX + "outbound.policy", OutboundQueue.OverflowPolicy.DISCONNECT.name())
+                .strip().toUpperCase());
+        this.tcpNoDelay = Boolean.parseBoolean(properties.getProperty(PREFIX + "tcp.nodelay", "false").strip());
+        this.batchDelayMillis = integer(properties, "batch.delay", 0);
+        if (batchDelayMillis < 0) throw new IllegalArgumentException("Negative batch delay: " + batchDelayMillis);
+        this.batchMaxBytes = positive(properties, "batch.bytes", 8192);
+        this.historySize = integer(properties, "history.size", 100);
+        if (historySize < 0) throw new IllegalArgumentException("Negative history size: " + historySize);
+        String directory = properties.getProperty(PREFIX + "history.dir", "").strip();
+        this.historyDirectory = directory.isEmpty() ? null : Path.of(directory);
+        this.historySegmentBytes = positive(properties, "history.segment.bytes", 16 * 1024 * 1024);
+        this.historySegments = positive(properties, "history.segments", 8);
+        this.historyQueue = positive(properties, "history.queue", 65_536);
+        this.historyUsers = positive(properties, "history.users", 10_000);
+        this.heartbeatInterval = integer(properties, "heartbeat.interval", 30);
+        this.heartbeatTimeout = integer(properties, "heartbeat.timeout", 90);
+        if (heartbeatInterval < 0) {
+            throw new IllegalArgumentException("Negative heartbeat interval: " + heartbeatInterval);
+        }
+        if (heartbeatInterval > 0 && heartbeatTimeout <= heartbeatInterval) {
+            throw new IllegalArgumentException("Heartbeat timeout must exceed the interval: " + heartbeatTimeout);
+        }
+        this.metricsInterval = integer(properties, "metrics.interval", 0);
+        if (metricsInterval < 0) throw new IllegalArgumentException("Negative metrics interval: " + metricsInterval);
+        this.metricsJmx = Boolean.parseBoolean(properties.getProperty(PREFIX + "metrics.jmx", "true").strip());
+        this.resumeTimeout = integer(properties, "resume.timeout", 60);
+        if (resumeTimeout < 0) throw new IllegalArgumentException("Negative resume timeout: " + resumeTimeout);
+        this.clusterPort = integer(properties, "cluster.port", 0);
+        if (clusterPort < 0 || clusterPort > 0xffff) {
+            throw new IllegalArgumentException("Illegal cluster port: " + clusterPort);
+        }
+        this.clusterPeers = Arrays.stream(properties.getProperty(PREFIX + "cluster.peers", "").split(","))
+            .map(String::strip)
+            .filter(peer -> !peer.isEmpty())
+            .toList();
+        for (String peer : clusterPeers) {
+            int separator = peer.lastIndexOf(':');
+            if (separator < 1 || !peer.substring(separator + 1).matches("\\d{1,5}")) {
+                throw new IllegalArgumentException("Illegal cluster peer, expected host:port: " + peer);
+            }
+        }
+        String node = properties.getProperty(PREFIX + "cluster.node", "").strip();
+        this.clusterNode = node.isEmpty() ? null : node;
+        String secret = properties.getProperty(PREFIX + "cluster.secret", "");
+        this.clusterSecret = secret.isEmpty() ? null : secret;
+        this.rateMessages = integer(properties, "rate.messages", 20);
+        if (rateMessages < 0) throw new IllegalArgumentException("Negative message rate: " + rateMessages);
+        this.rateBurst = positive(properties, "rate.burst", 40);
+        this.rateGlobal = integer(properties, "rate.global", 1_000_000);
+        if (rateGlobal < 0) throw new IllegalArgumentException("Negative global rate: " + rateGlobal);
+        this.shutdownTimeout = integer(properties, "shutdown.timeout", 10);
+        if (shutdownTimeout < 0) throw new IllegalArgumentException("Negative shutdown timeout: " + shutdownTimeout);
+    }
+
+    /**
+     * Creates the configuration from the system properties.
+     *
+     * @return the configuration
+     * @see #ServerConfig(Properties)
+     */
+    public static ServerConfig fromSystemProperties() {
+        return new ServerConfig(System.getProperties());
+    }
+
+    private static int integer(Properties properties, String name, int defaultValue) {
+        String value = properties.getProperty(PREFIX + name);
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value.strip());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Illegal value for " + PREFIX + name + ": " + value);
+        }
+    }
+
+    private static int positive(Properties properties, String name, int defaultValue) {
+        int value = integer(properties, name, defaultValue);
+        if (value < 1) throw new IllegalArgumentException(PREFIX + name + " must be positive: " + value);
+        return value;
+    }
+
+    public int getOutboundQueueCapacity() {
+        return outboundQueueCapacity;
+    }
+
+    public OutboundQueue.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public int getBatchDelayMillis() {
+        return batchDelayMillis;
+    }
+
+    public int getBatchMaxBytes() {
+        return batchMaxBytes;
+    }
+
+    public int getHistorySize() {
+        return historySize;
+    }
+
+    /**
+     * Returns the directory of the history log.
+     *
+     * @return the directory, null if the history is not persisted
+     */
+    public Path getHistoryDirectory() {
+        return historyDirectory;
+    }
+
+    public long getHistorySegmentBytes() {
+        return historySegmentBytes;
+    }
+
+    public int getHistorySegments() {
+        return historySegments;
+    }
+
+    public int getHistoryQueue() {
+        return historyQueue;
+    }
+
+    /**
+     * Returns the number of private message histories of users without connection or session kept in memory.
+     *
+     * @return the number of histories
+     */
+    public int getHistoryUsers() {
+        return historyUsers;
+    }
+
+    /**
+     * Returns the idle time in seconds after which a client is sent a PING.
+     *
+     * @return the interval, 0 if the heartbeat is disabled
+     */
+    public int getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    public int getHeartbeatTimeout() {
+        return heartbeatTimeout;
+    }
+
+    /**
+     * Returns the interval in seconds between two dumps of the metrics to the log.
+     *
+     * @return the interval, 0 if the metrics are not dumped
+     */
+    public int getMetricsInterval() {
+        return metricsInterval;
+    }
+
+    public boolean isMetricsJmx() {
+        return metricsJmx;
+    }
+
+    /**
+     * Returns the time in seconds a client may resume its session after the connection was lost.
+     *
+     * @return the timeout, 0 if resuming is disabled
+     */
+    public int getResumeTimeout() {
+        return resumeTimeout;
+    }
+
+    /**
+     * Returns the port of the links to the other nodes of the cluster.
+     *
+     * @return the port, 0 if the server runs stand-alone
+     */
+    public int getClusterPort() {
+        return clusterPort;
+    }
+
+    /**
+     * Returns the addresses of the cluster links of the other nodes.
+     *
+     * @return the addresses as {@code host:port}
+     */
+    public List<String> getClusterPeers() {
+        return clusterPeers;
+    }
+
+    /**
+     * Returns the id of this node in the cluster.
+     *
+     * @return the id, null if it is derived from the host name and cluster port
+     */
+    public String getClusterNode() {
+        return clusterNode;
+    }
+
+    /**
+     * Returns the secret authenticating the links between the nodes.
+     *
+     * @return the secret, null if the links are not authenticated
+     */
+    public String getClusterSecret() {
+        return clusterSecret;
+    }
+
+    /**
+     * Returns the number of requests a client may send per second.
+     *
+     * @return the rate, 0 if it is not limited
+     */
+    public int getRateMessages() {
+        return rateMessages;
+    }
+
+    public int getRateBurst() {
+        return rateBurst;
+    }
+
+    /**
+     * Returns the number of frames all requests together may cause to be sent per second.
+     *
+     * @return the rate, 0 if it is not limited
+     */
+    public int getRateGlobal() {
+        return rateGlobal;
+    }
+
+    /**
+     * Returns the time in seconds the server waits on shutdown for the connections to be drained.
+     *
+     * @return the timeout, 0 to close the connections immediately
+     */
+    public int getShutdownTimeout() {
+        return shutdownTimeout;
+    }
+}
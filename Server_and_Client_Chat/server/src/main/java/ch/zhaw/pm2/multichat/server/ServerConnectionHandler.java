@@ -1,12 +1,17 @@
 package ch.zhaw.pm2.multichat.server;
 
+import ch.zhaw.pm2.multichat.protocol.AsyncLogger;
 import ch.zhaw.pm2.multichat.protocol.ChatProtocolException;
 import ch.zhaw.pm2.multichat.protocol.ConnectionHandler;
 import ch.zhaw.pm2.multichat.protocol.DataFrame;
 import ch.zhaw.pm2.multichat.protocol.NetworkHandler;
+import ch.zhaw.pm2.multichat.protocol.SharedFrame;
 
-import java.util.Map;
+import java.io.IOException;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static ch.zhaw.pm2.multichat.protocol.ConnectionHandler.DataType.*;
@@ -17,44 +22,270 @@ import static ch.zhaw.pm2.multichat.protocol.ConnectionHandler.State.*;
  * server side. For each client there is one ServerConnectionHandler
  */
 public class ServerConnectionHandler extends ConnectionHandler {
+    private static final AsyncLogger logger = AsyncLogger.getLogger(ServerConnectionHandler.class);
+
+    /**
+     * Maximum number of messages returned for one history request.
+     */
+    public static final int MAX_HISTORY_PAGE = 500;
+
     private static final AtomicInteger connectionCounter = new AtomicInteger(0);
     private final int connectionId = connectionCounter.incrementAndGet();
-    private final Map<String,ServerConnectionHandler> connectionRegistry;
+    private final ConnectionRegistry connectionRegistry;
+    private final RoomRegistry roomRegistry;
+    private final HistoryStore history;
+    private final SessionRegistry sessions;
+    // cluster the server is a node of, null if stand-alone
+    private final ClusterNode cluster;
+    private final ServerMetrics metrics;
+    private final AdmissionController admission;
+    // limit of the requests of this connection, null if not limited
+    private final TokenBucket rateLimit;
+    // until then the client has been told to back off, requests are rejected without telling it again
+    private volatile long backoffUntil = System.nanoTime();
+    private final OutboundQueue outboundQueue;
+    // rooms joined by this user
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+    private volatile boolean terminated = false;
+    // session of the user, null if not connected, closed by a disconnect request or resuming is disabled
+    private volatile SessionRegistry.Session session;
+    // request ids of the recently delivered messages, shared with the session
+    private volatile Set<Long> recentRequests = SessionRegistry.newRecentRequests();
+    // request id of the message being processed, set by the receiving thread
+    private long currentRequestId;
 
     /**
      * Constructor
      *
      * @param connection to be used by the handler
-     * @param registry to be used to store all connections
+     * @param context of the server, providing the registries to store all connections and rooms
      */
-    public ServerConnectionHandler(NetworkHandler.NetworkConnection<DataFrame> connection,
-                                   Map<String,ServerConnectionHandler> registry) {
+    public ServerConnectionHandler(NetworkHandler.Connection<DataFrame> connection,
+                                   ServerContext context) {
         super(connection);
         Objects.requireNonNull(connection, "Connection must not be null");
-        Objects.requireNonNull(registry, "Registry must not be null");
+        Objects.requireNonNull(context, "Context must not be null");
         this.userName = "Anonymous-" + connectionId;
-        this.connectionRegistry = registry;
+        this.connectionRegistry = context.getRegistry();
+        this.roomRegistry = context.getRooms();
+        this.history = context.getHistory();
+        this.sessions = context.getSessions();
+        this.cluster = context.getCluster();
+        this.metrics = context.getMetrics();
+        this.admission = context.getAdmission();
+        this.rateLimit = admission.newConnectionLimit();
+        if (context.hasNonBlockingConnections()) {
+            this.outboundQueue = null;
+        } else {
+            ServerConfig config = context.getConfig();
+            this.outboundQueue = new OutboundQueue(config.getOutboundQueueCapacity(), config.getOverflowPolicy(),
+                context.getWriterService(), this::writeQueuedFrame, this::closeConnection);
+        }
+        metrics.connectionOpened(this);
+    }
+
+    /**
+     * Queues the frame in the outbound queue of the connection, so the calling thread is not blocked
+     * by a slow client. Without outbound queue the frame is passed to the non-blocking connection directly.
+     *
+     * @param data frame to send
+     */
+    @Override
+    protected void sendFrame(SharedFrame<DataFrame> data) {
+        if (outboundQueue == null) {
+            sendDirectly(data);
+        } else {
+            outboundQueue.offer(data);
+        }
+    }
+
+    /**
+     * Passes the frame to the non-blocking connection.
+     *
+     * @param data frame to send
+     */
+    private void sendDirectly(SharedFrame<DataFrame> data) {
+        super.sendFrame(data);
+        metrics.frameSent(data);
+    }
+
+    /**
+     * Writes a frame taken from the outbound queue. Called by the writer task of the queue.
+     *
+     * @param data frame to write
+     * @throws IOException if the frame could not be written
+     */
+    private void writeQueuedFrame(SharedFrame<DataFrame> data) throws IOException {
+        writeFrame(data);
+        metrics.frameSent(data);
+    }
+
+    /**
+     * Counts the received frame and remembers the request id of a message, to acknowledge it.
+     *
+     * @param data the received frame
+     */
+    @Override
+    protected void dataReceived(DataFrame data) {
+        metrics.frameReceived(data.getType());
+        currentRequestId = data.getType() == MESSAGE ? data.getId() : 0;
+    }
+
+    /**
+     * Rejects a message carrying a request id with a negative ACK instead of an ERROR frame, so the client knows
+     * which of its messages failed.
+     *
+     * @param data the frame which could not be processed
+     * @param message describing the error
+     */
+    @Override
+    protected void sendError(DataFrame data, String message) {
+        if (data.getType() == MESSAGE) {
+            reject(message);
+        } else {
+            super.sendError(data, message);
+        }
+    }
+
+    /**
+     * Acknowledges the message being processed, if the client requested it by a request id.
+     * The ACK confirms that the server accepted the message and passed it to the receivers' connections: with the
+     * overflow policy {@link OutboundQueue.OverflowPolicy#DROP_OLDEST} a slow receiver may still lose it.
+     *
+     * @param error null if the message has been delivered, otherwise the reason it has not
+     */
+    private void acknowledge(String error) {
+        if (currentRequestId > 0) {
+            sendFrame(new SharedFrame<>(new DataFrame(USER_NONE, userName, ACK, error, null, currentRequestId)));
+        }
+    }
+
+    /**
+     * Informs the client that the message being processed has not been delivered, by a negative ACK if the message
+     * carries a request id, otherwise by an ERROR frame.
+     *
+     * @param error the reason the message has not been delivered
+     */
+    private void reject(String error) {
+        if (currentRequestId > 0) {
+            acknowledge(error);
+        } else {
+            sendData(USER_NONE, userName, ERROR, error);
+        }
+    }
+
+    /**
+     * Checks if the message being processed has been delivered already, i.e. the client sent it again because the
+     * acknowledgement did not reach it. Such a message is acknowledged again, but not delivered.
+     *
+     * @return true if the message is to be dropped
+     */
+    private boolean isResent() {
+        if (currentRequestId <= 0 || !recentRequests.contains(currentRequestId)) return false;
+        acknowledge(null);
+        return true;
+    }
+
+    /**
+     * Remembers the request id of the message being processed as delivered.
+     */
+    private void delivered() {
+        if (currentRequestId > 0) recentRequests.add(currentRequestId);
+    }
+
+    /**
+     * Closes the connection as soon as all queued frames have been written, so e.g. the confirmation of a
+     * disconnect request still reaches the client.
+     */
+    @Override
+    public void stopReceiving() {
+        if (outboundQueue == null) {
+            super.stopReceiving();
+        } else {
+            outboundQueue.closeWhenDrained(this::closeConnection);
+        }
+    }
+
+    /**
+     * Closes the connection immediately, discarding frames not yet written.
+     */
+    private void closeConnection() {
+        super.stopReceiving();
     }
 
     /**
-     * Prints unknown data type error
+     * Indicates if the connection of the handler has ended.
+     *
+     * @return true if the connection has ended
+     */
+    boolean isTerminated() {
+        return terminated;
+    }
+
+    /**
+     * Sends a PING to check if the client is still alive. The PING is skipped if the outbound queue is full,
+     * as there is no point in queueing more frames for a client not reading them.
+     */
+    void sendPing() {
+        SharedFrame<DataFrame> frame = new SharedFrame<>(new DataFrame(USER_NONE, userName, PING, null));
+        if (outboundQueue == null) {
+            sendDirectly(frame);
+        } else {
+            outboundQueue.tryOffer(frame);
+        }
+    }
+
+    /**
+     * Closes the connection of a client which did not send anything within the idle timeout,
+     * without waiting for queued frames to be written.
+     */
+    void evictIdle() {
+        logger.info("Evicting idle connection of {}", userName);
+        abortConnection();
+    }
+
+    /**
+     * Returns the outbound queue of the connection.
+     *
+     * @return the queue, or null if the connection is non-blocking and has no outbound queue
+     */
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    /**
+     * Releases the user name, leaves all rooms and discards unsent frames if the connection ends.
+     * If the connection was lost without a disconnect request, the session is kept to be resumed.
+     */
+    @Override
+    protected void threadDies() {
+        terminated = true;
+        if (session != null) sessions.detach(session, this, rooms);
+        leaveAllRooms();
+        releaseUserName();
+        if (outboundQueue != null) outboundQueue.close();
+        metrics.connectionClosed(this);
+    }
+
+    /**
+     * Logs unknown data type error
      *
      * @param type the message type
      */
     @Override
     protected void getDefaultMessage(DataType type) {
-        System.out.println("Unknown data type received: " + type);
+        logger.warn("Unknown data type received: {}", type);
     }
 
     /**
-     * Prints the error message received from the sender
+     * Logs the error message received from the sender
      *
      * @param sender that sent the message
      * @param payload of the message
      */
     @Override
     protected void getErrorMessage(String sender, String payload) {
-        System.err.println("Received error from client (" + sender + "): " + payload);
+        logger.warn("Received error from client ({}): {}", sender, payload);
     }
 
     /**
@@ -69,17 +300,96 @@ public class ServerConnectionHandler extends ConnectionHandler {
         if (state.equals(DISCONNECTED))
             throw new ChatProtocolException("Illegal state for disconnect request: " + state);
         if (state.equals(CONNECTED)) {
-            connectionRegistry.remove(this.userName);
+            leaveAllRooms();
+            releaseUserName();
+        }
+        if (session != null) {
+            sessions.close(session);
+            session = null;
         }
         sendData(USER_NONE, userName, CONFIRM, "Confirm disconnect of " + userName);
         this.state = DISCONNECTED;
         this.stopReceiving();
     }
 
+    /**
+     * Removes the user name from the registry and announces the disconnect to the other nodes of the cluster.
+     */
+    private void releaseUserName() {
+        if (connectionRegistry.unregister(this.userName, this) && cluster != null) {
+            cluster.userDisconnected(userName);
+        }
+    }
+
+    /**
+     * Registers the user name and announces the user to the other nodes of the cluster.
+     *
+     * @param name to register
+     * @return true if the name has been registered, false if it is already taken on this or another node
+     */
+    private boolean registerUserName(String name) {
+        if (cluster != null && cluster.isRemoteUser(name)) return false;
+        if (!connectionRegistry.register(name, this)) return false;
+        if (cluster != null) cluster.userConnected(name);
+        return true;
+    }
+
+    /**
+     * Disconnects the user because the name has been taken on another node of the cluster at the same time, and
+     * the other node owns the name. The session is closed, as it can not be resumed under this name.
+     */
+    void disconnectDuplicate() {
+        if (session != null) {
+            sessions.close(session);
+            session = null;
+        }
+        sendData(USER_NONE, userName, DISCONNECT, "User name already taken: " + userName);
+        stopReceiving();
+    }
+
+    /**
+     * Informs the client that the server is shutting down and closes the connection as soon as the frames queued for
+     * it have been written. The session is closed, as it can not be resumed once the server is down.
+     */
+    void shutdown() {
+        if (session != null) {
+            sessions.close(session);
+            session = null;
+        }
+        this.state = DISCONNECTED;
+        sendData(USER_NONE, userName, DISCONNECT, "Server is shutting down");
+        stopReceiving();
+    }
+
+    /**
+     * Asks the {@link AdmissionController} whether a request is processed. If it is rejected, the client is sent an
+     * ERROR frame with the time in milliseconds to back off as its id. While the client should be backing off, further
+     * requests are rejected silently, so a flooding client does not cause a flood of errors instead.
+     *
+     * @param deliveries number of frames the request causes to be sent
+     * @return true if the request is to be processed, false if it is to be dropped
+     */
+    private boolean admit(int deliveries) {
+        long waitNanos = admission.admit(rateLimit, deliveries);
+        if (waitNanos == 0) return true;
+        metrics.requestRejected();
+        long now = System.nanoTime();
+        if (now - backoffUntil >= 0) {
+            backoffUntil = now + waitNanos;
+            long waitMillis = Math.max(TimeUnit.NANOSECONDS.toMillis(waitNanos + 999_999), 1);
+            sendFrame(new SharedFrame<>(new DataFrame(USER_NONE, userName, ERROR,
+                "Rate limit exceeded, retry in " + waitMillis + " ms", null, waitMillis)));
+        }
+        return false;
+    }
+
     /**
      * Sends the message to the receiver stored in the registry.
      * If receiver is USER_ALL then it iterates over the registry
-     * and sends each client the message.
+     * and sends each client the message. The frame is created (and encoded) once
+     * and shared by all recipients. Delivered messages are stored in the history.
+     * Messages for users of other nodes of the cluster are forwarded to them.
+     * Messages exceeding the rate limits are dropped. Messages with a request id are acknowledged.
      *
      * @param sender that sent the message
      * @param receiver that will receive the message
@@ -91,22 +401,172 @@ public class ServerConnectionHandler extends ConnectionHandler {
     protected void getMessage(String sender, String receiver, DataType type, String payload) throws ChatProtocolException {
         sender = userName;
         if (state != CONNECTED) throw new ChatProtocolException("Illegal state for message request: " + state);
+        if (isResent() || !admit(USER_ALL.equals(receiver) ? connectionRegistry.size() : 2)) return;
         if (USER_ALL.equals(receiver)) {
-            for (ServerConnectionHandler handler : connectionRegistry.values()) {
-
-                handler.sendData(sender, receiver, type, payload);
+            DataFrame data = history.append(new DataFrame(sender, receiver, type, payload));
+            SharedFrame<DataFrame> frame = new SharedFrame<>(data);
+            int recipients = 0;
+            for (ServerConnectionHandler handler : connectionRegistry.handlers()) {
+                handler.sendFrame(frame);
+                recipients++;
             }
+            metrics.fanOut(recipients);
+            if (cluster != null) cluster.forward(data);
+            delivered();
+            acknowledge(null);
         } else {
             ServerConnectionHandler handler = connectionRegistry.get(receiver);
             if (handler != null) {
-                handler.sendData(sender, receiver, type, payload);
-                this.sendData(sender, receiver, type, payload);
+                SharedFrame<DataFrame> frame =
+                    new SharedFrame<>(history.append(new DataFrame(sender, receiver, type, payload)));
+                handler.sendFrame(frame);
+                this.sendFrame(frame);
+                delivered();
+                acknowledge(null);
+            } else if (cluster != null && cluster.isRemoteUser(receiver)) {
+                DataFrame data = history.append(new DataFrame(sender, receiver, type, payload));
+                cluster.forwardToReceiver(data);
+                this.sendFrame(new SharedFrame<>(data));
+                delivered();
+                acknowledge(null);
             } else {
-                this.sendData(USER_NONE, userName, ERROR, "Unknown User: " + receiver);
+                reject("Unknown User: " + receiver);
             }
         }
     }
 
+    /**
+     * Sends the message to all members of the room. Only members may write to a room.
+     * The frame is created (and encoded) once and shared by all members. Messages exceeding the rate limits are
+     * dropped. Messages with a request id are acknowledged.
+     *
+     * @param sender that sent the message
+     * @param room the message belongs to
+     * @param payload of the message
+     * @throws ChatProtocolException if the user is not connected or not a member of the room
+     */
+    @Override
+    protected void getRoomMessage(String sender, String room, String payload) throws ChatProtocolException {
+        if (state != CONNECTED) throw new ChatProtocolException("Illegal state for message request: " + state);
+        if (!rooms.contains(room)) throw new ChatProtocolException("Not a member of room: " + ROOM_PREFIX + room);
+        if (isResent() || !admit(roomRegistry.members(room).size())) return;
+        sendToRoom(room, history.append(new DataFrame(userName, USER_ALL, MESSAGE, payload, room)));
+        delivered();
+        acknowledge(null);
+    }
+
+    /**
+     * Sends a page of the history: the messages of the room, or the broadcasts and private messages of the user,
+     * followed by a HISTORY frame with the id of the last sent message and whether more messages are available.
+     * Requests exceeding the rate limits are dropped.
+     *
+     * @param room of the history, null for the history of the user
+     * @param sinceId only messages with a greater id are sent
+     * @param payload the maximum number of messages to send, at most {@link #MAX_HISTORY_PAGE}
+     * @throws ChatProtocolException if the user is not connected, not a member of the room or the limit is invalid
+     */
+    @Override
+    protected void getHistoryMessage(String room, long sinceId, String payload) throws ChatProtocolException {
+        if (state != CONNECTED) throw new ChatProtocolException("Illegal state for history request: " + state);
+        int limit;
+        try {
+            limit = payload == null ? MAX_HISTORY_PAGE : Integer.parseInt(payload.strip());
+        } catch (NumberFormatException e) {
+            throw new ChatProtocolException("Invalid history page size: " + payload);
+        }
+        if (limit < 1) throw new ChatProtocolException("Invalid history page size: " + payload);
+        limit = Math.min(limit, MAX_HISTORY_PAGE);
+        if (room != null && !rooms.contains(room)) {
+            throw new ChatProtocolException("Not a member of room: " + ROOM_PREFIX + room);
+        }
+        if (!admit(limit + 1)) return;
+        HistoryStore.Page page;
+        if (room != null) {
+            page = history.roomHistory(room, sinceId, limit);
+        } else {
+            page = history.userHistory(userName, sinceId, limit);
+        }
+        long lastId = sinceId;
+        for (DataFrame frame : page.frames()) {
+            sendFrame(new SharedFrame<>(frame));
+            lastId = frame.getId();
+        }
+        sendFrame(new SharedFrame<>(new DataFrame(USER_NONE, userName, HISTORY,
+            page.more() ? HISTORY_MORE : HISTORY_END, room, lastId)));
+    }
+
+    /**
+     * Adds the user to the room and informs all members, including the user, about the join.
+     * Requests exceeding the rate limits are dropped.
+     *
+     * @param sender the user joining the room
+     * @param room to join
+     * @throws ChatProtocolException if the user is not connected, the room name is invalid or already joined
+     */
+    @Override
+    protected void getJoinMessage(String sender, String room) throws ChatProtocolException {
+        if (state != CONNECTED) throw new ChatProtocolException("Illegal state for join request: " + state);
+        if (room == null || room.isBlank() || room.chars().anyMatch(Character::isWhitespace)) {
+            throw new ChatProtocolException("Invalid room name: " + room);
+        }
+        if (rooms.contains(room)) throw new ChatProtocolException("Already a member of room: " + ROOM_PREFIX + room);
+        if (!admit(roomRegistry.members(room).size() + 1)) return;
+        rooms.add(room);
+        roomRegistry.join(room, this);
+        sendToRoom(room, new DataFrame(userName, USER_ALL, JOIN, null, room));
+    }
+
+    /**
+     * Removes the user from the room and informs the user and the remaining members about it.
+     * Requests exceeding the rate limits are dropped.
+     *
+     * @param sender the user leaving the room
+     * @param room to leave
+     * @throws ChatProtocolException if the user is not connected or not a member of the room
+     */
+    @Override
+    protected void getLeaveMessage(String sender, String room) throws ChatProtocolException {
+        if (state != CONNECTED) throw new ChatProtocolException("Illegal state for leave request: " + state);
+        if (!rooms.contains(room)) throw new ChatProtocolException("Not a member of room: " + ROOM_PREFIX + room);
+        if (!admit(roomRegistry.members(room).size())) return;
+        sendToRoom(room, new DataFrame(userName, USER_ALL, LEAVE, null, room));
+        leaveRoom(room, false);
+    }
+
+    /**
+     * Removes the user from all joined rooms and informs the remaining members.
+     */
+    private void leaveAllRooms() {
+        for (String room : rooms) {
+            leaveRoom(room, true);
+        }
+    }
+
+    private void leaveRoom(String room, boolean notify) {
+        if (rooms.remove(room)) {
+            roomRegistry.leave(room, this);
+            if (notify) sendToRoom(room, new DataFrame(userName, USER_ALL, LEAVE, null, room));
+        }
+    }
+
+    /**
+     * Sends the frame to all current members of the room, encoding it only once, and forwards it to the other
+     * nodes of the cluster for their members.
+     *
+     * @param room to send to
+     * @param data frame to send
+     */
+    private void sendToRoom(String room, DataFrame data) {
+        SharedFrame<DataFrame> frame = new SharedFrame<>(data);
+        int recipients = 0;
+        for (ServerConnectionHandler member : roomRegistry.members(room)) {
+            member.sendFrame(frame);
+            recipients++;
+        }
+        metrics.fanOut(recipients);
+        if (cluster != null) cluster.forward(data);
+    }
+
     /**
      * Server is not expecting confirmations.
      * Prints to terminal if any are coming in.
@@ -115,7 +575,7 @@ public class ServerConnectionHandler extends ConnectionHandler {
      */
     @Override
     protected void getConfirmMessage(String message) {
-        System.out.println("Not expecting to receive a CONFIRM request from client");
+        logger.warn("Not expecting to receive a CONFIRM request from client");
     }
 
     /**
@@ -130,12 +590,58 @@ public class ServerConnectionHandler extends ConnectionHandler {
     protected void getConnectMessage(String sender) throws ChatProtocolException {
         if (this.state != NEW) throw new ChatProtocolException("Illegal state for connect request: " + state);
         if (sender == null || sender.isBlank()) sender = this.userName;
-        if (connectionRegistry.containsKey(sender)) {
+        if (sessions.isReserved(sender) || !registerUserName(sender)) {
             throw new ChatProtocolException("User name already taken: " + sender);
         }
         this.userName = sender;
-        connectionRegistry.put(userName, this);
         sendData(USER_NONE, userName, CONFIRM, "Registration successful for " + userName);
+        if (sessions.isEnabled()) {
+            session = sessions.open(userName, this, recentRequests);
+            sendData(USER_NONE, userName, RESUME, session.getToken());
+        }
         this.state = CONNECTED;
     }
+
+    /**
+     * If a client resumes its session after its connection was lost, the user name is registered for this
+     * connection and the user joins the rooms again. The client is sent a new resume token. The client is expected
+     * to request the messages it missed from the history.
+     *
+     * @param sender the user resuming the session
+     * @param token the resume token of the session
+     * @throws ChatProtocolException if the state is not NEW or the token is invalid
+     */
+    @Override
+    protected void getResumeMessage(String sender, String token) throws ChatProtocolException {
+        if (this.state != NEW) throw new ChatProtocolException("Illegal state for resume request: " + state);
+        SessionRegistry.Resumed resumed = sessions.resume(token, sender, this);
+        if (resumed == null) throw new ChatProtocolException("Session of " + sender + " can not be resumed");
+        ServerConnectionHandler previousHandler = resumed.previousHandler();
+        Set<String> previousRooms = resumed.session().getRooms();
+        if (previousHandler != null) {
+            // the server did not notice yet that the previous connection was lost
+            previousRooms = Set.copyOf(previousHandler.rooms);
+            for (String room : previousRooms) {
+                previousHandler.leaveRoom(room, false);
+            }
+            previousHandler.abortConnection();
+            connectionRegistry.unregister(sender, previousHandler);
+        }
+        if (!registerUserName(sender)) {
+            sessions.close(resumed.session());
+            throw new ChatProtocolException("User name already taken: " + sender);
+        }
+        this.userName = sender;
+        this.session = resumed.session();
+        this.recentRequests = session.getRecentRequests();
+        sendData(USER_NONE, userName, CONFIRM, "Session resumed for " + userName);
+        sendData(USER_NONE, userName, RESUME, session.getToken());
+        this.state = CONNECTED;
+        for (String room : previousRooms) {
+            if (rooms.add(room)) {
+                roomRegistry.join(room, this);
+                sendToRoom(room, new DataFrame(userName, USER_ALL, JOIN, null, room));
+            }
+        }
+    }
 }
@@ -0,0 +1,95 @@
+package ch.zhaw.pm2.multichat.server;
+
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Holds the state and services of a server, which are shared by all its {@link ServerConnectionHandler}s.
+ */
+public class ServerContext {
+    private final ServerConfig config;
+    private final ConnectionRegistry registry;
+    private final RoomRegistry rooms;
+    private final HistoryStore history;
+    private final SessionRegistry sessions;
+    private final ClusterNode cluster;
+    private final AdmissionController admission;
+    private final ServerMetrics metrics;
+    private final ExecutorService writerService;
+    private final boolean nonBlockingConnections;
+
+    /**
+     * Constructor
+     *
+     * @param config of the server
+     * @param registry of the connected users
+     * @param rooms index of the chat rooms and their members
+     * @param history store of the messages
+     * @param sessions of the users, to resume them after a lost connection
+     * @param cluster the server is a node of, null if the server runs stand-alone
+     * @param admission controller limiting the rate of the requests
+     * @param metrics instrumentation of the server
+     * @param writerService executor running the writer tasks of the outbound queues
+     * @param nonBlockingConnections true if sending on the connections never blocks (NIO), in this case the
+     *                               frames are passed to the connection directly instead of an outbound queue
+     */
+    public ServerContext(ServerConfig config, ConnectionRegistry registry, RoomRegistry rooms,
+                         HistoryStore history, SessionRegistry sessions, ClusterNode cluster,
+                         AdmissionController admission, ServerMetrics metrics, ExecutorService writerService, boolean nonBlockingConnections) {
+        this.config = Objects.requireNonNull(config, "Config must not be null");
+        this.registry = Objects.requireNonNull(registry, "Registry must not be null");
+        this.rooms = Objects.requireNonNull(rooms, "Rooms must not be null");
+        this.history = Objects.requireNonNull(history, "History must not be null");
+        this.sessions = Objects.requireNonNull(sessions, "Sessions must not be null");
+        this.cluster = cluster;
+        this.admission = Objects.requireNonNull(admission, "Admission controller must not be null");
+        this.metrics = Objects.requireNonNull(metrics, "Metrics must not be null");
+        this.writerService = Objects.requireNonNull(writerService, "Writer service must not be null");
+        this.nonBlockingConnections = nonBlockingConnections;
+    }
+
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    public ConnectionRegistry getRegistry() {
+        return registry;
+    }
+
+    public RoomRegistry getRooms() {
+        return rooms;
+    }
+
+    public HistoryStore getHistory() {
+        return history;
+    }
+
+    public SessionRegistry getSessions() {
+        return sessions;
+    }
+
+    /**
+     * Returns the cluster the server is a node of.
+     *
+     * @return the cluster node, null if the server runs stand-alone
+     */
+    public ClusterNode getCluster() {
+        return cluster;
+    }
+
+    public AdmissionController getAdmission() {
+        return admission;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public ExecutorService getWriterService() {
+        return writerService;
+    }
+
+    public boolean hasNonBlockingConnections() {
+        return nonBlockingConnections;
+    }
+}
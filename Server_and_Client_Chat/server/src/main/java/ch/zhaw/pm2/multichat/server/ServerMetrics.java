@@ -0,0 +1,366 @@
+package ch.zhaw.pm2.multichat.server;
+
+import ch.zhaw.pm2.multichat.protocol.AsyncLogger;
+import ch.zhaw.pm2.multichat.protocol.ConnectionHandler.DataType;
+import ch.zhaw.pm2.multichat.protocol.DataFrame;
+import ch.zhaw.pm2.multichat.protocol.Histogram;
+import ch.zhaw.pm2.multichat.protocol.SharedFrame;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Instrumentation of the server: connections, frames and bytes received and sent, fan-out of broadcasts,
+ * rate limited requests, outbound queue depths, the history log queue, send latencies and the threads and heap of
+ * the JVM.
+ * <p>The handlers only update counters on their hot paths: {@link LongAdder}s, which are striped per thread under
+ * contention, and lock-free {@link Histogram}s. Gauges like the bytes transferred or the queue depths are not
+ * updated at all, they are read from the connections when the metrics are queried. The metrics are published via
+ * JMX and optionally written to the log periodically.</p>
+ * <p>The send latency is the time from creating a frame until it has been written to the connection, i.e. it
+ * includes the time spent in the outbound queue. Non-blocking connections write into the buffer of the I/O thread,
+ * so for them it only covers the handling on the server.</p>
+ */
+public class ServerMetrics implements ServerMetricsMXBean, Closeable {
+    private static final AsyncLogger logger = AsyncLogger.getLogger(ServerMetrics.class);
+    private static final DataType[] TYPES = DataType.values();
+
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final LongAdder[] framesReceived = newCounters();
+    private final LongAdder[] framesSent = newCounters();
+    // totals of the closed connections, the totals of the open ones are read when queried
+    private final LongAdder closedBytesReceived = new LongAdder();
+    private final LongAdder closedBytesSent = new LongAdder();
+    private final LongAdder closedDroppedFrames = new LongAdder();
+    private final LongAdder rejectedRequests = new LongAdder();
+    private final Set<ServerConnectionHandler> connections = ConcurrentHashMap.newKeySet();
+    private final Histogram fanOut = new Histogram();
+    private final Histogram sendLatency = new Histogram();
+    private volatile HistoryLog historyLog;
+    private ScheduledExecutorService dumpService;
+    private ObjectName objectName;
+
+    private static LongAdder[] newCounters() {
+        LongAdder[] counters = new LongAdder[TYPES.length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+
+    /**
+     * Publishes the metrics via JMX, named {@code ch.zhaw.pm2.multichat:type=ServerMetrics,name=<name>}.
+     *
+     * @param name of the server, e.g. its port
+     */
+    public void registerMBean(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName candidate = new ObjectName("ch.zhaw.pm2.multichat:type=ServerMetrics,name=" + name);
+            server.registerMBean(this, candidate);
+            objectName = candidate;
+        } catch (JMException e) {
+            logger.warn("Failed to register metrics MBean: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the metrics to the log periodically.
+     *
+     * @param interval between two dumps
+     */
+    public void startDump(Duration interval) {
+        dumpService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumpService.scheduleAtFixedRate(() -> logger.info("Metrics{}{}", System.lineSeparator(), getSummary()),
+            interval.toNanos(), interval.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops the periodic dump and removes the metrics from JMX.
+     */
+    @Override
+    public void close() {
+        if (dumpService != null) dumpService.shutdownNow();
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                logger.warn("Failed to unregister metrics MBean: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reports the queue of the history log.
+     *
+     * @param log of the history, null if the history is not persisted
+     */
+    void monitor(HistoryLog log) {
+        this.historyLog = log;
+    }
+
+    /**
+     * Records a new connection.
+     *
+     * @param handler serving the connection
+     */
+    void connectionOpened(ServerConnectionHandler handler) {
+        acceptedConnections.increment();
+        connections.add(handler);
+    }
+
+    /**
+     * Records the end of a connection, keeping its totals.
+     *
+     * @param handler serving the connection
+     */
+    void connectionClosed(ServerConnectionHandler handler) {
+        if (!connections.remove(handler)) return;
+        closedBytesReceived.add(handler.getBytesReceived());
+        closedBytesSent.add(handler.getBytesSent());
+        OutboundQueue queue = handler.getOutboundQueue();
+        if (queue != null) closedDroppedFrames.add(queue.getDroppedFrames());
+    }
+
+    /**
+     * Records a received frame.
+     *
+     * @param type of the frame
+     */
+    void frameReceived(DataType type) {
+        framesReceived[type.ordinal()].increment();
+    }
+
+    /**
+     * Records a frame written to a connection and the time it took since it has been created.
+     *
+     * @param frame the written frame
+     */
+    void frameSent(SharedFrame<DataFrame> frame) {
+        framesSent[frame.getData().getType().ordinal()].increment();
+        sendLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - frame.getCreatedNanos()));
+    }
+
+    /**
+     * Records the number of recipients of a broadcast or room message.
+     *
+     * @param recipients number of connections the frame has been passed to
+     */
+    void fanOut(int recipients) {
+        fanOut.record(recipients);
+    }
+
+    /**
+     * Records a request rejected by the {@link AdmissionController}.
+     */
+    void requestRejected() {
+        rejectedRequests.increment();
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return connections.size();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    @Override
+    public Map<String, Long> getFramesReceived() {
+        return toMap(framesReceived);
+    }
+
+    @Override
+    public Map<String, Long> getFramesSent() {
+        return toMap(framesSent);
+    }
+
+    @Override
+    public long getBytesReceived() {
+        long total = closedBytesReceived.sum();
+        for (ServerConnectionHandler handler : connections) {
+            total += handler.getBytesReceived();
+        }
+        return total;
+    }
+
+    @Override
+    public long getBytesSent() {
+        long total = closedBytesSent.sum();
+        for (ServerConnectionHandler handler : connections) {
+            total += handler.getBytesSent();
+        }
+        return total;
+    }
+
+    @Override
+    public double getFanOutMean() {
+        return fanOut.getMean();
+    }
+
+    @Override
+    public long getFanOutMax() {
+        return fanOut.getMax();
+    }
+
+    /**
+     * Returns the number of frames waiting in the outbound queues of all connections.
+     *
+     * @return number of queued frames, 0 for non-blocking connections which have no outbound queue
+     */
+    @Override
+    public long getOutboundQueueDepth() {
+        long total = 0;
+        for (ServerConnectionHandler handler : connections) {
+            OutboundQueue queue = handler.getOutboundQueue();
+            if (queue != null) total += queue.getDepth();
+        }
+        return total;
+    }
+
+    /**
+     * Returns the largest depth any open outbound queue reached.
+     *
+     * @return high watermark of the outbound queues
+     */
+    @Override
+    public long getOutboundQueueMaxDepth() {
+        long max = 0;
+        for (ServerConnectionHandler handler : connections) {
+            OutboundQueue queue = handler.getOutboundQueue();
+            if (queue != null) max = Math.max(max, queue.getHighWatermark());
+        }
+        return max;
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        long total = closedDroppedFrames.sum();
+        for (ServerConnectionHandler handler : connections) {
+            OutboundQueue queue = handler.getOutboundQueue();
+            if (queue != null) total += queue.getDroppedFrames();
+        }
+        return total;
+    }
+
+    @Override
+    public long getRejectedRequests() {
+        return rejectedRequests.sum();
+    }
+
+    @Override
+    public long getHistoryLogQueueDepth() {
+        HistoryLog log = historyLog;
+        return log == null ? 0 : log.getQueueDepth();
+    }
+
+    @Override
+    public long getHistoryLogDroppedFrames() {
+        HistoryLog log = historyLog;
+        return log == null ? 0 : log.getDroppedFrames();
+    }
+
+    /**
+     * Returns the number of live platform threads. Virtual threads are not counted, only their carrier threads.
+     *
+     * @return number of live platform threads
+     */
+    @Override
+    public int getThreadCount() {
+        return ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+
+    @Override
+    public int getPeakThreadCount() {
+        return ManagementFactory.getThreadMXBean().getPeakThreadCount();
+    }
+
+    @Override
+    public long getHeapUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    @Override
+    public long getSendLatencyCount() {
+        return sendLatency.getCount();
+    }
+
+    @Override
+    public long getSendLatencyP50() {
+        return sendLatency.getPercentile(50);
+    }
+
+    @Override
+    public long getSendLatencyP99() {
+        return sendLatency.getPercentile(99);
+    }
+
+    @Override
+    public long getSendLatencyP999() {
+        return sendLatency.getPercentile(99.9);
+    }
+
+    @Override
+    public long getSendLatencyMax() {
+        return sendLatency.getMax();
+    }
+
+    @Override
+    public String getSummary() {
+        String newLine = System.lineSeparator();
+        return "  connections: active=" + getActiveConnections() + " accepted=" + getAcceptedConnections() + newLine
+            + "  frames received: " + format(framesReceived) + newLine
+            + "  frames sent: " + format(framesSent) + newLine
+            + "  bytes: received=" + getBytesReceived() + " sent=" + getBytesSent() + newLine
+            + String.format("  fan-out: mean=%.1f max=%d", getFanOutMean(), getFanOutMax()) + newLine
+            + "  outbound queues: depth=" + getOutboundQueueDepth() + " max=" + getOutboundQueueMaxDepth()
+            + " dropped=" + getDroppedFrames() + newLine
+            + "  rate limited requests: " + getRejectedRequests() + newLine
+            + "  history log: queued=" + getHistoryLogQueueDepth() + " dropped=" + getHistoryLogDroppedFrames() + newLine
+            + "  jvm: threads=" + getThreadCount() + " peak=" + getPeakThreadCount()
+            + " heap=" + getHeapUsed() / (1024 * 1024) + "MiB" + newLine
+            + "  send latency (us): count=" + getSendLatencyCount() + " p50=" + getSendLatencyP50()
+            + " p99=" + getSendLatencyP99() + " p99.9=" + getSendLatencyP999() + " max=" + getSendLatencyMax();
+    }
+
+    private static Map<String, Long> toMap(LongAdder[] counters) {
+        Map<String, Long> map = new LinkedHashMap<>();
+        for (DataType type : TYPES) {
+            map.put(type.name(), counters[type.ordinal()].sum());
+        }
+        return map;
+    }
+
+    /**
+     * Formats the counters which are not 0 and their total.
+     */
+    private static String format(LongAdder[] counters) {
+        StringBuilder text = new StringBuilder();
+        long total = 0;
+        for (DataType type : TYPES) {
+            long value = counters[type.ordinal()].sum();
+            if (value == 0) continue;
+            text.append(type).append('=').append(value).append(' ');
+            total += value;
+        }
+        return text.append("total=").append(total).toString();
+    }
+}
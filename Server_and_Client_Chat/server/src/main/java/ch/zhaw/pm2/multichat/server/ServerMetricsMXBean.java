@@ -0,0 +1,60 @@
+package ch.zhaw.pm2.multichat.server;
+
+import java.util.Map;
+
+/**
+ * Management interface of the {@link ServerMetrics}, published via JMX (e.g. to be watched with JConsole).
+ * Latencies are in microseconds.
+ */
+public interface ServerMetricsMXBean {
+    int getActiveConnections();
+
+    long getAcceptedConnections();
+
+    Map<String, Long> getFramesReceived();
+
+    Map<String, Long> getFramesSent();
+
+    long getBytesReceived();
+
+    long getBytesSent();
+
+    double getFanOutMean();
+
+    long getFanOutMax();
+
+    long getOutboundQueueDepth();
+
+    long getOutboundQueueMaxDepth();
+
+    long getDroppedFrames();
+
+    long getRejectedRequests();
+
+    long getHistoryLogQueueDepth();
+
+    long getHistoryLogDroppedFrames();
+
+    int getThreadCount();
+
+    int getPeakThreadCount();
+
+    long getHeapUsed();
+
+    long getSendLatencyCount();
+
+    long getSendLatencyP50();
+
+    long getSendLatencyP99();
+
+    long getSendLatencyP999();
+
+    long getSendLatencyMax();
+
+    /**
+     * Returns all metrics as plain text, as written by the periodic dump.
+     *
+     * @return the metrics
+     */
+    String getSummary();
+}
@@ -0,0 +1,245 @@
+package ch.zhaw.pm2.multichat.server;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Sessions of the connected users, allowing a client to resume its session after the connection was lost.
+ * <p>Every user confirmed by the server gets a session with a random resume token. If the connection is lost without
+ * a disconnect request, the session is detached: the user name stays reserved and the joined rooms are remembered
+ * for the resume timeout. A client presenting the token within this time gets its user name and rooms back and a
+ * new token, as each token can only be used once. Sessions are closed by a disconnect request or when they expire.</p>
+ * <p>A session also remembers the request ids of the recently delivered messages of the user, so messages the client
+ * sends again after resuming, because their acknowledgement was lost with the connection, are not delivered twice.</p>
+ */
+public class SessionRegistry {
+    private static final int TOKEN_BYTES = 16;
+    /**
+     * Number of request ids of delivered messages remembered per session.
+     */
+    private static final int RECENT_REQUESTS = 1024;
+
+    private final SecureRandom random = new SecureRandom();
+    private final long timeoutNanos;
+    private final ConcurrentHashMap<String, Session> sessionsByToken = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Session> sessionsByUser = new ConcurrentHashMap<>();
+    // detached sessions in the order they expire, as the timeout is the same for all of them
+    private final Queue<Session> detached = new ConcurrentLinkedQueue<>();
+
+    /**
+     * A session of a user.
+     */
+    public static class Session {
+        private final String userName;
+        private final String token;
+        private final Set<Long> recentRequests;
+        private volatile ServerConnectionHandler handler;
+        private volatile Set<String> rooms = Set.of();
+        private volatile long expiresNanos;
+
+        private Session(String userName, String token, ServerConnectionHandler handler, Set<Long> recentRequests) {
+            this.userName = userName;
+            this.token = token;
+            this.handler = handler;
+            this.recentRequests = recentRequests;
+        }
+
+        public String getUserName() {
+            return userName;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        /**
+         * Returns the rooms the user was member of when the session was detached.
+         *
+         * @return the rooms
+         */
+        public Set<String> getRooms() {
+            return rooms;
+        }
+
+        /**
+         * Returns the request ids of the recently delivered messages, kept when the session is resumed.
+         *
+         * @return the thread-safe set of the request ids
+         */
+        public Set<Long> getRecentRequests() {
+            return recentRequests;
+        }
+
+        private boolean isExpired(long now) {
+            return handler == null && now - expiresNanos >= 0;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param timeout time a detached session can be resumed, zero to disable resuming
+     */
+    public SessionRegistry(Duration timeout) {
+        this.timeoutNanos = timeout.toNanos();
+    }
+
+    /**
+     * Creates an empty set of the request ids of recently delivered messages, forgetting the oldest ids if it is full.
+     *
+     * @return the thread-safe set
+     */
+    public static Set<Long> newRecentRequests() {
+        return Collections.synchronizedSet(Collections.newSetFromMap(new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                return size() > RECENT_REQUESTS;
+            }
+        }));
+    }
+
+    /**
+     * Indicates if sessions can be resumed.
+     *
+     * @return true if a resume token is issued to the users
+     */
+    public boolean isEnabled() {
+        return timeoutNanos > 0;
+    }
+
+    /**
+     * Opens a session for a user who just connected.
+     *
+     * @param userName of the user
+     * @param handler serving the user
+     * @param recentRequests request ids of the messages delivered for the user so far
+     * @return the session
+     */
+    public Session open(String userName, ServerConnectionHandler handler, Set<Long> recentRequests) {
+        Session session = new Session(userName, newToken(), handler, recentRequests);
+        Session previous = sessionsByUser.put(userName, session);
+        if (previous != null) sessionsByToken.remove(previous.token, previous);
+        sessionsByToken.put(session.token, session);
+        return session;
+    }
+
+    /**
+     * Indicates if the user name is reserved by a detached session which has not expired yet.
+     *
+     * @param userName to check
+     * @return true if the name may only be used by resuming the session
+     */
+    public boolean isReserved(String userName) {
+        Session session = sessionsByUser.get(userName);
+        if (session == null || session.handler != null) return false;
+        if (session.isExpired(System.nanoTime())) {
+            remove(session);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Indicates if the user has a session, either connected or detached and not expired yet.
+     *
+     * @param userName to check
+     * @return true if the user has a session
+     */
+    public boolean hasSession(String userName) {
+        Session session = sessionsByUser.get(userName);
+        return session != null && !session.isExpired(System.nanoTime());
+    }
+
+    /**
+     * Resumes the session of the token for the new handler. The token is used up, the resumed session has a new one.
+     * The previous handler of the session is returned as well, as it may still be connected if the server did not
+     * notice yet that its connection was lost.
+     *
+     * @param token presented by the client
+     * @param userName presented by the client
+     * @param handler serving the user from now on
+     * @return the new session, null if the token is unknown, expired or does not belong to the user
+     */
+    public Resumed resume(String token, String userName, ServerConnectionHandler handler) {
+        if (token == null) return null;
+        Session session = sessionsByToken.remove(token);
+        if (session == null) return null;
+        if (!session.userName.equals(userName) || session.isExpired(System.nanoTime())) {
+            remove(session);
+            return null;
+        }
+        ServerConnectionHandler previousHandler = session.handler;
+        Session resumed = new Session(userName, newToken(), handler, session.recentRequests);
+        resumed.rooms = session.rooms;
+        if (!sessionsByUser.replace(userName, session, resumed)) return null;
+        sessionsByToken.put(resumed.token, resumed);
+        return new Resumed(resumed, previousHandler);
+    }
+
+    /**
+     * Result of resuming a session.
+     *
+     * @param session the resumed session with its new token
+     * @param previousHandler which served the session before, null if its connection had already ended
+     */
+    public record Resumed(Session session, ServerConnectionHandler previousHandler) {}
+
+    /**
+     * Detaches the session from its handler after the connection was lost, so it can be resumed until it expires.
+     * Nothing happens if the session has been resumed by another handler meanwhile. The sessions which have expired
+     * since the last detach are removed, so their names and tokens are released even if nobody uses them again.
+     *
+     * @param session to detach
+     * @param handler whose connection was lost
+     * @param rooms the user was member of
+     */
+    public void detach(Session session, ServerConnectionHandler handler, Set<String> rooms) {
+        if (session.handler != handler) return;
+        long now = System.nanoTime();
+        session.rooms = Set.copyOf(rooms);
+        session.expiresNanos = now + timeoutNanos;
+        session.handler = null;
+        detached.add(session);
+        removeExpired(now);
+    }
+
+    /**
+     * Removes the expired sessions from the head of the queue of detached sessions. Sessions resumed meanwhile have
+     * been replaced by a new session, removing the old one does not affect them.
+     */
+    private void removeExpired(long now) {
+        Session head;
+        while ((head = detached.peek()) != null && head.isExpired(now)) {
+            // another thread may have taken the head meanwhile
+            if (detached.remove(head)) remove(head);
+        }
+    }
+
+    /**
+     * Closes the session after a disconnect request, releasing the user name.
+     *
+     * @param session to close
+     */
+    public void close(Session session) {
+        remove(session);
+    }
+
+    private void remove(Session session) {
+        sessionsByToken.remove(session.token, session);
+        sessionsByUser.remove(session.userName, session);
+    }
+
+    private String newToken() {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+}
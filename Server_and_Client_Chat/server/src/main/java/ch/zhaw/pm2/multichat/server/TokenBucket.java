@@ -0,0 +1,75 @@
+package ch.zhaw.pm2.multichat.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Thread-safe token bucket limiting the rate of events, e.g. the messages of a user.
+ * <p>The bucket holds up to {@code burst} tokens and is refilled at a constant rate; an event is admitted if the
+ * bucket holds enough tokens for it. Instead of a token count the bucket keeps the time at which it would be full
+ * again (the virtual scheduling form of the algorithm), so taking tokens is a single compare-and-set without a
+ * refill task or lock.</p>
+ */
+public class TokenBucket {
+    private final long nanosPerToken;
+    private final long capacityNanos;
+    private final LongSupplier clock;
+    // time at which the bucket is full again, in nanoseconds as returned by the clock
+    private final AtomicLong fullAt;
+
+    /**
+     * Constructor. The bucket starts full.
+     *
+     * @param tokensPerSecond refill rate
+     * @param burst maximum number of tokens held, i.e. events admitted at once after a pause
+     */
+    public TokenBucket(long tokensPerSecond, long burst) {
+        this(tokensPerSecond, burst, System::nanoTime);
+    }
+
+    /**
+     * Constructor with the clock to read the time from, e.g. a fake one in tests. The bucket starts full.
+     *
+     * @param tokensPerSecond refill rate
+     * @param burst maximum number of tokens held
+     * @param clock returning the time in nanoseconds, like {@link System#nanoTime()}
+     */
+    TokenBucket(long tokensPerSecond, long burst, LongSupplier clock) {
+        if (tokensPerSecond < 1) throw new IllegalArgumentException("Rate must be positive: " + tokensPerSecond);
+        if (burst < 1) throw new IllegalArgumentException("Burst must be positive: " + burst);
+        this.nanosPerToken = Math.max(1_000_000_000L / tokensPerSecond, 1);
+        this.capacityNanos = nanosPerToken * burst;
+        this.clock = clock;
+        this.fullAt = new AtomicLong(clock.getAsLong());
+    }
+
+    /**
+     * Takes the tokens, if the bucket holds enough of them. An event costing more than the burst only needs a full
+     * bucket, so it is delayed but not rejected forever.
+     *
+     * @param tokens to take
+     * @return 0 if the tokens have been taken, otherwise the time in nanoseconds until the bucket holds enough
+     */
+    public long tryAcquire(long tokens) {
+        long costNanos = Math.min(tokens * nanosPerToken, capacityNanos);
+        while (true) {
+            long now = clock.getAsLong();
+            long current = fullAt.get();
+            long start = current - now < 0 ? now : current;
+            long next = start + costNanos;
+            long waitNanos = next - now - capacityNanos;
+            if (waitNanos > 0) return waitNanos;
+            if (fullAt.compareAndSet(current, next)) return 0;
+        }
+    }
+
+    /**
+     * Puts back tokens taken by {@link #tryAcquire(long)}, e.g. if the event has been rejected by another limit.
+     *
+     * @param tokens to put back, as many as taken
+     */
+    public void release(long tokens) {
+        // a time before now means a full bucket, so the bucket can not overflow
+        fullAt.addAndGet(-Math.min(tokens * nanosPerToken, capacityNanos));
+    }
+}
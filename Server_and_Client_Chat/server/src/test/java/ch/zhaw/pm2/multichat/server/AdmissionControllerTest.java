@@ -0,0 +1,99 @@
+package ch.zhaw.pm2.multichat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Tests of the {@link AdmissionController}, driven by a fake clock: the limit per connection, the global limit of
+ * deliveries and the order they are checked in.
+ */
+class AdmissionControllerTest {
+    private final TokenBucketTest.FakeClock clock = new TokenBucketTest.FakeClock(0);
+
+    @Test
+    void connectionIsLimitedToRateAndBurst() {
+        AdmissionController admission = newController(2, 3, 0);
+        TokenBucket connection = admission.newConnectionLimit();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, admission.admit(connection, 1));
+        }
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), admission.admit(connection, 1));
+        clock.advance(TimeUnit.MILLISECONDS.toNanos(500));
+        assertEquals(0, admission.admit(connection, 1));
+    }
+
+    @Test
+    void connectionsAreLimitedIndependently() {
+        AdmissionController admission = newController(1, 1, 0);
+        TokenBucket first = admission.newConnectionLimit();
+        TokenBucket second = admission.newConnectionLimit();
+        assertEquals(0, admission.admit(first, 1));
+        assertEquals(TimeUnit.SECONDS.toNanos(1), admission.admit(first, 1));
+        assertEquals(0, admission.admit(second, 1));
+    }
+
+    @Test
+    void broadcastCostsOneDeliveryPerReceiver() {
+        AdmissionController admission = newController(0, 1, 10);
+        assertEquals(0, admission.admit(null, 10));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), admission.admit(null, 1));
+        clock.advance(TimeUnit.MILLISECONDS.toNanos(300));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(200), admission.admit(null, 5));
+        assertEquals(0, admission.admit(null, 3));
+    }
+
+    @Test
+    void requestWithoutDeliveriesCostsOne() {
+        AdmissionController admission = newController(0, 1, 2);
+        assertEquals(0, admission.admit(null, 0));
+        assertEquals(0, admission.admit(null, 0));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), admission.admit(null, 0));
+    }
+
+    @Test
+    void rejectedConnectionDoesNotUseGlobalLimit() {
+        AdmissionController admission = newController(1, 1, 2);
+        TokenBucket flooding = admission.newConnectionLimit();
+        assertEquals(0, admission.admit(flooding, 1));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(TimeUnit.SECONDS.toNanos(1), admission.admit(flooding, 1));
+        }
+        // one of the two deliveries is still left for other connections
+        assertEquals(0, admission.admit(admission.newConnectionLimit(), 1));
+    }
+
+    @Test
+    void globallyRejectedRequestDoesNotUseConnectionLimit() {
+        AdmissionController admission = newController(1, 1, 2);
+        TokenBucket client = admission.newConnectionLimit();
+        // another connection saturates the global limit
+        assertEquals(0, admission.admit(admission.newConnectionLimit(), 2));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), admission.admit(client, 1));
+        // after the global backoff the client is admitted, its own token was not used up
+        clock.advance(TimeUnit.MILLISECONDS.toNanos(500));
+        assertEquals(0, admission.admit(client, 1));
+        assertEquals(TimeUnit.SECONDS.toNanos(1), admission.admit(client, 1));
+    }
+
+    @Test
+    void disabledLimitsAdmitEverything() {
+        AdmissionController admission = newController(0, 1, 0);
+        assertNull(admission.newConnectionLimit());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, admission.admit(null, 1000));
+        }
+    }
+
+    private AdmissionController newController(int messages, int burst, int global) {
+        Properties properties = new Properties();
+        properties.setProperty("multichat.rate.messages", Integer.toString(messages));
+        properties.setProperty("multichat.rate.burst", Integer.toString(burst));
+        properties.setProperty("multichat.rate.global", Integer.toString(global));
+        return new AdmissionController(new ServerConfig(properties), clock);
+    }
+}
@@ -0,0 +1,273 @@
+package ch.zhaw.pm2.multichat.server;
+
+import ch.zhaw.pm2.multichat.protocol.DataFrame;
+import ch.zhaw.pm2.multichat.protocol.NetworkHandler;
+import ch.zhaw.pm2.multichat.protocol.SharedFrame;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static ch.zhaw.pm2.multichat.protocol.ConnectionHandler.DataType;
+import static ch.zhaw.pm2.multichat.protocol.ConnectionHandler.USER_ALL;
+import static ch.zhaw.pm2.multichat.protocol.ConnectionHandler.USER_NONE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the acknowledgements of the {@link ServerConnectionHandler}: ACKs carry the request id of the message,
+ * failed messages are rejected by a negative ACK, and messages sent again after resuming a session are acknowledged
+ * but not delivered twice.
+ * <p>The handlers are connected to connections which only record the frames passed to them, like a non-blocking
+ * connection of the NIO server, so the frames are sent synchronously.</p>
+ */
+class ServerConnectionHandlerTest {
+    private ExecutorService writerService;
+    private ServerMetrics metrics;
+    private HistoryStore history;
+    private ServerContext context;
+    private int nextPort;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        writerService = Executors.newSingleThreadExecutor();
+        metrics = new ServerMetrics();
+        history = new HistoryStore(100, null);
+        Properties properties = new Properties();
+        properties.setProperty("multichat.rate.messages", "0");
+        properties.setProperty("multichat.rate.global", "0");
+        ServerConfig config = new ServerConfig(properties);
+        context = new ServerContext(config, new ConnectionRegistry(), new RoomRegistry(), history,
+            new SessionRegistry(Duration.ofMinutes(1)), null, new AdmissionController(config), metrics, writerService,
+            true);
+    }
+
+    @AfterEach
+    void tearDown() {
+        history.close();
+        metrics.close();
+        writerService.shutdownNow();
+    }
+
+    @Test
+    void privateMessageIsAcknowledgedWithItsRequestId() {
+        Client alice = connect("alice");
+        Client bob = connect("bob");
+        alice.send(new DataFrame("alice", "bob", DataType.MESSAGE, "Hello", null, 7));
+
+        DataFrame ack = alice.lastOf(DataType.ACK);
+        assertEquals(7, ack.getId());
+        assertNull(ack.getPayload());
+        assertEquals(List.of("Hello"), bob.payloadsOf(DataType.MESSAGE));
+    }
+
+    @Test
+    void broadcastAndRoomMessageAreAcknowledged() {
+        Client alice = connect("alice");
+        Client bob = connect("bob");
+        alice.send(new DataFrame("alice", USER_ALL, DataType.MESSAGE, "Hello all", null, 1));
+        alice.send(new DataFrame("alice", null, DataType.JOIN, null, "lobby"));
+        bob.send(new DataFrame("bob", null, DataType.JOIN, null, "lobby"));
+        alice.send(new DataFrame("alice", USER_ALL, DataType.MESSAGE, "Hello lobby", "lobby", 2));
+
+        assertEquals(List.of(1L, 2L), alice.acknowledgedIds());
+        assertEquals(List.of("Hello all", "Hello lobby"), bob.payloadsOf(DataType.MESSAGE));
+    }
+
+    @Test
+    void messageWithoutRequestIdIsNotAcknowledged() {
+        Client alice = connect("alice");
+        connect("bob");
+        alice.send(new DataFrame("alice", "bob", DataType.MESSAGE, "Hello"));
+
+        assertTrue(alice.framesOf(DataType.ACK).isEmpty());
+    }
+
+    @Test
+    void messageToUnknownUserIsRejectedByNegativeAck() {
+        Client alice = connect("alice");
+        alice.send(new DataFrame("alice", "carol", DataType.MESSAGE, "Hello", null, 8));
+
+        DataFrame ack = alice.lastOf(DataType.ACK);
+        assertEquals(8, ack.getId());
+        assertEquals("Unknown User: carol", ack.getPayload());
+        assertTrue(alice.framesOf(DataType.ERROR).isEmpty());
+    }
+
+    @Test
+    void messageToUnknownUserWithoutRequestIdIsRejectedByError() {
+        Client alice = connect("alice");
+        alice.send(new DataFrame("alice", "carol", DataType.MESSAGE, "Hello"));
+
+        assertEquals("Unknown User: carol", alice.lastOf(DataType.ERROR).getPayload());
+        assertTrue(alice.framesOf(DataType.ACK).isEmpty());
+    }
+
+    @Test
+    void messageToRoomOfNonMemberIsRejectedByNegativeAck() {
+        Client alice = connect("alice");
+        alice.send(new DataFrame("alice", USER_ALL, DataType.MESSAGE, "Hello", "lobby", 3));
+
+        DataFrame ack = alice.lastOf(DataType.ACK);
+        assertEquals(3, ack.getId());
+        assertTrue(ack.getPayload().startsWith("Not a member of room"));
+        assertTrue(alice.framesOf(DataType.ERROR).isEmpty());
+    }
+
+    @Test
+    void resentMessageIsAcknowledgedButNotDeliveredAgain() {
+        Client alice = connect("alice");
+        Client bob = connect("bob");
+        DataFrame message = new DataFrame("alice", "bob", DataType.MESSAGE, "Hello", null, 9);
+        alice.send(message);
+        alice.send(message);
+
+        assertEquals(List.of(9L, 9L), alice.acknowledgedIds());
+        assertEquals(List.of("Hello"), bob.payloadsOf(DataType.MESSAGE));
+    }
+
+    @Test
+    void messageResentAfterResumeIsNotDeliveredTwice() {
+        Client alice = connect("alice");
+        Client bob = connect("bob");
+        String token = alice.lastOf(DataType.RESUME).getPayload();
+        alice.send(new DataFrame("alice", "bob", DataType.MESSAGE, "Hello", null, 10));
+        // the connection is lost before the client received the ACK
+        alice.handler.connectionClosed();
+
+        Client resumed = new Client();
+        resumed.send(new DataFrame("alice", USER_NONE, DataType.RESUME, token));
+        assertEquals("Session resumed for alice", resumed.lastOf(DataType.CONFIRM).getPayload());
+        resumed.send(new DataFrame("alice", "bob", DataType.MESSAGE, "Hello", null, 10));
+        resumed.send(new DataFrame("alice", "bob", DataType.MESSAGE, "How are you?", null, 11));
+
+        assertEquals(List.of(10L, 11L), resumed.acknowledgedIds());
+        assertEquals(List.of("Hello", "How are you?"), bob.payloadsOf(DataType.MESSAGE));
+    }
+
+    @Test
+    void newSessionDoesNotSuppressRequestIdsOfPreviousSession() {
+        Client alice = connect("alice");
+        Client bob = connect("bob");
+        alice.send(new DataFrame("alice", "bob", DataType.MESSAGE, "Hello", null, 12));
+        alice.send(new DataFrame("alice", USER_NONE, DataType.DISCONNECT, null));
+        alice.handler.connectionClosed();
+
+        Client reconnected = connect("alice");
+        reconnected.send(new DataFrame("alice", "bob", DataType.MESSAGE, "Hello again", null, 12));
+
+        assertEquals(List.of(12L), reconnected.acknowledgedIds());
+        assertEquals(List.of("Hello", "Hello again"), bob.payloadsOf(DataType.MESSAGE));
+    }
+
+    private Client connect(String userName) {
+        Client client = new Client();
+        client.send(new DataFrame(userName, USER_NONE, DataType.CONNECT, null));
+        assertEquals(DataType.CONFIRM, client.connection.sent.get(0).getType());
+        return client;
+    }
+
+    /**
+     * A handler of the server and the frames it sent to its client.
+     */
+    private class Client {
+        private final RecordingConnection connection = new RecordingConnection(++nextPort);
+        private final ServerConnectionHandler handler = new ServerConnectionHandler(connection, context);
+
+        void send(DataFrame frame) {
+            handler.frameReceived(frame);
+        }
+
+        List<DataFrame> framesOf(DataType type) {
+            return connection.sent.stream().filter(frame -> frame.getType() == type).toList();
+        }
+
+        DataFrame lastOf(DataType type) {
+            List<DataFrame> frames = framesOf(type);
+            assertTrue(!frames.isEmpty(), "No " + type + " frame sent");
+            return frames.get(frames.size() - 1);
+        }
+
+        List<String> payloadsOf(DataType type) {
+            return framesOf(type).stream().map(DataFrame::getPayload).toList();
+        }
+
+        List<Long> acknowledgedIds() {
+            return framesOf(DataType.ACK).stream()
+                .peek(frame -> assertNull(frame.getPayload(), "Negative ACK: " + frame.getPayload()))
+                .map(DataFrame::getId)
+                .toList();
+        }
+    }
+
+    /**
+     * Connection which never blocks and only records the frames sent through it.
+     */
+    private static class RecordingConnection implements NetworkHandler.Connection<DataFrame> {
+        private final int remotePort;
+        private final List<DataFrame> sent = new CopyOnWriteArrayList<>();
+        private volatile boolean closed;
+
+        RecordingConnection(int remotePort) {
+            this.remotePort = remotePort;
+        }
+
+        @Override
+        public void send(DataFrame data) {
+            sent.add(data);
+        }
+
+        @Override
+        public void sendShared(SharedFrame<DataFrame> frame) {
+            sent.add(frame.getData());
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return !closed;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public int getRemotePort() {
+            return remotePort;
+        }
+
+        @Override
+        public String getRemoteHost() {
+            return "test";
+        }
+
+        @Override
+        public int getFormatId() {
+            return 0;
+        }
+
+        @Override
+        public long getBytesReceived() {
+            return 0;
+        }
+
+        @Override
+        public long getBytesSent() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package ch.zhaw.pm2.multichat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests of the {@link TokenBucket} arithmetic, driven by a fake clock: bursts, refill and wait times.
+ */
+class TokenBucketTest {
+    private static final long TOKEN_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final FakeClock clock = new FakeClock(TimeUnit.SECONDS.toNanos(1000));
+
+    @Test
+    void fullBucketAdmitsBurst() {
+        TokenBucket bucket = new TokenBucket(10, 5, clock);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, bucket.tryAcquire(1), "Event " + i + " of the burst rejected");
+        }
+        assertEquals(TOKEN_NANOS, bucket.tryAcquire(1));
+    }
+
+    @Test
+    void emptyBucketIsRefilledAtRate() {
+        TokenBucket bucket = new TokenBucket(10, 5, clock);
+        bucket.tryAcquire(5);
+        clock.advance(TOKEN_NANOS);
+        assertEquals(0, bucket.tryAcquire(1));
+        assertEquals(TOKEN_NANOS, bucket.tryAcquire(1));
+        clock.advance(3 * TOKEN_NANOS);
+        assertEquals(0, bucket.tryAcquire(3));
+        assertEquals(TOKEN_NANOS, bucket.tryAcquire(1));
+    }
+
+    @Test
+    void waitTimeIsTimeUntilEnoughTokens() {
+        TokenBucket bucket = new TokenBucket(10, 5, clock);
+        bucket.tryAcquire(5);
+        clock.advance(TimeUnit.MILLISECONDS.toNanos(40));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(60), bucket.tryAcquire(1));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(260), bucket.tryAcquire(3));
+    }
+
+    @Test
+    void rejectedEventTakesNoTokens() {
+        TokenBucket bucket = new TokenBucket(10, 5, clock);
+        bucket.tryAcquire(5);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(TOKEN_NANOS, bucket.tryAcquire(1));
+        }
+        clock.advance(TOKEN_NANOS);
+        assertEquals(0, bucket.tryAcquire(1));
+    }
+
+    @Test
+    void pauseDoesNotFillBucketBeyondBurst() {
+        TokenBucket bucket = new TokenBucket(10, 5, clock);
+        bucket.tryAcquire(5);
+        clock.advance(TimeUnit.SECONDS.toNanos(60));
+        assertEquals(0, bucket.tryAcquire(5));
+        assertEquals(TOKEN_NANOS, bucket.tryAcquire(1));
+    }
+
+    @Test
+    void eventCostingMoreThanBurstNeedsFullBucket() {
+        TokenBucket bucket = new TokenBucket(10, 5, clock);
+        assertEquals(0, bucket.tryAcquire(1));
+        // one token is missing for a full bucket
+        assertEquals(TOKEN_NANOS, bucket.tryAcquire(20));
+        clock.advance(TOKEN_NANOS);
+        assertEquals(0, bucket.tryAcquire(20));
+        assertEquals(TOKEN_NANOS, bucket.tryAcquire(1));
+    }
+
+    @Test
+    void rateAboveOneTokenPerNanosecondIsCapped() {
+        TokenBucket bucket = new TokenBucket(2_000_000_000L, 2, clock);
+        assertEquals(0, bucket.tryAcquire(2));
+        assertEquals(1, bucket.tryAcquire(1));
+    }
+
+    @Test
+    void clockOverflowIsHandled() {
+        clock.time = Long.MAX_VALUE - TOKEN_NANOS;
+        TokenBucket bucket = new TokenBucket(10, 5, clock);
+        assertEquals(0, bucket.tryAcquire(5));
+        assertEquals(TOKEN_NANOS, bucket.tryAcquire(1));
+        // the clock wraps around to negative values
+        clock.advance(2 * TOKEN_NANOS);
+        assertEquals(0, bucket.tryAcquire(2));
+        assertEquals(TOKEN_NANOS, bucket.tryAcquire(1));
+    }
+
+    @Test
+    void releasedTokensCanBeTakenAgain() {
+        TokenBucket bucket = new TokenBucket(10, 5, clock);
+        bucket.tryAcquire(5);
+        bucket.release(2);
+        assertEquals(0, bucket.tryAcquire(2));
+        assertEquals(TOKEN_NANOS, bucket.tryAcquire(1));
+    }
+
+    @Test
+    void releaseDoesNotFillBucketBeyondBurst() {
+        TokenBucket bucket = new TokenBucket(10, 5, clock);
+        bucket.release(3);
+        assertEquals(0, bucket.tryAcquire(5));
+        assertEquals(TOKEN_NANOS, bucket.tryAcquire(1));
+    }
+
+    @Test
+    void illegalSettingsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(0, 5, clock));
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(10, 0, clock));
+    }
+
+    /**
+     * Clock only advancing when told to.
+     */
+    static class FakeClock implements LongSupplier {
+        private long time;
+
+        FakeClock(long time) {
+            this.time = time;
+        }
+
+        void advance(long nanos) {
+            time += nanos;
+        }
+
+        @Override
+        public long getAsLong() {
+            return time;
+        }
+    }
+}